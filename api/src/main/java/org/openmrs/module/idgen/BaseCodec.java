@@ -0,0 +1,186 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.idgen;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Converts numbers to and from strings of digits in the base defined by a set of base characters.
+ * Encoding writes digits right-to-left into a char array, decoding looks digits up in a reverse index, and
+ * a {@link Counter} formats consecutive numbers by incrementing its digits in place rather than dividing
+ * each number again.  Codecs are immutable and shared between all users of the same base characters.
+ */
+public final class BaseCodec {
+
+	private static final ConcurrentHashMap<String, BaseCodec> CODECS = new ConcurrentHashMap<String, BaseCodec>();
+
+	private final char[] baseCharacters;
+
+	private final int base;
+
+	/**
+	 * Digit value of each character, indexed by character, -1 for characters outside the base
+	 */
+	private final int[] digitValues;
+
+	private BaseCodec(char[] baseCharacters) {
+		this.baseCharacters = baseCharacters.clone();
+		this.base = baseCharacters.length;
+		char max = 0;
+		for (char c : baseCharacters) {
+			max = (char) Math.max(max, c);
+		}
+		this.digitValues = new int[max + 1];
+		Arrays.fill(digitValues, -1);
+		for (int i = 0; i < baseCharacters.length; i++) {
+			// the last occurrence wins, as it always has when decoding
+			digitValues[baseCharacters[i]] = i;
+		}
+	}
+
+	/**
+	 * @return the shared codec for the given base characters
+	 */
+	public static BaseCodec forBaseCharacters(String baseCharacters) {
+		BaseCodec codec = CODECS.get(baseCharacters);
+		if (codec == null) {
+			codec = new BaseCodec(baseCharacters.toCharArray());
+			BaseCodec existing = CODECS.putIfAbsent(baseCharacters, codec);
+			if (existing != null) {
+				codec = existing;
+			}
+		}
+		return codec;
+	}
+
+	/**
+	 * @return n in this base, padded on the left with the first base character to at least padToLength
+	 * @should encode numbers like the original division algorithm
+	 */
+	public String encode(long n, int padToLength) {
+		char[] buffer = new char[Math.max(64, padToLength)];
+		int start = encode(n, padToLength, buffer);
+		return new String(buffer, start, buffer.length - start);
+	}
+
+	/**
+	 * Writes n in this base right-aligned into the given buffer, padded to at least padToLength
+	 * @return the index of the first character written
+	 */
+	public int encode(long n, int padToLength, char[] buffer) {
+		int pos = buffer.length;
+		while (n > 0) {
+			buffer[--pos] = baseCharacters[(int) (n % base)];
+			n = n / base;
+		}
+		int padTo = buffer.length - padToLength;
+		while (pos > padTo) {
+			buffer[--pos] = baseCharacters[0];
+		}
+		return pos;
+	}
+
+	/**
+	 * @return the number represented by the given characters in this base
+	 * @should decode what was encoded
+	 * @should throw an exception for characters outside the base
+	 */
+	public long decode(CharSequence s) {
+		long ret = 0;
+		for (int i = 0; i < s.length(); i++) {
+			ret = ret * base + digitValue(s.charAt(i), s);
+		}
+		return ret;
+	}
+
+	private int digitValue(char c, CharSequence s) {
+		int value = c < digitValues.length ? digitValues[c] : -1;
+		if (value == -1) {
+			throw new RuntimeException("Invalid character " + c + " found in " + s);
+		}
+		return value;
+	}
+
+	/**
+	 * @return a counter formatting consecutive numbers from start
+	 * @should format consecutive numbers like encode
+	 */
+	public Counter counter(long start, int padToLength) {
+		if (start < 0) {
+			throw new IllegalArgumentException("Counters cannot start at a negative number");
+		}
+		return new Counter(start, padToLength);
+	}
+
+	/**
+	 * Formats consecutive numbers, keeping the digits of the current number and incrementing them in place
+	 */
+	public final class Counter {
+
+		private final char[] digits;
+		private final int padToLength;
+		private int significantDigits;
+		private long value;
+
+		private Counter(long start, int padToLength) {
+			this.digits = new char[Math.max(64, padToLength)];
+			Arrays.fill(digits, baseCharacters[0]);
+			this.padToLength = padToLength;
+			this.significantDigits = digits.length - encode(start, 0, digits);
+			this.value = start;
+		}
+
+		/**
+		 * @return the number the counter is currently at
+		 */
+		public long getValue() {
+			return value;
+		}
+
+		/**
+		 * @return the current number, formatted
+		 */
+		public String current() {
+			int length = Math.max(significantDigits, padToLength);
+			return new String(digits, digits.length - length, length);
+		}
+
+		/**
+		 * Appends the current number, formatted, to the given builder
+		 */
+		public void appendTo(StringBuilder sb) {
+			int length = Math.max(significantDigits, padToLength);
+			sb.append(digits, digits.length - length, length);
+		}
+
+		/**
+		 * Advances the counter to the next number
+		 */
+		public void increment() {
+			int pos = digits.length - 1;
+			while (true) {
+				int next = digitValues[digits[pos]] + 1;
+				if (next < base) {
+					digits[pos] = baseCharacters[next];
+					break;
+				}
+				digits[pos] = baseCharacters[0];
+				pos--;
+			}
+			significantDigits = Math.max(significantDigits, digits.length - pos);
+			value++;
+		}
+	}
+}
@@ -0,0 +1,205 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.idgen;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang.ObjectUtils;
+import org.apache.commons.lang.StringUtils;
+import org.openmrs.api.context.Context;
+import org.openmrs.patient.IdentifierValidator;
+
+/**
+ * Formats sequence values into identifiers for a {@link SequentialIdentifierGenerator}, with the generator's
+ * base characters, prefix, suffix, padding, length bounds and check-digit validator resolved once, so that
+ * formatting a seed involves no reflection.
+ *
+ * Compiled formatters are cached by generator id and reused across sessions until the configuration of the
+ * generator, or the validator of its identifier type, no longer matches the one they were compiled from.
+ */
+public class IdentifierFormatter {
+
+	private static final ConcurrentHashMap<Integer, IdentifierFormatter> COMPILED = new ConcurrentHashMap<Integer, IdentifierFormatter>();
+
+	private final String prefix;
+	private final String suffix;
+	private final String baseCharacterSet;
+	private final BaseCodec codec;
+	private final String firstIdentifierBase;
+	private final int seqLength;
+	private final Integer minLength;
+	private final Integer maxLength;
+	private final String validatorClassName;
+	private final IdentifierValidator validator;
+
+	/**
+	 * Compiles a formatter for the current configuration of the given generator
+	 */
+	private IdentifierFormatter(SequentialIdentifierGenerator generator) {
+		this.prefix = generator.getPrefix();
+		this.suffix = generator.getSuffix();
+		this.baseCharacterSet = generator.getBaseCharacterSet();
+		this.codec = BaseCodec.forBaseCharacters(baseCharacterSet);
+		this.firstIdentifierBase = generator.getFirstIdentifierBase();
+		this.seqLength = firstIdentifierBase == null ? 1 : firstIdentifierBase.length();
+		this.minLength = generator.getMinLength();
+		this.maxLength = generator.getMaxLength();
+		this.validatorClassName = getValidatorClassName(generator);
+		if (validatorClassName != null) {
+			try {
+				Class<?> c = Context.loadClass(validatorClassName);
+				this.validator = (IdentifierValidator) c.newInstance();
+			}
+			catch (Exception e) {
+				throw new RuntimeException("Error generating check digit with " + validatorClassName, e);
+			}
+		}
+		else {
+			this.validator = null;
+		}
+	}
+
+	/**
+	 * @return the formatter for the current configuration of the given generator, compiled if necessary
+	 * @should compile a new formatter when the generator changes
+	 */
+	public static IdentifierFormatter forGenerator(SequentialIdentifierGenerator generator) {
+		Integer id = generator.getId();
+		IdentifierFormatter formatter = (id == null ? null : COMPILED.get(id));
+		if (formatter == null || !formatter.matches(generator)) {
+			formatter = new IdentifierFormatter(generator);
+			if (id != null) {
+				COMPILED.put(id, formatter);
+			}
+		}
+		return formatter;
+	}
+
+	/**
+	 * Discards the compiled formatter of the generator with the given id
+	 */
+	public static void evict(Integer generatorId) {
+		if (generatorId != null) {
+			COMPILED.remove(generatorId);
+		}
+	}
+
+	/**
+	 * @return true if this formatter was compiled from the current configuration of the given generator
+	 */
+	private boolean matches(SequentialIdentifierGenerator generator) {
+		return ObjectUtils.equals(prefix, generator.getPrefix())
+				&& ObjectUtils.equals(suffix, generator.getSuffix())
+				&& ObjectUtils.equals(baseCharacterSet, generator.getBaseCharacterSet())
+				&& ObjectUtils.equals(firstIdentifierBase, generator.getFirstIdentifierBase())
+				&& ObjectUtils.equals(minLength, generator.getMinLength())
+				&& ObjectUtils.equals(maxLength, generator.getMaxLength())
+				&& ObjectUtils.equals(validatorClassName, getValidatorClassName(generator));
+	}
+
+	private static String getValidatorClassName(SequentialIdentifierGenerator generator) {
+		if (generator.getIdentifierType() != null && StringUtils.isNotEmpty(generator.getIdentifierType().getValidator())) {
+			return generator.getIdentifierType().getValidator();
+		}
+		return null;
+	}
+
+	/**
+	 * @return the identifier for the given seed
+	 * @see SequentialIdentifierGenerator#getIdentifierForSeed(long)
+	 */
+	public String format(long seed) {
+
+		// Convert the next sequence integer into a String with the appropriate Base characters
+		String identifier = codec.encode(seed, seqLength);
+
+		// Add optional prefix and suffix
+		if (prefix != null || suffix != null) {
+			StringBuilder sb = new StringBuilder(identifier.length() + 16);
+			if (prefix != null) {
+				sb.append(prefix);
+			}
+			sb.append(identifier);
+			if (suffix != null) {
+				sb.append(suffix);
+			}
+			identifier = sb.toString();
+		}
+
+		return complete(identifier);
+	}
+
+	/**
+	 * @return a counter over consecutive seeds from firstSeed, to be formatted with {@link #format(BaseCodec.Counter)}
+	 */
+	public BaseCodec.Counter counter(long firstSeed) {
+		return codec.counter(firstSeed, seqLength);
+	}
+
+	/**
+	 * Formats the seed the given counter is at and advances the counter to the next seed.  Formatting a run of
+	 * consecutive seeds this way increments the digits in place rather than converting each seed from scratch.
+	 * @return the identifier for the seed the counter was at
+	 * @should format consecutive seeds like format
+	 */
+	public String format(BaseCodec.Counter counter) {
+		String identifier;
+		if (prefix != null || suffix != null) {
+			StringBuilder sb = new StringBuilder(seqLength + 32);
+			if (prefix != null) {
+				sb.append(prefix);
+			}
+			counter.appendTo(sb);
+			if (suffix != null) {
+				sb.append(suffix);
+			}
+			identifier = sb.toString();
+		}
+		else {
+			identifier = counter.current();
+		}
+		counter.increment();
+		return complete(identifier);
+	}
+
+	/**
+	 * Adds the check digit, if any, and enforces the length bounds
+	 */
+	private String complete(String identifier) {
+
+		// Add check-digit, if required
+		if (validator != null) {
+			try {
+				identifier = validator.getValidIdentifier(identifier);
+			}
+			catch (Exception e) {
+				throw new RuntimeException("Error generating check digit with " + validatorClassName, e);
+			}
+		}
+
+		if (minLength != null && minLength > 0) {
+			if (identifier.length() < minLength) {
+				throw new RuntimeException("Invalid configuration for IdentifierSource. Length minimum set to " + minLength + " but generated " + identifier);
+			}
+		}
+
+		if (maxLength != null && maxLength > 0) {
+			if (identifier.length() > maxLength) {
+				throw new RuntimeException("Invalid configuration for IdentifierSource. Length maximum set to " + maxLength + " but generated " + identifier);
+			}
+		}
+
+		return identifier;
+	}
+}
@@ -0,0 +1,181 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.idgen;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+/**
+ * Reads identifiers to import into a pool from a stream, handing them on in chunks so that files of any size can
+ * be imported in constant memory.  The stream may contain either a {@link RemoteIdentifiersMessage} in JSON
+ * (or just its array of identifiers), or plain text with one identifier per line.
+ */
+public class IdentifierImportReader {
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	static {
+		JSON_FACTORY.configure(JsonParser.Feature.AUTO_CLOSE_SOURCE, false);
+	}
+
+	/**
+	 * Receives each chunk of identifiers read
+	 */
+	public interface ChunkHandler {
+		void handle(List<String> identifiers);
+	}
+
+	/**
+	 * @param in the stream to read, which is not closed
+	 * @param chunkSize the maximum number of identifiers handed to the handler at once
+	 * @param handler the handler receiving the identifiers
+	 * @return the number of identifiers read
+	 * @should read identifiers from a json message in chunks
+	 * @should read identifiers from a json array
+	 * @should read identifiers from plain text lines skipping blank lines
+	 * @should reject json identifiers which are not strings
+	 */
+	public static int read(InputStream in, int chunkSize, ChunkHandler handler) throws IOException {
+		BufferedInputStream buffered = new BufferedInputStream(in);
+		Chunker chunker = new Chunker(chunkSize, handler);
+		if (startsWithJson(buffered)) {
+			parseJson(buffered, chunker);
+		}
+		else {
+			readLines(buffered, chunker);
+		}
+		chunker.flush();
+		return chunker.total;
+	}
+
+	/**
+	 * Reads a {@link RemoteIdentifiersMessage}, or just its array of identifiers, failing if the stream does not
+	 * hold JSON.  Used for responses which must be JSON, such as those of remote identifier sources.
+	 * @param in the stream to read, which is not closed
+	 * @param chunkSize the maximum number of identifiers handed to the handler at once
+	 * @param handler the handler receiving the identifiers
+	 * @return the number of identifiers read
+	 * @should fail if the stream does not hold json
+	 */
+	public static int readJson(InputStream in, int chunkSize, ChunkHandler handler) throws IOException {
+		Chunker chunker = new Chunker(chunkSize, handler);
+		parseJson(in, chunker);
+		chunker.flush();
+		return chunker.total;
+	}
+
+	private static boolean startsWithJson(BufferedInputStream in) throws IOException {
+		in.mark(1024);
+		try {
+			for (int i = 0; i < 1024; i++) {
+				int c = in.read();
+				if (c == -1) {
+					return false;
+				}
+				if (!Character.isWhitespace(c) && c != 0xEF && c != 0xBB && c != 0xBF) {
+					return c == '{' || c == '[';
+				}
+			}
+			return false;
+		}
+		finally {
+			in.reset();
+		}
+	}
+
+	private static void parseJson(InputStream in, Chunker chunker) throws IOException {
+		JsonParser parser = JSON_FACTORY.createJsonParser(in);
+		try {
+			JsonToken token = parser.nextToken();
+			if (token == JsonToken.START_OBJECT) {
+				// skip to the identifiers property, ignoring any others
+				while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+					if ("identifiers".equals(parser.getCurrentName())) {
+						token = parser.nextToken();
+						break;
+					}
+					parser.nextToken();
+					parser.skipChildren();
+				}
+			}
+			if (token != JsonToken.START_ARRAY) {
+				throw new JsonParseException("Expected an array of identifiers", parser.getCurrentLocation());
+			}
+			while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+				if (token == null) {
+					throw new JsonParseException("Unexpected end of input in array of identifiers", parser.getCurrentLocation());
+				}
+				if (token != JsonToken.VALUE_STRING) {
+					throw new JsonParseException("Expected an identifier string but found " + parser.getText(), parser.getCurrentLocation());
+				}
+				chunker.add(parser.getText());
+			}
+		}
+		finally {
+			parser.close();
+		}
+	}
+
+	private static void readLines(InputStream in, Chunker chunker) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+			line = line.trim();
+			if (line.length() > 0) {
+				chunker.add(line);
+			}
+		}
+	}
+
+	/**
+	 * Collects identifiers and hands them to the handler each time a chunk is full
+	 */
+	private static class Chunker {
+
+		private int chunkSize;
+		private ChunkHandler handler;
+		private List<String> chunk;
+		private int total = 0;
+
+		public Chunker(int chunkSize, ChunkHandler handler) {
+			this.chunkSize = chunkSize;
+			this.handler = handler;
+			this.chunk = new ArrayList<String>(chunkSize);
+		}
+
+		public void add(String identifier) {
+			chunk.add(identifier);
+			if (chunk.size() == chunkSize) {
+				flush();
+			}
+		}
+
+		public void flush() {
+			if (!chunk.isEmpty()) {
+				total += chunk.size();
+				handler.handle(chunk);
+				chunk = new ArrayList<String>(chunkSize);
+			}
+		}
+	}
+}
@@ -41,7 +41,10 @@ public class IdentifierPool extends BaseIdentifierSource {
    
     /**
      * Returns all available PooledIdentifiers
+     * @deprecated loads every identifier in the pool, use IdentifierSourceService#getQuantityInPool or
+     * IdentifierSourceService#getAvailableIdentifiers instead
      */
+    @Deprecated
     public Set<PooledIdentifier> getAvailableIdentifiers() {
     	Set<PooledIdentifier> ret = new HashSet<PooledIdentifier>();
     	for (PooledIdentifier i : getIdentifiers()) {
@@ -54,7 +57,9 @@ public class IdentifierPool extends BaseIdentifierSource {
 
 	/**
      * Returns all used PooledIdentifiers
+     * @deprecated loads every identifier in the pool, use IdentifierSourceService#getQuantityInPool instead
      */
+    @Deprecated
     public Set<PooledIdentifier> getUsedIdentifiers() {
     	Set<PooledIdentifier> ret = new HashSet<PooledIdentifier>();
     	for (PooledIdentifier i : getIdentifiers()) {
@@ -66,8 +71,10 @@ public class IdentifierPool extends BaseIdentifierSource {
     }
     
 	/** 
-	 * @see IdentifierSource#nextIdentifier()
+	 * @deprecated loads every identifier in the pool and does not guard against concurrent use,
+	 * use IdentifierSourceService#claimAvailableIdentifiers instead
 	 */
+	@Deprecated
 	public synchronized String nextIdentifier() {
 		for (PooledIdentifier p : getIdentifiers()) {
 			if (p.isAvailable()) {
@@ -81,7 +88,9 @@ public class IdentifierPool extends BaseIdentifierSource {
 	/**
 	 * Adds a new identifier to the pool 
 	 * @param identifier the identifier to add
+	 * @deprecated loads every identifier in the pool, use IdentifierSourceService#addIdentifiersToPool instead
 	 */
+	@Deprecated
 	public synchronized void addIdentifierToPool(String identifier) {
 		getIdentifiers().add(new PooledIdentifier(this, identifier));
 	}
@@ -0,0 +1,138 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.idgen;
+
+import java.util.AbstractCollection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A batch of identifiers generated by a {@link SequentialIdentifierGenerator}, described by the contiguous run
+ * of sequence values it was generated from rather than by the identifiers themselves.  The run starts at the
+ * first seed and covers count identifiers plus the seeds skipped because their identifiers are reserved.
+ *
+ * Identifiers are formatted on demand as the range is iterated, so a range of any size takes the same memory
+ * to hold, and it can be iterated any number of times.  As a read-only collection it can be handed to anything
+ * which writes out a collection element by element, such as a JSON serializer, without being copied.
+ */
+public class IdentifierRange extends AbstractCollection<String> {
+
+	private final Integer sourceId;
+	private final IdentifierFormatter formatter;
+	private final long firstSeed;
+	private final int count;
+	private final long[] skippedSeeds;
+
+	/**
+	 * @param sourceId the id of the generator the range was taken from
+	 * @param formatter the formatter of that generator at the time the range was taken
+	 * @param firstSeed the first seed of the range
+	 * @param count the number of identifiers in the range
+	 * @param skippedSeeds the seeds within the range which are not handed out, in ascending order
+	 */
+	public IdentifierRange(Integer sourceId, IdentifierFormatter formatter, long firstSeed, int count, long[] skippedSeeds) {
+		this.sourceId = sourceId;
+		this.formatter = formatter;
+		this.firstSeed = firstSeed;
+		this.count = count;
+		this.skippedSeeds = skippedSeeds;
+	}
+
+	/**
+	 * @return the id of the generator the range was taken from
+	 */
+	public Integer getSourceId() {
+		return sourceId;
+	}
+
+	/**
+	 * @return the first seed of the range
+	 */
+	public long getFirstSeed() {
+		return firstSeed;
+	}
+
+	/**
+	 * @return the seed following the last seed of the range
+	 */
+	public long getEndSeed() {
+		return firstSeed + count + skippedSeeds.length;
+	}
+
+	/**
+	 * @return the number of identifiers in the range
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @see java.util.Collection#size()
+	 */
+	@Override
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return the seeds within the range which are skipped because their identifiers are reserved
+	 */
+	public long[] getSkippedSeeds() {
+		return skippedSeeds.clone();
+	}
+
+	/**
+	 * @return an iterator formatting the identifiers of the range in order
+	 * @should format the identifiers of the range in order, skipping the skipped seeds
+	 * @should return the same identifiers each time the range is iterated
+	 */
+	@Override
+	public Iterator<String> iterator() {
+		final BaseCodec.Counter counter = formatter.counter(firstSeed);
+		return new Iterator<String>() {
+
+			private int returned = 0;
+			private int nextSkipped = 0;
+
+			@Override
+			public boolean hasNext() {
+				return returned < count;
+			}
+
+			@Override
+			public String next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				while (nextSkipped < skippedSeeds.length && skippedSeeds[nextSkipped] == counter.getValue()) {
+					counter.increment();
+					nextSkipped++;
+				}
+				returned++;
+				return formatter.format(counter);
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		return "IdentifierRange[source=" + sourceId + ", firstSeed=" + firstSeed + ", count=" + count
+				+ ", skipped=" + skippedSeeds.length + "]";
+	}
+}
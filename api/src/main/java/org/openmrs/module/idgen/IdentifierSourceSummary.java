@@ -0,0 +1,84 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.idgen;
+
+/**
+ * The id, name and type of an IdentifierSource, read with a projection so that sources can be listed without
+ * loading each of them and their subclass properties
+ */
+public class IdentifierSourceSummary {
+
+	//***** PROPERTIES *****
+
+	private final Integer id;
+	private final String uuid;
+	private final String name;
+	private final Integer identifierTypeId;
+	private final Class<? extends IdentifierSource> sourceType;
+	private final boolean retired;
+
+	//***** CONSTRUCTORS *****
+
+	/**
+	 * Full Constructor
+	 */
+	public IdentifierSourceSummary(Integer id, String uuid, String name, Integer identifierTypeId,
+	                               Class<? extends IdentifierSource> sourceType, boolean retired) {
+		this.id = id;
+		this.uuid = uuid;
+		this.name = name;
+		this.identifierTypeId = identifierTypeId;
+		this.sourceType = sourceType;
+		this.retired = retired;
+	}
+
+	//***** INSTANCE METHODS *****
+
+	/**
+	 * @see Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return name;
+	}
+
+	//***** PROPERTY ACCESS *****
+
+	public Integer getId() {
+		return id;
+	}
+
+	public String getUuid() {
+		return uuid;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Integer getIdentifierTypeId() {
+		return identifierTypeId;
+	}
+
+	/**
+	 * @return the IdentifierSource subclass of the source
+	 */
+	public Class<? extends IdentifierSource> getSourceType() {
+		return sourceType;
+	}
+
+	public boolean isRetired() {
+		return retired;
+	}
+}
@@ -37,4 +37,88 @@ public class IdgenConstants {
 	 * Privilege which grants users permission to upload a batch of identifiers
 	 */
 	public static final String PRIV_UPLOAD_BATCH_OF_IDENTIFIERS = "Upload Batch of Identifiers";
+
+	/**
+	 * Global property holding the number of sequence values a SequentialIdentifierGenerator reserves from the
+	 * database at once and then hands out from memory.  A value of 1 or less disables block reservation.
+	 */
+	public static final String GP_SEQUENCE_BLOCK_SIZE = "idgen.sequenceBlockSize";
+
+	/**
+	 * Global property which, if true, writes generation log entries in the background instead of in the
+	 * transaction which generates the identifiers
+	 */
+	public static final String GP_ASYNC_LOG_ENTRIES = "idgen.asyncLogEntries";
+
+	/**
+	 * Global property holding the maximum number of open connections to the server of each remote identifier source
+	 */
+	public static final String GP_REMOTE_MAX_CONNECTIONS = "idgen.remoteMaxConnections";
+
+	/**
+	 * Global property holding the number of milliseconds to wait for a connection to a remote identifier source
+	 */
+	public static final String GP_REMOTE_CONNECT_TIMEOUT = "idgen.remoteConnectTimeout";
+
+	/**
+	 * Global property holding the number of milliseconds to wait for a response from a remote identifier source
+	 */
+	public static final String GP_REMOTE_READ_TIMEOUT = "idgen.remoteReadTimeout";
+
+	/**
+	 * Global property holding the number of milliseconds an idle connection to a remote identifier source is kept
+	 * open for reuse, unless the server asks for less
+	 */
+	public static final String GP_REMOTE_KEEP_ALIVE = "idgen.remoteKeepAlive";
+
+	/**
+	 * Global property which, if true, asks remote identifier sources for gzip-compressed responses
+	 */
+	public static final String GP_REMOTE_GZIP = "idgen.remoteGzip";
+
+	/**
+	 * Global property holding the number of identifiers of a remote identifier source kept fetched ahead of time.
+	 * A value of 0 disables prefetching.
+	 */
+	public static final String GP_REMOTE_PREFETCH_HIGH_WATER = "idgen.remotePrefetchHighWater";
+
+	/**
+	 * Global property holding the number of prefetched identifiers of a remote identifier source below which more
+	 * are fetched in the background
+	 */
+	public static final String GP_REMOTE_PREFETCH_LOW_WATER = "idgen.remotePrefetchLowWater";
+
+	/**
+	 * Global property holding the maximum number of identifier pools refilled at once by the scheduled task
+	 */
+	public static final String GP_REFILL_THREADS = "idgen.refillThreads";
+
+	/**
+	 * Global property holding the number of seconds the scheduled task waits for the refill of one pool
+	 */
+	public static final String GP_REFILL_TIMEOUT = "idgen.refillTimeout";
+
+	/**
+	 * Global property holding the number of seconds of projected demand a pool is refilled to cover, on top of its
+	 * min pool size
+	 */
+	public static final String GP_REFILL_LOOKAHEAD = "idgen.refillLookahead";
+
+	/**
+	 * Global property holding the number of seconds after which the in-memory counts of identifiers in a pool are
+	 * counted again from the database
+	 */
+	public static final String GP_POOL_COUNT_RECONCILE_INTERVAL = "idgen.poolCountReconcileInterval";
+
+	/**
+	 * Global property holding the number of seconds after which the auto generation options kept in memory are loaded
+	 * again from the database
+	 */
+	public static final String GP_AUTO_GENERATION_OPTION_CACHE_INTERVAL = "idgen.autoGenerationOptionCacheInterval";
+
+	/**
+	 * Global property holding the number of seconds after which the reserved identifiers of a source kept in memory are
+	 * loaded again from the database
+	 */
+	public static final String GP_RESERVED_IDENTIFIER_CACHE_INTERVAL = "idgen.reservedIdentifierCacheInterval";
 }
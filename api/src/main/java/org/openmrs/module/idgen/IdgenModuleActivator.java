@@ -15,9 +15,15 @@ package org.openmrs.module.idgen;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
 import org.openmrs.module.BaseModuleActivator;
 import org.openmrs.module.DaemonToken;
 import org.openmrs.module.DaemonTokenAware;
+import org.openmrs.module.idgen.processor.RemoteIdentifierSourceProcessor;
+import org.openmrs.module.idgen.processor.SequentialIdentifierGeneratorProcessor;
+import org.openmrs.module.idgen.service.IdentifierSourceService;
+import org.openmrs.module.idgen.service.LogEntryQueue;
+import org.openmrs.module.idgen.service.PoolQuantityCounter;
 import org.openmrs.module.idgen.task.IdgenTask;
 
 /**
@@ -31,14 +37,55 @@ public class IdgenModuleActivator extends BaseModuleActivator implements DaemonT
 	@Override
 	public void started() {
 		IdgenTask.setEnabled(true);
+		Context.getAdministrationService().addGlobalPropertyListener(getSequentialIdentifierGeneratorProcessor());
+		Context.getAdministrationService().addGlobalPropertyListener(getLogEntryQueue());
+		Context.getAdministrationService().addGlobalPropertyListener(getRemoteIdentifierSourceProcessor());
+		Context.getAdministrationService().addGlobalPropertyListener(getPoolQuantityCounter());
+		try {
+			Context.getService(IdentifierSourceService.class).loadAutoGenerationOptionIndex();
+		}
+		catch (Exception e) {
+			log.warn("Unable to load the auto generation options, they will be loaded when first needed", e);
+		}
 		log.info("Idgen Module Started...");
 	}
 
+	@Override
+	public void willStop() {
+		try {
+			Context.getService(IdentifierSourceService.class).flushQueuedLogEntries();
+		}
+		catch (Exception e) {
+			log.warn("Unable to write queued log entries, they will be written when the module next starts", e);
+		}
+	}
+
 	@Override
 	public void stopped() {
+		Context.getAdministrationService().removeGlobalPropertyListener(getSequentialIdentifierGeneratorProcessor());
+		Context.getAdministrationService().removeGlobalPropertyListener(getLogEntryQueue());
+		Context.getAdministrationService().removeGlobalPropertyListener(getRemoteIdentifierSourceProcessor());
+		Context.getAdministrationService().removeGlobalPropertyListener(getPoolQuantityCounter());
+		getRemoteIdentifierSourceProcessor().shutdown();
 		log.info("Idgen Module Stopped...");
 	}
 
+	private SequentialIdentifierGeneratorProcessor getSequentialIdentifierGeneratorProcessor() {
+		return Context.getRegisteredComponent("sequentialIdentifierGeneratorProcessor", SequentialIdentifierGeneratorProcessor.class);
+	}
+
+	private RemoteIdentifierSourceProcessor getRemoteIdentifierSourceProcessor() {
+		return Context.getRegisteredComponent("remoteIdentifierSourceProcessor", RemoteIdentifierSourceProcessor.class);
+	}
+
+	private LogEntryQueue getLogEntryQueue() {
+		return Context.getRegisteredComponent("idgenLogEntryQueue", LogEntryQueue.class);
+	}
+
+	private PoolQuantityCounter getPoolQuantityCounter() {
+		return Context.getRegisteredComponent("idgenPoolQuantityCounter", PoolQuantityCounter.class);
+	}
+
 	@Override
 	public void setDaemonToken(DaemonToken token) {
 		IdgenTask.setDaemonToken(token);
@@ -21,6 +21,7 @@ import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
 
 /**
  * Useful utility methods
@@ -32,43 +33,20 @@ public class IdgenUtil {
 	/**
 	 * Converts a long to a String given the passed base characters
 	 * @should convert from long to string in base character set
+	 * @see BaseCodec#encode(long, int)
 	 */
 	public static String convertToBase(long n, char[] baseCharacters, int padToLength) {
-    	StringBuilder base = new StringBuilder();
-    	long numInBase = (long)baseCharacters.length;
-    	while (n > 0) {
-    		int index = (int)(n % numInBase);
-    		base.insert(0, baseCharacters[index]);
-    		n = (long)(n / numInBase);
-    	}
-    	while (base.length() < padToLength) {
-    		base.insert(0, baseCharacters[0]);
-    	}
-    	return base.toString();
+		return BaseCodec.forBaseCharacters(new String(baseCharacters)).encode(n, padToLength);
 	}
 	
 	/**
 	 * Converts a String back to an long based on the passed base characters
 	 * @should convert from string in base character set to long
+	 * @should fail for characters not in the base character set
+	 * @see BaseCodec#decode(CharSequence)
 	 */
 	public static long convertFromBase(String s, char[] baseCharacters) {
-		long ret = 0;
-		char[] inputChars = s.toCharArray();
-		long multiplier = 1;
-		for (int i = inputChars.length-1; i>=0; i--) {
-			int index = -1;
-			for (int j=0; j<baseCharacters.length; j++) {
-				if (baseCharacters[j] == inputChars[i]) {
-					index = j;
-				}
-			}
-			if (index == -1) {
-				throw new RuntimeException("Invalid character " + inputChars[i] + " found in " + s);
-			}
-			ret = ret + multiplier * index;
-			multiplier *= baseCharacters.length;
-		}
-		return ret;
+		return BaseCodec.forBaseCharacters(new String(baseCharacters)).decode(s);
 	}
 	
 	/**
@@ -98,4 +76,20 @@ public class IdgenUtil {
 		}
 		return contents;
 	}
-}
+
+	/**
+	 * @return the value of the named global property as an int, or defaultValue if it is not set or not a number
+	 */
+	public static int getGlobalPropertyAsInt(String propertyName, int defaultValue) {
+		String value = Context.getAdministrationService().getGlobalProperty(propertyName);
+		if (value != null && value.trim().length() > 0) {
+			try {
+				return Integer.parseInt(value.trim());
+			}
+			catch (NumberFormatException e) {
+				log.warn("Global property " + propertyName + " should be a number but is: " + value);
+			}
+		}
+		return defaultValue;
+	}
+}
\ No newline at end of file
@@ -13,6 +13,7 @@
  */
 package org.openmrs.module.idgen;
 
+import java.security.SecureRandom;
 import java.util.Date;
 import java.util.UUID;
 
@@ -21,13 +22,16 @@ import org.codehaus.jackson.annotate.JsonIgnoreProperties;
 /**
  * Component which encapsulates an identifier that has been allocated to an Identifier Pool
  */
-@JsonIgnoreProperties("pool")
+@JsonIgnoreProperties({"pool", "claimOrder"})
 public class PooledIdentifier {
+
+	private static final SecureRandom CLAIM_ORDER = new SecureRandom();
 	
 	//***** PROPERTIES *****
 	
     private Integer id;
-    private String uuid;  // Mainly here to support random sorting of pooled identifiers
+    private String uuid;
+    private Integer claimOrder;  // Random position in which identifiers of a non-sequential pool are handed out
     private IdentifierPool pool;
     private String identifier;
     private Date dateUsed;
@@ -40,6 +44,7 @@ public class PooledIdentifier {
      */
     public PooledIdentifier() {
     	this.uuid = UUID.randomUUID().toString();
+    	this.claimOrder = randomClaimOrder();
     }
     
 	/**
@@ -62,6 +67,13 @@ public class PooledIdentifier {
 	
     //***** INSTANCE METHODS *****
 	
+	/**
+	 * @return a random, unpredictable claim order for a newly pooled identifier
+	 */
+	public static int randomClaimOrder() {
+		return CLAIM_ORDER.nextInt(Integer.MAX_VALUE);
+	}
+
 	/**
 	 * Boolean indicating whether this identifier is available
 	 */
@@ -126,6 +138,19 @@ public class PooledIdentifier {
 	public void setUuid(String uuid) {
 		this.uuid = uuid;
 	}
+	/**
+	 * @return the claimOrder
+	 */
+	public Integer getClaimOrder() {
+		return claimOrder;
+	}
+
+	/**
+	 * @param claimOrder the claimOrder to set
+	 */
+	public void setClaimOrder(Integer claimOrder) {
+		this.claimOrder = claimOrder;
+	}
 	/**
 	 * @return the pool
 	 */
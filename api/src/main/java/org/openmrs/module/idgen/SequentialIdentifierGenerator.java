@@ -13,10 +13,9 @@
  */
 package org.openmrs.module.idgen;
 
-import org.apache.commons.lang.StringUtils;
+import org.codehaus.jackson.annotate.JsonIgnore;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.idgen.service.IdentifierSourceService;
-import org.openmrs.patient.IdentifierValidator;
 
 /**
  * Auto-generating Identifier Source, which returns Identifiers in sequence
@@ -42,6 +41,17 @@ public class SequentialIdentifierGenerator extends BaseIdentifierSource {
         return nextSequenceValue != null && nextSequenceValue > 0;
     }
 
+    /**
+     * Returns the sequence value used for the first identifier, before this generator has been initialized
+     */
+    @JsonIgnore
+    public long getInitialSequenceValue() {
+        if (firstIdentifierBase != null) {
+            return IdgenUtil.convertFromBase(firstIdentifierBase, baseCharacterSet.toCharArray());
+        }
+        return 1L;
+    }
+
     /**
      * Returns a new identifier for the given seed.  This does not change the state of the source
      * @param seed the seed to use for generation of the identifier
@@ -51,41 +61,7 @@ public class SequentialIdentifierGenerator extends BaseIdentifierSource {
 	 * @should throw an error if generated identifier is longer than maxLength
      */
     public String getIdentifierForSeed(long seed) {
-
-    	// Convert the next sequence integer into a String with the appropriate Base characters
-		int seqLength = firstIdentifierBase == null ? 1 : firstIdentifierBase.length();
-
-		String identifier = IdgenUtil.convertToBase(seed, baseCharacterSet.toCharArray(), seqLength);
-
-    	// Add optional prefix and suffix
-    	identifier = (prefix == null ? identifier : prefix + identifier);
-    	identifier = (suffix == null ? identifier : identifier + suffix);
-
-    	// Add check-digit, if required
-    	if (getIdentifierType() != null && StringUtils.isNotEmpty(getIdentifierType().getValidator())) {
-    		try {
-	    		Class<?> c = Context.loadClass(getIdentifierType().getValidator());
-	    		IdentifierValidator v = (IdentifierValidator)c.newInstance();
-	    		identifier = v.getValidIdentifier(identifier);
-    		}
-    		catch (Exception e) {
-    			throw new RuntimeException("Error generating check digit with " + getIdentifierType().getValidator(), e);
-    		}
-    	}
-
-		if (this.minLength != null && this.minLength > 0) {
-			if (identifier.length() < this.minLength) {
-				throw new RuntimeException("Invalid configuration for IdentifierSource. Length minimum set to " + this.minLength + " but generated " + identifier);
-			}
-		}
-
-		if (this.maxLength != null && this.maxLength > 0) {
-			if (identifier.length() > this.maxLength) {
-				throw new RuntimeException("Invalid configuration for IdentifierSource. Length maximum set to " + this.maxLength + " but generated " + identifier);
-			}
-		}
-
-    	return identifier;
+        return IdentifierFormatter.forGenerator(this).format(seed);
     }
 
     //***** PROPERTY ACCESS *****
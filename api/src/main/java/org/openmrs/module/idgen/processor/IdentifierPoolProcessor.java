@@ -13,38 +13,87 @@
  */
 package org.openmrs.module.idgen.processor;
 
-import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
 
 import org.openmrs.api.context.Context;
 import org.openmrs.module.idgen.IdentifierPool;
 import org.openmrs.module.idgen.IdentifierSource;
-import org.openmrs.module.idgen.PooledIdentifier;
 import org.openmrs.module.idgen.service.IdentifierSourceService;
 
 /**
- * Evaluates a RemoteIdentifierSource
+ * Evaluates an IdentifierPool
+ *
+ * Identifiers are claimed from the pool with a single locking read and update in the database, so several threads
+ * or servers can draw from the same pool at once without ever being handed the same identifier.
+ *
+ * A pool which is not refilled by the scheduled task is refilled in a daemon thread once it drops below its min
+ * pool size, while identifiers continue to be handed out from what is left.  Only a request which the pool cannot
+ * satisfy waits for the pool to be refilled, by waiting for the refill in flight if there is one, or refilling the
+ * pool itself if there is none.  Refills go through a {@link PoolRefiller}, so each pool has one refill in flight
+ * at most.
+ *
+ * How full the pool is comes from in-memory counts, which do not see claims made by other servers until they are
+ * reconciled.  A claim which finds the pool emptier than the counts said fails with an EmptyIdentifierPoolException,
+ * which rolls back its transaction and so releases the rows its locking read locked.  The pool is only refilled once
+ * that transaction has ended, by {@link IdentifierSourceService#generateIdentifiers(IdentifierSource, Integer, String)},
+ * since the refill inserts rows into the same pool and would wait for those locks.
  */
 public class IdentifierPoolProcessor implements IdentifierSourceProcessor {
 
+	private PoolRefiller poolRefiller = new PoolRefiller();
+
 	/** 
 	 * @see IdentifierSourceProcessor#getIdentifiers(IdentifierSource, int)
+	 * @should refill the pool in the background while enough identifiers are left
+	 * @should wait for the pool to be refilled when too few identifiers are left
+	 * @should fail without refilling the pool when other servers have emptied it
 	 */
-	public synchronized List<String> getIdentifiers(IdentifierSource source, int batchSize) {
+	public List<String> getIdentifiers(IdentifierSource source, int batchSize) {
 		IdentifierPool pool = (IdentifierPool) source;
 		IdentifierSourceService iss = Context.getService(IdentifierSourceService.class);
-        if (!pool.isRefillWithScheduledTask()) {
-		    iss.checkAndRefillIdentifierPool(pool);
-        }
-		List<PooledIdentifier> available = iss.getAvailableIdentifiers(pool, batchSize);
-		List<String> ret = new ArrayList<String>();
-		Date now = new Date();
-		for (PooledIdentifier pi : available) {
-			ret.add(pi.getIdentifier());
-			pi.setDateUsed(now);
+		if (!pool.isRefillWithScheduledTask()) {
+			// refilled before the claim, whose locking read would hold up the rows the refill inserts
+			int available = iss.getQuantityInPool(pool, true, false);
+			if (available < pool.getMinPoolSize()) {
+				if (available < batchSize || !refillInBackground(pool)) {
+					refill(pool);
+				}
+			}
 		}
-		iss.saveIdentifierSource(source);
-		return ret;
+		return iss.claimAvailableIdentifiers(pool, batchSize);
+	}
+
+	/**
+	 * Refills the given pool in the calling thread, or waits for the refill in flight.  Each refill commits in a
+	 * transaction of its own before those waiting for it carry on.
+	 */
+	public void refill(IdentifierPool pool) {
+		if (pool.getId() == null) {
+			Context.getService(IdentifierSourceService.class).checkAndRefillIdentifierPool(pool);
+			return;
+		}
+		poolRefiller.refill(pool.getId());
+	}
+
+	/**
+	 * Refills the given pool in a daemon thread, unless it is already being refilled
+	 * @return false if the pool is not being refilled, because no daemon thread could be started
+	 */
+	private boolean refillInBackground(IdentifierPool pool) {
+		return pool.getId() != null && poolRefiller.refillInBackground(pool.getId());
+	}
+
+	/**
+	 * @return the refiller through which pools are refilled
+	 */
+	public PoolRefiller getPoolRefiller() {
+		return poolRefiller;
+	}
+
+	/**
+	 * @param poolRefiller the refiller through which pools are refilled
+	 */
+	public void setPoolRefiller(PoolRefiller poolRefiller) {
+		this.poolRefiller = poolRefiller;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,150 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.idgen.processor;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.idgen.service.IdentifierSourceService;
+import org.openmrs.module.idgen.task.IdgenTask;
+
+/**
+ * Refills identifier pools with at most one refill of each pool in flight, whether it runs in the background or in
+ * the thread of a request.  A request which needs a pool refilled while it is already being refilled waits for that
+ * refill to finish rather than starting another, and only refills the pool itself if that refill failed.
+ */
+public class PoolRefiller {
+
+	private static Log log = LogFactory.getLog(PoolRefiller.class);
+
+	/**
+	 * The refill in flight for each pool, by pool id
+	 */
+	private final ConcurrentHashMap<Integer, Refill> refills = new ConcurrentHashMap<Integer, Refill>();
+
+	/**
+	 * Refills the pool with the given id in the calling thread, or waits for the refill in flight if there is one
+	 * @should refill the pool in the calling thread if no refill is in flight
+	 * @should wait for the refill in flight instead of starting another
+	 * @should refill the pool itself if the refill it waited for failed
+	 */
+	public void refill(Integer poolId) {
+		while (true) {
+			Refill refill = new Refill();
+			Refill inFlight = refills.putIfAbsent(poolId, refill);
+			if (inFlight == null) {
+				run(poolId, refill);
+				return;
+			}
+			if (inFlight.await()) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Refills the pool with the given id in a daemon thread, unless a refill of it is already in flight
+	 * @return false if the pool is not being refilled, because no daemon thread could be started
+	 * @should refill the pool in the background
+	 * @should not start a refill while one is in flight
+	 */
+	public boolean refillInBackground(final Integer poolId) {
+		final Refill refill = new Refill();
+		if (refills.putIfAbsent(poolId, refill) != null) {
+			return true;
+		}
+		boolean started = runInBackground(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					PoolRefiller.this.run(poolId, refill);
+				}
+				catch (Exception e) {
+					log.warn("Failed to refill identifier pool " + poolId + " in the background", e);
+				}
+			}
+		});
+		if (!started) {
+			refills.remove(poolId, refill);
+			refill.finish(false);
+		}
+		return started;
+	}
+
+	/**
+	 * @return true if a refill of the pool with the given id is in flight
+	 */
+	public boolean isRefilling(Integer poolId) {
+		return refills.containsKey(poolId);
+	}
+
+	private void run(Integer poolId, Refill refill) {
+		boolean succeeded = false;
+		try {
+			doRefill(poolId);
+			succeeded = true;
+		}
+		finally {
+			refills.remove(poolId, refill);
+			refill.finish(succeeded);
+		}
+	}
+
+	/**
+	 * Runs the given refill in a daemon thread with a session of its own
+	 * @return false if it was not run, because the module is not running
+	 */
+	protected boolean runInBackground(Runnable runnable) {
+		return IdgenTask.runInDaemonThread(runnable);
+	}
+
+	/**
+	 * Refills the pool with the given id in a transaction of its own, which has committed once this returns
+	 */
+	protected void doRefill(Integer poolId) {
+		Context.getService(IdentifierSourceService.class).refillIdentifierPoolInternal(poolId);
+	}
+
+	/**
+	 * One refill of a pool, which others may wait for
+	 */
+	private static class Refill {
+
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile boolean succeeded;
+
+		public void finish(boolean succeeded) {
+			this.succeeded = succeeded;
+			done.countDown();
+		}
+
+		/**
+		 * @return true if the refill succeeded
+		 */
+		public boolean await() {
+			try {
+				done.await();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new APIException("Interrupted while waiting for an identifier pool to be refilled", e);
+			}
+			return succeeded;
+		}
+	}
+}
@@ -0,0 +1,329 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.idgen.processor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Identifiers fetched ahead of time from a remote identifier source, waiting to be handed out.
+ *
+ * The buffer is kept in a file as well as in memory, so identifiers already fetched survive a restart.  The file is
+ * a journal which each change is appended to and synced before identifiers are handed out, so an identifier is never
+ * handed out twice, although identifiers taken just before a crash may be lost.  Once the journal has grown well
+ * beyond the identifiers it holds, it is compacted by writing them to a new file which is moved over it.
+ */
+public class RemoteIdentifierBuffer {
+
+	protected Log log = LogFactory.getLog(getClass());
+
+	/**
+	 * First line of a journal, files without it hold one identifier per line as the buffer used to be kept
+	 */
+	private static final String JOURNAL_HEADER = "#journal";
+
+	private static final char ADDED = '+';
+	private static final char PUT_BACK = '<';
+	private static final char TAKEN = '-';
+
+	/**
+	 * The least number of records the journal may hold before it is compacted
+	 */
+	private static final int MIN_COMPACTION_RECORDS = 1000;
+
+	private final File file;
+	private final LinkedList<String> identifiers = new LinkedList<String>();
+	private FileOutputStream journalStream;
+	private Writer journal;
+	private int journalRecords;
+	private boolean refilling = false;
+	private boolean discarded = false;
+
+	/**
+	 * Creates the buffer kept in the given file, loading any identifiers left in it
+	 * @should ignore a record cut short by a crash
+	 * @should restore a compacted file which was not yet moved into place
+	 * @should load a buffer written one identifier per line
+	 */
+	public RemoteIdentifierBuffer(File file) {
+		this.file = file;
+		File temp = getTempFile(file);
+		if (temp.exists()) {
+			// the old file is only deleted once the compacted one has been written in full
+			if (!file.exists() && !temp.renameTo(file)) {
+				throw new RuntimeException("Unable to restore remote identifier buffer " + file + " from " + temp);
+			}
+			temp.delete();
+		}
+		if (file.exists()) {
+			load();
+		}
+	}
+
+	/**
+	 * @return the number of identifiers in the buffer
+	 */
+	public synchronized int size() {
+		return identifiers.size();
+	}
+
+	/**
+	 * Takes up to quantity identifiers from the buffer
+	 * @return the identifiers taken, fewer than quantity if the buffer does not hold as many
+	 * @should take identifiers in the order they were added
+	 * @should keep identifiers across instances
+	 * @should append to the file rather than rewrite it
+	 */
+	public synchronized List<String> take(int quantity) {
+		List<String> ret = new ArrayList<String>(Math.min(quantity, identifiers.size()));
+		while (ret.size() < quantity && !identifiers.isEmpty()) {
+			ret.add(identifiers.removeFirst());
+		}
+		if (!ret.isEmpty()) {
+			append(Character.toString(TAKEN) + ret.size() + "\n", 1);
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns identifiers which were taken but could not be handed out to the front of the buffer
+	 */
+	public synchronized void putBack(List<String> taken) {
+		if (!taken.isEmpty() && !discarded) {
+			identifiers.addAll(0, taken);
+			// replayed one at a time to the front, so the last is recorded first
+			StringBuilder records = new StringBuilder();
+			for (int i = taken.size() - 1; i >= 0; i--) {
+				records.append(PUT_BACK).append(taken.get(i)).append('\n');
+			}
+			append(records.toString(), taken.size());
+		}
+	}
+
+	/**
+	 * Adds newly fetched identifiers to the end of the buffer, unless it has been discarded
+	 */
+	public synchronized void add(List<String> fetched) {
+		if (fetched.isEmpty() || discarded) {
+			return;
+		}
+		identifiers.addAll(fetched);
+		StringBuilder records = new StringBuilder();
+		for (String identifier : fetched) {
+			records.append(ADDED).append(identifier).append('\n');
+		}
+		append(records.toString(), fetched.size());
+	}
+
+	/**
+	 * Empties the buffer and deletes its file; identifiers fetched later, by a refill already in progress, are
+	 * not added to it
+	 * @return the number of identifiers discarded
+	 * @should delete the file and ignore identifiers added afterwards
+	 */
+	public synchronized int discard() {
+		int count = identifiers.size();
+		discarded = true;
+		identifiers.clear();
+		closeJournal();
+		delete(file);
+		return count;
+	}
+
+	/**
+	 * Deletes the file of a buffer, and any compacted file not yet moved over it
+	 */
+	public static void delete(File file) {
+		file.delete();
+		getTempFile(file).delete();
+	}
+
+	/**
+	 * Marks the buffer as being refilled
+	 * @return false if a refill is already in progress
+	 */
+	public synchronized boolean startRefill() {
+		if (refilling) {
+			return false;
+		}
+		refilling = true;
+		return true;
+	}
+
+	/**
+	 * Marks the refill in progress as finished, whether or not it succeeded
+	 */
+	public synchronized void finishRefill() {
+		refilling = false;
+	}
+
+	private static File getTempFile(File file) {
+		return new File(file.getParentFile(), file.getName() + ".tmp");
+	}
+
+	private void load() {
+		String contents = read();
+		// a record cut short by a crash is ignored
+		int end = contents.lastIndexOf('\n');
+		String[] lines = (end < 0 ? new String[0] : contents.substring(0, end).split("\n", -1));
+		boolean isJournal = lines.length > 0 && JOURNAL_HEADER.equals(lines[0]);
+		for (int i = (isJournal ? 1 : 0); i < lines.length; i++) {
+			String line = lines[i];
+			if (line.length() == 0) {
+				continue;
+			}
+			if (!isJournal) {
+				identifiers.add(line);
+			}
+			else if (line.charAt(0) == ADDED) {
+				identifiers.addLast(line.substring(1));
+			}
+			else if (line.charAt(0) == PUT_BACK) {
+				identifiers.addFirst(line.substring(1));
+			}
+			else if (line.charAt(0) == TAKEN) {
+				for (int n = Integer.parseInt(line.substring(1)); n > 0 && !identifiers.isEmpty(); n--) {
+					identifiers.removeFirst();
+				}
+			}
+			journalRecords++;
+		}
+		if (!isJournal) {
+			compact();
+		}
+	}
+
+	private String read() {
+		Reader r = null;
+		try {
+			r = new InputStreamReader(new FileInputStream(file), "UTF-8");
+			StringBuilder sb = new StringBuilder();
+			char[] buffer = new char[8192];
+			for (int n = r.read(buffer); n >= 0; n = r.read(buffer)) {
+				sb.append(buffer, 0, n);
+			}
+			return sb.toString();
+		}
+		catch (IOException e) {
+			throw new RuntimeException("Error reading remote identifier buffer " + file, e);
+		}
+		finally {
+			if (r != null) {
+				try {
+					r.close();
+				}
+				catch (IOException e) {
+					log.warn("Error closing reader: ", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Appends the given records to the journal and syncs it, or compacts the journal instead if it has grown too long
+	 */
+	private void append(String records, int count) {
+		if (discarded) {
+			return;
+		}
+		if (journalRecords > Math.max(MIN_COMPACTION_RECORDS, 2 * identifiers.size())) {
+			compact();
+			return;
+		}
+		try {
+			if (journal == null) {
+				boolean exists = file.exists();
+				journalStream = new FileOutputStream(file, true);
+				journal = new OutputStreamWriter(journalStream, "UTF-8");
+				if (!exists) {
+					journal.write(JOURNAL_HEADER + "\n");
+				}
+			}
+			journal.write(records);
+			journal.flush();
+			journalStream.getFD().sync();
+			journalRecords += count;
+		}
+		catch (IOException e) {
+			closeJournal();
+			throw new RuntimeException("Error writing remote identifier buffer " + file, e);
+		}
+	}
+
+	/**
+	 * Writes the identifiers in the buffer to a new journal and moves it over the old one.  Where the old file cannot
+	 * be replaced in one step it is deleted first, and the new file is moved into place when the buffer is next loaded.
+	 */
+	private void compact() {
+		closeJournal();
+		File temp = getTempFile(file);
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(temp);
+			Writer w = new OutputStreamWriter(out, "UTF-8");
+			w.write(JOURNAL_HEADER + "\n");
+			for (String identifier : identifiers) {
+				w.write(ADDED);
+				w.write(identifier);
+				w.write('\n');
+			}
+			w.flush();
+			out.getFD().sync();
+			out.close();
+			out = null;
+			if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+				throw new IOException("Unable to replace " + file);
+			}
+			journalRecords = identifiers.size();
+		}
+		catch (IOException e) {
+			throw new RuntimeException("Error writing remote identifier buffer " + file, e);
+		}
+		finally {
+			if (out != null) {
+				try {
+					out.close();
+				}
+				catch (IOException e) {
+					log.warn("Error closing writer: ", e);
+				}
+			}
+		}
+	}
+
+	private void closeJournal() {
+		if (journal != null) {
+			try {
+				journal.close();
+			}
+			catch (IOException e) {
+				log.warn("Error closing remote identifier buffer " + file, e);
+			}
+			journal = null;
+			journalStream = null;
+		}
+	}
+}
@@ -13,9 +13,13 @@
  */
 package org.openmrs.module.idgen.processor;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
@@ -25,47 +29,157 @@ import org.apache.http.NameValuePair;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.DecompressingHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
 import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
-import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.JsonProcessingException;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.idgen.IdentifierImportReader;
 import org.openmrs.module.idgen.IdentifierSource;
+import org.openmrs.module.idgen.IdgenConstants;
+import org.openmrs.module.idgen.IdgenUtil;
 import org.openmrs.module.idgen.RemoteIdentifierSource;
-import org.openmrs.module.idgen.RemoteIdentifiersMessage;
+import org.openmrs.module.idgen.task.IdgenTask;
+import org.openmrs.util.OpenmrsUtil;
 
 /**
  * Evaluates a RemoteIdentifierSource
- * By default, this expects an HTTP request to return a comma-separated String of identifiers.
- * This can be overridden in subclasses as needed
+ * By default, this expects an HTTP request to return a {@link org.openmrs.module.idgen.RemoteIdentifiersMessage} in JSON,
+ * which is parsed as it is received.  This can be overridden in subclasses as needed
+ *
+ * Each remote source is fetched from with an HTTP client of its own, which keeps connections to the server open
+ * between requests so that a fetch does not pay for connection setup.  The clients are configured by the
+ * idgen.remote* global properties, are replaced when any of those change, and are shut down with the module.  A
+ * replaced client is not shut down until the requests it is serving have completed, so that they are not aborted.
+ * The client of a source is retired in the same way when the source is saved, retired or purged, so that clients
+ * are not kept for sources which are no longer used, or which now point at another server.
+ *
+ * If the {@link IdgenConstants#GP_REMOTE_PREFETCH_HIGH_WATER} global property is greater than 0, identifiers of
+ * saved sources are fetched ahead of time into a {@link RemoteIdentifierBuffer} and handed out from it.  Whenever
+ * the buffer drops to {@link IdgenConstants#GP_REMOTE_PREFETCH_LOW_WATER} it is topped up in the background, so
+ * identifiers can be handed out without waiting for the remote server, or while it cannot be reached.  Identifiers
+ * left in the buffer when prefetching is switched off are handed out before any more are fetched, and the buffer of
+ * a source is discarded when the source is saved, retired or purged.
  */
-public class RemoteIdentifierSourceProcessor implements IdentifierSourceProcessor {
+public class RemoteIdentifierSourceProcessor implements IdentifierSourceProcessor, GlobalPropertyListener {
 
     private static Log log = LogFactory.getLog(RemoteIdentifierSourceProcessor.class);
+
+    /**
+     * Key of the client shared by sources which have not been saved
+     */
+    private static final Integer UNSAVED_SOURCE = -1;
+
+    /**
+     * Pooled clients, by id of the remote source they connect to
+     */
+    private ConcurrentHashMap<Integer, PooledClient> clients = new ConcurrentHashMap<Integer, PooledClient>();
+
+    /**
+     * Prefetched identifiers, by id of the remote source they were fetched from
+     */
+    private ConcurrentHashMap<Integer, RemoteIdentifierBuffer> buffers = new ConcurrentHashMap<Integer, RemoteIdentifierBuffer>();
+
+    private File bufferDirectory;
+
+    /**
+     * Cached values of the prefetch global properties, reset whenever those global properties change
+     */
+    private volatile Integer prefetchHighWater;
+    private volatile Integer prefetchLowWater;
+
     /**
      * @see IdentifierSourceProcessor#getIdentifiers(IdentifierSource, int)
      */
     @Override
     public List<String> getIdentifiers(IdentifierSource source, int batchSize) {
         RemoteIdentifierSource remoteIdentifierSource = (RemoteIdentifierSource) source;
-        String response;
-        try {
-            response = doHttpPost(remoteIdentifierSource, batchSize);
+        boolean prefetch = getPrefetchHighWater() > 0;
+        RemoteIdentifierBuffer buffer = (source.getId() == null ? null : getBuffer(remoteIdentifierSource, prefetch));
+        if (buffer == null) {
+            return fetchIdentifiers(remoteIdentifierSource, batchSize);
         }
-        catch (IOException ex) {
-            throw new RuntimeException(ex);
+
+        List<String> identifiers = buffer.take(batchSize);
+        if (identifiers.size() < batchSize) {
+            try {
+                identifiers.addAll(fetchIdentifiers(remoteIdentifierSource, batchSize - identifiers.size()));
+            }
+            catch (RuntimeException e) {
+                buffer.putBack(identifiers);
+                throw e;
+            }
+        }
+        if (!prefetch) {
+            // what was prefetched before prefetching was switched off has now been handed out
+            if (buffer.size() == 0) {
+                discardBuffer(source.getId());
+            }
         }
-        
+        else if (buffer.size() <= getPrefetchLowWater()) {
+            refillInBackground(remoteIdentifierSource, buffer);
+        }
+        return identifiers;
+    }
+
+    /**
+     * Fetches identifiers from the remote server of the given source
+     */
+    protected List<String> fetchIdentifiers(RemoteIdentifierSource remoteIdentifierSource, int batchSize) {
+        final List<String> identifiers = new ArrayList<String>(batchSize);
+        fetchIdentifiers(remoteIdentifierSource, batchSize, batchSize, new IdentifierImportReader.ChunkHandler() {
+            @Override
+            public void handle(List<String> chunk) {
+                identifiers.addAll(chunk);
+            }
+        });
+        return identifiers;
+    }
+
+    /**
+     * Fetches identifiers from the remote server of the given source, parsing the response as it arrives and
+     * handing the identifiers to the handler a chunk at a time, so the response is never held in memory as a whole
+     * @param source the source to fetch from
+     * @param batchSize the number of identifiers to fetch
+     * @param chunkSize the maximum number of identifiers handed to the handler at once
+     * @param handler the handler receiving the identifiers
+     */
+    public void fetchIdentifiers(RemoteIdentifierSource source, int batchSize, final int chunkSize, final IdentifierImportReader.ChunkHandler handler) {
         try {
-        	ObjectMapper mapper = new ObjectMapper();
-        	RemoteIdentifiersMessage message = mapper.readValue(response, RemoteIdentifiersMessage.class);
-        	return message.getIdentifiers();
+            doHttpPost(source, batchSize, new ResponseReader() {
+                @Override
+                public void read(InputStream content) throws IOException {
+                    IdentifierImportReader.readJson(content, chunkSize, handler);
+                }
+            });
+        }
+        catch (JsonProcessingException ex) {
+            throw new RuntimeException("Unexpected response from " + source.getUrl(), ex);
         }
         catch (IOException ex) {
-        	throw new RuntimeException("Unexpected response: " + response, ex);
+            throw new RuntimeException(ex);
         }
     }
 
-    protected String doHttpPost(RemoteIdentifierSource source, int batchSize) throws IOException {
+    /**
+     * Reads the content of a successful response
+     */
+    protected interface ResponseReader {
+        void read(InputStream content) throws IOException;
+    }
+
+    /**
+     * Posts a request for identifiers to the remote server of the given source and hands the content of the response
+     * to the reader as it arrives
+     */
+    protected void doHttpPost(RemoteIdentifierSource source, int batchSize, ResponseReader reader) throws IOException {
         List<NameValuePair> nameValuePairs = new ArrayList<NameValuePair>();
         nameValuePairs.add(new BasicNameValuePair("numberToGenerate", Integer.toString(batchSize)));
         if (StringUtils.isNotBlank(source.getUser())) {
@@ -76,26 +190,326 @@ public class RemoteIdentifierSourceProcessor implements IdentifierSourceProcesso
         HttpPost post = new HttpPost(source.getUrl());
         post.setEntity(new UrlEncodedFormEntity(nameValuePairs, "UTF-8"));
 
-        HttpClient client = new DefaultHttpClient();
-        HttpResponse httpResponse;
-        String responseText;
-        Integer statusCode;
+        PooledClient client = acquireClient(source);
 
         try {
-            httpResponse = client.execute(post);
-            responseText = EntityUtils.toString(httpResponse.getEntity());
-            statusCode = httpResponse.getStatusLine().getStatusCode();
+            HttpResponse httpResponse = client.httpClient.execute(post);
+            if (httpResponse.getStatusLine().getStatusCode() != 200) {
+                throw new IOException("Unexpected response: " + httpResponse.getStatusLine().getStatusCode() + " " + httpResponse.getStatusLine().getReasonPhrase() + "\n" + EntityUtils.toString(httpResponse.getEntity()));
+            }
+            InputStream content = httpResponse.getEntity().getContent();
+            try {
+                reader.read(content);
+            }
+            finally {
+                // closing the content reads it to the end, which hands the connection back to the pool to be reused
+                content.close();
+            }
         }
         finally {
             // always release the connection!
             post.releaseConnection();
+            client.release();
+        }
+    }
+
+    /**
+     * Tops up the given buffer to the high water mark in a daemon thread, unless it is already being topped up
+     */
+    private void refillInBackground(RemoteIdentifierSource source, final RemoteIdentifierBuffer buffer) {
+        if (!buffer.startRefill()) {
+            return;
+        }
+        // the daemon thread has a session of its own, so it is given a copy of the source which is not attached to ours
+        final RemoteIdentifierSource detached = new RemoteIdentifierSource();
+        detached.setId(source.getId());
+        detached.setName(source.getName());
+        detached.setUrl(source.getUrl());
+        detached.setUser(source.getUser());
+        detached.setPassword(source.getPassword());
+        final int highWater = getPrefetchHighWater();
+        boolean started = IdgenTask.runInDaemonThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int needed = highWater - buffer.size();
+                    if (needed > 0) {
+                        buffer.add(fetchIdentifiers(detached, needed));
+                    }
+                }
+                catch (Exception e) {
+                    log.warn("Unable to prefetch identifiers from " + detached.getUrl() + ", will retry when more are needed", e);
+                }
+                finally {
+                    buffer.finishRefill();
+                }
+            }
+        });
+        if (!started) {
+            buffer.finishRefill();
+        }
+    }
+
+    /**
+     * @param create whether to create the buffer if the source has none
+     * @return the buffer of the given source, or null if it has none and none is to be created
+     */
+    private RemoteIdentifierBuffer getBuffer(RemoteIdentifierSource source, boolean create) {
+        RemoteIdentifierBuffer buffer = buffers.get(source.getId());
+        if (buffer == null) {
+            synchronized (buffers) {
+                buffer = buffers.get(source.getId());
+                if (buffer == null) {
+                    File file = getBufferFile(source.getId());
+                    if (!create && !file.exists()) {
+                        return null;
+                    }
+                    buffer = new RemoteIdentifierBuffer(file);
+                    buffers.put(source.getId(), buffer);
+                }
+            }
+        }
+        return buffer;
+    }
+
+    private File getBufferFile(Integer sourceId) {
+        return new File(getBufferDirectory(), "remote-identifiers-" + sourceId + ".buffer");
+    }
+
+    /**
+     * Discards the identifiers prefetched from the source with the given id and deletes its buffer, so that
+     * identifiers fetched with a previous configuration of the source are not handed out
+     */
+    public void discardBuffer(Integer sourceId) {
+        if (sourceId == null) {
+            return;
+        }
+        synchronized (buffers) {
+            RemoteIdentifierBuffer buffer = buffers.remove(sourceId);
+            if (buffer != null) {
+                int discarded = buffer.discard();
+                if (discarded > 0) {
+                    log.info("Discarded " + discarded + " identifiers prefetched from remote source " + sourceId);
+                }
+            }
+            else {
+                RemoteIdentifierBuffer.delete(getBufferFile(sourceId));
+            }
+        }
+    }
+
+    /**
+     * Discards what is kept for the source with the given id once it has been saved, retired or purged: the
+     * identifiers prefetched from it, and its pooled client, which is shut down once the requests it is serving have
+     * completed
+     */
+    public void discardSource(Integer sourceId) {
+        if (sourceId == null) {
+            return;
+        }
+        discardBuffer(sourceId);
+        retireClient(sourceId);
+    }
+
+    /**
+     * @return the number of identifiers to keep prefetched, read from the global property the first time it is needed
+     */
+    public int getPrefetchHighWater() {
+        if (prefetchHighWater == null) {
+            prefetchHighWater = IdgenUtil.getGlobalPropertyAsInt(IdgenConstants.GP_REMOTE_PREFETCH_HIGH_WATER, 0);
         }
+        return prefetchHighWater;
+    }
 
-        if (statusCode != 200) {
-            throw new IOException("Unexpected response: " + httpResponse.getStatusLine().getStatusCode() + " " + httpResponse.getStatusLine().getReasonPhrase() + "\n" + responseText);
+    /**
+     * @return the number of prefetched identifiers below which more are fetched
+     */
+    public int getPrefetchLowWater() {
+        if (prefetchLowWater == null) {
+            prefetchLowWater = IdgenUtil.getGlobalPropertyAsInt(IdgenConstants.GP_REMOTE_PREFETCH_LOW_WATER, 0);
         }
+        return prefetchLowWater;
+    }
 
-        return responseText;
+    private File getBufferDirectory() {
+        if (bufferDirectory == null) {
+            bufferDirectory = OpenmrsUtil.getDirectoryInApplicationDataDirectory("idgen");
+        }
+        return bufferDirectory;
     }
 
-}
\ No newline at end of file
+    /**
+     * @param bufferDirectory the directory to keep prefetched identifiers in, defaults to idgen in the application data directory
+     */
+    public void setBufferDirectory(File bufferDirectory) {
+        this.bufferDirectory = bufferDirectory;
+    }
+
+    /**
+     * @return the pooled client for the given source, created the first time the source is fetched from, which is
+     * not shut down until it is released
+     */
+    private PooledClient acquireClient(RemoteIdentifierSource source) {
+        Integer key = (source.getId() == null ? UNSAVED_SOURCE : source.getId());
+        while (true) {
+            PooledClient client = clients.get(key);
+            if (client == null) {
+                client = new PooledClient();
+                PooledClient existing = clients.putIfAbsent(key, client);
+                if (existing != null) {
+                    client.shutdown();
+                    client = existing;
+                }
+            }
+            if (client.acquire()) {
+                // connections the server has closed since they were last used would fail the request
+                client.connectionManager.closeExpiredConnections();
+                return client;
+            }
+            // replaced since it was looked up
+            clients.remove(key, client);
+        }
+    }
+
+    /**
+     * Closes the connections of all pooled clients, aborting any request in progress; clients are created again as
+     * they are next needed
+     */
+    public void shutdown() {
+        for (Integer key : new ArrayList<Integer>(clients.keySet())) {
+            PooledClient client = clients.remove(key);
+            if (client != null) {
+                client.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Replaces all pooled clients with clients created as they are next needed.  The idle connections of the replaced
+     * clients are closed now, and each is shut down once the requests it is serving have completed.
+     */
+    private void replaceClients() {
+        for (Integer key : new ArrayList<Integer>(clients.keySet())) {
+            retireClient(key);
+        }
+    }
+
+    /**
+     * Removes the pooled client with the given key, so that one is created again as it is next needed, and shuts it
+     * down once the requests it is serving have completed
+     */
+    private void retireClient(Integer key) {
+        PooledClient client = clients.remove(key);
+        if (client != null) {
+            client.retire();
+        }
+    }
+
+    /**
+     * @see GlobalPropertyListener#supportsPropertyName(String)
+     */
+    @Override
+    public boolean supportsPropertyName(String propertyName) {
+        return IdgenConstants.GP_REMOTE_MAX_CONNECTIONS.equals(propertyName)
+                || IdgenConstants.GP_REMOTE_CONNECT_TIMEOUT.equals(propertyName)
+                || IdgenConstants.GP_REMOTE_READ_TIMEOUT.equals(propertyName)
+                || IdgenConstants.GP_REMOTE_KEEP_ALIVE.equals(propertyName)
+                || IdgenConstants.GP_REMOTE_GZIP.equals(propertyName)
+                || IdgenConstants.GP_REMOTE_PREFETCH_HIGH_WATER.equals(propertyName)
+                || IdgenConstants.GP_REMOTE_PREFETCH_LOW_WATER.equals(propertyName);
+    }
+
+    /**
+     * @see GlobalPropertyListener#globalPropertyChanged(GlobalProperty)
+     */
+    @Override
+    public void globalPropertyChanged(GlobalProperty newValue) {
+        globalPropertyDeleted(newValue.getProperty());
+    }
+
+    /**
+     * @see GlobalPropertyListener#globalPropertyDeleted(String)
+     */
+    @Override
+    public void globalPropertyDeleted(String propertyName) {
+        if (IdgenConstants.GP_REMOTE_PREFETCH_HIGH_WATER.equals(propertyName) || IdgenConstants.GP_REMOTE_PREFETCH_LOW_WATER.equals(propertyName)) {
+            prefetchHighWater = null;
+            prefetchLowWater = null;
+        }
+        else {
+            replaceClients();
+        }
+    }
+
+    /**
+     * An HTTP client with its own pool of keep-alive connections, configured from the global properties
+     */
+    private static class PooledClient {
+
+        private PoolingClientConnectionManager connectionManager;
+        private HttpClient httpClient;
+
+        /**
+         * The number of requests being served, and whether the client has been replaced and is to be shut down once
+         * there are none
+         */
+        private int inUse;
+        private boolean retired;
+
+        public PooledClient() {
+            int maxConnections = Math.max(1, IdgenUtil.getGlobalPropertyAsInt(IdgenConstants.GP_REMOTE_MAX_CONNECTIONS, 2));
+            final int keepAlive = IdgenUtil.getGlobalPropertyAsInt(IdgenConstants.GP_REMOTE_KEEP_ALIVE, 30000);
+            boolean gzip = !"false".equalsIgnoreCase(Context.getAdministrationService().getGlobalProperty(IdgenConstants.GP_REMOTE_GZIP));
+
+            connectionManager = new PoolingClientConnectionManager();
+            connectionManager.setMaxTotal(maxConnections);
+            connectionManager.setDefaultMaxPerRoute(maxConnections);
+
+            DefaultHttpClient client = new DefaultHttpClient(connectionManager);
+            HttpConnectionParams.setConnectionTimeout(client.getParams(), IdgenUtil.getGlobalPropertyAsInt(IdgenConstants.GP_REMOTE_CONNECT_TIMEOUT, 10000));
+            HttpConnectionParams.setSoTimeout(client.getParams(), IdgenUtil.getGlobalPropertyAsInt(IdgenConstants.GP_REMOTE_READ_TIMEOUT, 60000));
+            client.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+                @Override
+                public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                    long duration = super.getKeepAliveDuration(response, context);
+                    return duration > 0 ? Math.min(duration, keepAlive) : keepAlive;
+                }
+            });
+            httpClient = gzip ? new DecompressingHttpClient(client) : client;
+        }
+
+        /**
+         * @return true if the client may be used for a request, which must then be released, or false if it has been
+         * replaced
+         */
+        public synchronized boolean acquire() {
+            if (retired) {
+                return false;
+            }
+            inUse++;
+            return true;
+        }
+
+        public synchronized void release() {
+            inUse--;
+            if (retired && inUse == 0) {
+                shutdown();
+            }
+        }
+
+        /**
+         * Closes the idle connections now, and shuts the client down once no request is using it
+         */
+        public synchronized void retire() {
+            retired = true;
+            connectionManager.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+            if (inUse == 0) {
+                shutdown();
+            }
+        }
+
+        public void shutdown() {
+            connectionManager.shutdown();
+        }
+    }
+}
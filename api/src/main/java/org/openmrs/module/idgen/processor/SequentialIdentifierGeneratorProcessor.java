@@ -13,24 +13,37 @@
  */
 package org.openmrs.module.idgen.processor;
 
-import org.openmrs.api.context.Context;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.module.idgen.BaseCodec;
+import org.openmrs.module.idgen.IdentifierFormatter;
 import org.openmrs.module.idgen.IdentifierSource;
+import org.openmrs.module.idgen.IdgenConstants;
 import org.openmrs.module.idgen.IdgenUtil;
 import org.openmrs.module.idgen.SequentialIdentifierGenerator;
 import org.openmrs.module.idgen.service.IdentifierSourceService;
-import org.springframework.beans.factory.annotation.Autowired;
+import org.openmrs.module.idgen.service.ReservedIdentifierIndex;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
 
 /**
  * Evaluates a SequentialIdentifierSource
+ *
+ * If the {@link IdgenConstants#GP_SEQUENCE_BLOCK_SIZE} global property is greater than 1, the service hands out the
+ * identifiers of saved generators through an {@link org.openmrs.module.idgen.service.IdentifierDispenser}, which
+ * reserves sequence values from the database in blocks of that size (hi/lo allocation) and hands them out from memory.
+ * This processor holds that setting, and otherwise advances the persisted sequence value for every batch.
  */
-public class SequentialIdentifierGeneratorProcessor implements IdentifierSourceProcessor {
+public class SequentialIdentifierGeneratorProcessor implements IdentifierSourceProcessor, GlobalPropertyListener {
 
     private IdentifierSourceService identifierSourceService;
 
+    /**
+     * Cached value of the block size global property, reset whenever that global property changes
+     */
+    private volatile Integer blockSize;
+
     /**
      * @param identifierSourceService
      */
@@ -42,33 +55,64 @@ public class SequentialIdentifierGeneratorProcessor implements IdentifierSourceP
 	 * @see IdentifierSourceProcessor#getIdentifiers(IdentifierSource, int)
 	 */
 	public synchronized List<String> getIdentifiers(IdentifierSource source, int batchSize) {
-		
+
 		SequentialIdentifierGenerator seq = (SequentialIdentifierGenerator) source;
+    	ReservedIdentifierIndex reservedIdentifiers = identifierSourceService.getReservedIdentifierIndex(source);
+    	List<String> identifiers = new ArrayList<String>();
+
         Long sequenceValue = identifierSourceService.getSequenceValue(seq);
     	if (sequenceValue == null || sequenceValue < 0) {
-    		if (seq.getFirstIdentifierBase() != null) {
-    			sequenceValue = IdgenUtil.convertFromBase(seq.getFirstIdentifierBase(), seq.getBaseCharacterSet().toCharArray());
-    		}
-    		else {
-    			sequenceValue = 1L;
-    		}
+    		sequenceValue = seq.getInitialSequenceValue();
     	}
 
-    	Set<String> reservedIdentifiers = source.getReservedIdentifiers();
-    	
-    	List<String> identifiers = new ArrayList<String>();
-    	
+    	// consecutive seeds are formatted by incrementing the digits of the previous one in place
+    	IdentifierFormatter formatter = IdentifierFormatter.forGenerator(seq);
+    	BaseCodec.Counter counter = formatter.counter(sequenceValue);
     	for (int i=0; i<batchSize;) {
-    		String val = seq.getIdentifierForSeed(sequenceValue);
+    		String val = formatter.format(counter);
     		if (!reservedIdentifiers.contains(val)) {
     			identifiers.add(val);
     			i++;
     		}
-	    	sequenceValue++;
     	}
+    	sequenceValue = counter.getValue();
 
         identifierSourceService.saveSequenceValue(seq, sequenceValue);
 
     	return identifiers;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * @return the configured block size, read from the global property the first time it is needed
+	 */
+	public int getBlockSize() {
+		if (blockSize == null) {
+			blockSize = IdgenUtil.getGlobalPropertyAsInt(IdgenConstants.GP_SEQUENCE_BLOCK_SIZE, 0);
+		}
+		return blockSize;
+	}
+
+	/**
+	 * @see GlobalPropertyListener#supportsPropertyName(String)
+	 */
+	@Override
+	public boolean supportsPropertyName(String propertyName) {
+		return IdgenConstants.GP_SEQUENCE_BLOCK_SIZE.equals(propertyName);
+	}
+
+	/**
+	 * @see GlobalPropertyListener#globalPropertyChanged(GlobalProperty)
+	 */
+	@Override
+	public void globalPropertyChanged(GlobalProperty newValue) {
+		blockSize = null;
+	}
+
+	/**
+	 * @see GlobalPropertyListener#globalPropertyDeleted(String)
+	 */
+	@Override
+	public void globalPropertyDeleted(String propertyName) {
+		blockSize = null;
+	}
+}
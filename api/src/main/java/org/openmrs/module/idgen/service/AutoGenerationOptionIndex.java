@@ -0,0 +1,129 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.idgen.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.ObjectUtils;
+
+/**
+ * Immutable lookup of the auto generation options of each identifier type and location.  It holds ids and flags
+ * rather than Hibernate-managed objects, so it can be shared between threads and sessions.
+ */
+public class AutoGenerationOptionIndex {
+
+	private final Map<Integer, List<Entry>> entriesByType = new HashMap<Integer, List<Entry>>();
+
+	private final long expiresAt;
+
+	/**
+	 * @param entries the entries of all auto generation options
+	 * @param expiresAt the time in milliseconds after which the options must be loaded again, to see those changed by
+	 * other servers
+	 */
+	public AutoGenerationOptionIndex(Collection<Entry> entries, long expiresAt) {
+		for (Entry entry : entries) {
+			List<Entry> entriesOfType = entriesByType.get(entry.getIdentifierTypeId());
+			if (entriesOfType == null) {
+				entriesOfType = new ArrayList<Entry>();
+				entriesByType.put(entry.getIdentifierTypeId(), entriesOfType);
+			}
+			entriesOfType.add(entry);
+		}
+		this.expiresAt = expiresAt;
+	}
+
+	/**
+	 * @return whether the options must be loaded again at the given time
+	 * @should expire once the given expiry time has passed
+	 */
+	public boolean isExpired(long now) {
+		return now >= expiresAt;
+	}
+
+	/**
+	 * @return the options of the given identifier type, whatever their location
+	 */
+	public List<Entry> getEntries(Integer identifierTypeId) {
+		List<Entry> entries = entriesByType.get(identifierTypeId);
+		return entries == null ? Collections.<Entry>emptyList() : Collections.unmodifiableList(entries);
+	}
+
+	/**
+	 * @return the options of the given identifier type which apply at the given location, being those for that location
+	 * and those for no location in particular
+	 * @should return the options for the location and those for no location
+	 */
+	public List<Entry> getEntries(Integer identifierTypeId, Integer locationId) {
+		List<Entry> ret = new ArrayList<Entry>();
+		for (Entry entry : getEntries(identifierTypeId)) {
+			if (entry.getLocationId() == null || (locationId != null && ObjectUtils.equals(locationId, entry.getLocationId()))) {
+				ret.add(entry);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * The ids and flags of one auto generation option
+	 */
+	public static class Entry {
+
+		private final Integer optionId;
+		private final Integer identifierTypeId;
+		private final Integer locationId;
+		private final Integer sourceId;
+		private final boolean manualEntryEnabled;
+		private final boolean automaticGenerationEnabled;
+
+		public Entry(Integer optionId, Integer identifierTypeId, Integer locationId, Integer sourceId,
+		             boolean manualEntryEnabled, boolean automaticGenerationEnabled) {
+			this.optionId = optionId;
+			this.identifierTypeId = identifierTypeId;
+			this.locationId = locationId;
+			this.sourceId = sourceId;
+			this.manualEntryEnabled = manualEntryEnabled;
+			this.automaticGenerationEnabled = automaticGenerationEnabled;
+		}
+
+		public Integer getOptionId() {
+			return optionId;
+		}
+
+		public Integer getIdentifierTypeId() {
+			return identifierTypeId;
+		}
+
+		public Integer getLocationId() {
+			return locationId;
+		}
+
+		public Integer getSourceId() {
+			return sourceId;
+		}
+
+		public boolean isManualEntryEnabled() {
+			return manualEntryEnabled;
+		}
+
+		public boolean isAutomaticGenerationEnabled() {
+			return automaticGenerationEnabled;
+		}
+	}
+}
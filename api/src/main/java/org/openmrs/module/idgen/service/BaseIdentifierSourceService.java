@@ -22,25 +22,43 @@ import org.openmrs.api.APIException;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.impl.BaseOpenmrsService;
 import org.openmrs.module.idgen.AutoGenerationOption;
+import org.openmrs.module.idgen.BaseCodec;
+import org.openmrs.module.idgen.EmptyIdentifierPoolException;
+import org.openmrs.module.idgen.IdentifierFormatter;
+import org.openmrs.module.idgen.IdentifierImportReader;
 import org.openmrs.module.idgen.IdentifierPool;
+import org.openmrs.module.idgen.IdentifierRange;
 import org.openmrs.module.idgen.IdentifierSource;
+import org.openmrs.module.idgen.IdentifierSourceSummary;
+import org.openmrs.module.idgen.IdgenConstants;
+import org.openmrs.module.idgen.IdgenUtil;
 import org.openmrs.module.idgen.LogEntry;
 import org.openmrs.module.idgen.PooledIdentifier;
 import org.openmrs.module.idgen.RemoteIdentifierSource;
 import org.openmrs.module.idgen.SequentialIdentifierGenerator;
+import org.openmrs.module.idgen.processor.IdentifierPoolProcessor;
 import org.openmrs.module.idgen.processor.IdentifierSourceProcessor;
+import org.openmrs.module.idgen.processor.RemoteIdentifierSourceProcessor;
+import org.openmrs.module.idgen.processor.SequentialIdentifierGeneratorProcessor;
 import org.openmrs.module.idgen.service.db.IdentifierSourceDAO;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  *  Base Implementation of the IdentifierSourceService API
@@ -49,6 +67,11 @@ import java.util.concurrent.ConcurrentHashMap;
 public class BaseIdentifierSourceService extends BaseOpenmrsService implements IdentifierSourceService {
 	
 	protected Log log = LogFactory.getLog(getClass());
+
+	/**
+	 * The number of identifiers of a range, or fetched into a pool, logged at a time
+	 */
+	private static final int CHUNK_SIZE = 1000;
 	
 	/**
 	 * Registry of Processors for Identifier Sources
@@ -59,10 +82,55 @@ public class BaseIdentifierSourceService extends BaseOpenmrsService implements I
      * A map from the id of an identifier source, to an object we can lock on for that identifier source
      */
     private ConcurrentHashMap<Integer, Object> syncLocks = new ConcurrentHashMap<Integer, Object>();
+
+    /**
+     * A map from the id of an identifier source, to the dispenser handing out its pre-generated identifiers
+     */
+    private ConcurrentHashMap<Integer, IdentifierDispenser> dispensers = new ConcurrentHashMap<Integer, IdentifierDispenser>();
+
+    /**
+     * A map from the id of an identifier source, to the lookup of its reserved identifiers
+     */
+    private ConcurrentHashMap<Integer, ReservedIdentifierIndex> reservedIdentifierIndexes = new ConcurrentHashMap<Integer, ReservedIdentifierIndex>();
+
+    /**
+     * Incremented whenever the reserved identifiers of a source are saved, so that a lookup loaded before then is not kept
+     */
+    private final AtomicInteger reservedIdentifierVersion = new AtomicInteger();
+
+    /**
+     * Key under which the current transaction holds the sources whose reserved identifiers it has changed
+     */
+    private final Object reservedIdentifierIndexKey = new Object();
+
+    /**
+     * Recent rate of claims from each pool, weighting claims of the last quarter of an hour the most
+     */
+    private PoolConsumptionMeter consumptionMeter = new PoolConsumptionMeter(15 * 60 * 1000);
+
+    /**
+     * Lookup of the auto generation options of each identifier type, loaded when the module starts or on first use,
+     * loaded again once it expires, and discarded whenever an option is saved or purged
+     */
+    private volatile AutoGenerationOptionIndex autoGenerationOptionIndex;
+
+    /**
+     * Incremented whenever an option is saved or purged, so that an index loaded before then is not kept
+     */
+    private final AtomicInteger autoGenerationOptionVersion = new AtomicInteger();
+
+    /**
+     * Key under which the current transaction holds the index it loaded or discarded, until it completes
+     */
+    private final Object autoGenerationOptionIndexKey = new Object();
 	
 	//***** PROPERTIES *****
 	
 	private IdentifierSourceDAO dao = null;
+
+	private LogEntryQueue logEntryQueue = null;
+
+	private PoolQuantityCounter poolQuantityCounter = null;
 	
 	//***** INSTANCE METHODS *****
 	
@@ -109,6 +177,45 @@ public class BaseIdentifierSourceService extends BaseOpenmrsService implements I
 		return m;
 	}
 
+	/**
+	 * @see IdentifierSourceService#getIdentifierSourceSummaries(boolean)
+	 */
+	@Transactional(readOnly = true)
+	public List<IdentifierSourceSummary> getIdentifierSourceSummaries(boolean includeRetired) throws APIException {
+		List<IdentifierSourceSummary> ret = new ArrayList<IdentifierSourceSummary>();
+		for (Class<? extends IdentifierSource> type : getIdentifierSourceTypes()) {
+			ret.addAll(dao.getIdentifierSourceSummaries(type, includeRetired));
+		}
+		Collections.sort(ret, new Comparator<IdentifierSourceSummary>() {
+			public int compare(IdentifierSourceSummary s1, IdentifierSourceSummary s2) {
+				int c = String.CASE_INSENSITIVE_ORDER.compare(s1.getName(), s2.getName());
+				return c != 0 ? c : s1.getId().compareTo(s2.getId());
+			}
+		});
+		return ret;
+	}
+
+	/**
+	 * @see IdentifierSourceService#getIdentifierSourceSummariesByType(boolean)
+	 */
+	@Transactional(readOnly = true)
+	public Map<PatientIdentifierType, List<IdentifierSourceSummary>> getIdentifierSourceSummariesByType(boolean includeRetired) throws APIException {
+		Map<PatientIdentifierType, List<IdentifierSourceSummary>> m = new LinkedHashMap<PatientIdentifierType, List<IdentifierSourceSummary>>();
+		Map<Integer, List<IdentifierSourceSummary>> byTypeId = new HashMap<Integer, List<IdentifierSourceSummary>>();
+		for (PatientIdentifierType t : Context.getPatientService().getAllPatientIdentifierTypes()) {
+			List<IdentifierSourceSummary> l = new ArrayList<IdentifierSourceSummary>();
+			m.put(t, l);
+			byTypeId.put(t.getPatientIdentifierTypeId(), l);
+		}
+		for (IdentifierSourceSummary s : getIdentifierSourceSummaries(includeRetired)) {
+			List<IdentifierSourceSummary> l = byTypeId.get(s.getIdentifierTypeId());
+			if (l != null) {
+				l.add(s);
+			}
+		}
+		return m;
+	}
+
 	/**
 	 * @see IdentifierSourceService#saveIdentifierSource(IdentifierSource)
 	 */
@@ -132,6 +239,16 @@ public class BaseIdentifierSourceService extends BaseOpenmrsService implements I
 			identifierSource.setChangedBy(u);
 			identifierSource.setDateChanged(today);
 		}
+		if (identifierSource.getId() != null) {
+			// identifiers pre-generated with the previous configuration must not be handed out
+			dispensers.remove(identifierSource.getId());
+			evictReservedIdentifierIndex(identifierSource.getId());
+			discardRemoteIdentifierSource(identifierSource);
+			// identifiers may have been added to or removed from the pool itself
+			if (identifierSource instanceof IdentifierPool && poolQuantityCounter != null) {
+				poolQuantityCounter.evict(identifierSource.getId());
+			}
+		}
 		return dao.saveIdentifierSource(identifierSource);
 	}
 
@@ -140,6 +257,13 @@ public class BaseIdentifierSourceService extends BaseOpenmrsService implements I
 	 */
 	@Transactional
 	public void purgeIdentifierSource(IdentifierSource identifierSource) {
+		dispensers.remove(identifierSource.getId());
+		evictReservedIdentifierIndex(identifierSource.getId());
+		discardRemoteIdentifierSource(identifierSource);
+		IdentifierFormatter.evict(identifierSource.getId());
+		if (poolQuantityCounter != null) {
+			poolQuantityCounter.evict(identifierSource.getId());
+		}
 		dao.purgeIdentifierSource(identifierSource);
 	}
 	
@@ -164,6 +288,37 @@ public class BaseIdentifierSourceService extends BaseOpenmrsService implements I
 	 */
 	public List<String> generateIdentifiers(IdentifierSource source, Integer batchSize, String comment) throws APIException {
 
+        // sequential generators reserving blocks of sequence values hand out identifiers from memory without
+        // taking the lock below; the log entries are written in a transaction of their own, so that identifiers
+        // which have been handed out are logged even if the caller's transaction rolls back
+        if (getDispensedBlockSize(source) > 1) {
+            List<String> identifiers = getDispenser(source).claim(batchSize);
+            Context.getService(IdentifierSourceService.class).saveLogEntriesInternal(source.getId(), identifiers, comment);
+            return identifiers;
+        }
+        dispensers.remove(source.getId());
+
+        // pools claim identifiers with a locking read in the database, so they need no lock of their own
+        IdentifierSourceProcessor processor = getProcessor(source);
+        if (source.getId() != null && processor instanceof IdentifierPoolProcessor) {
+            List<String> identifiers;
+            try {
+                identifiers = Context.getService(IdentifierSourceService.class).generateIdentifiersInternal(source.getId(), batchSize, comment);
+            }
+            catch (EmptyIdentifierPoolException e) {
+                IdentifierPool pool = (IdentifierPool) source;
+                if (pool.isRefillWithScheduledTask()) {
+                    throw e;
+                }
+                // the pool had fewer identifiers than its counts said, for instance because other servers claimed from
+                // it; the claim has rolled back and released its locks, so the pool can be refilled and claimed again
+                ((IdentifierPoolProcessor) processor).refill(pool);
+                identifiers = Context.getService(IdentifierSourceService.class).generateIdentifiersInternal(source.getId(), batchSize, comment);
+            }
+            dao.refreshIdentifierSource(source);
+            return identifiers;
+        }
+
         if (log.isDebugEnabled()) {
             log.debug("About to enter synchronized block for " + source.getName());
         }
@@ -180,6 +335,81 @@ public class BaseIdentifierSourceService extends BaseOpenmrsService implements I
         }
 	}
 
+    /**
+     * @see IdentifierSourceService#generateIdentifierRange(SequentialIdentifierGenerator, Integer, String)
+     */
+    public IdentifierRange generateIdentifierRange(SequentialIdentifierGenerator source, Integer batchSize, String comment) throws APIException {
+        if (source.getId() == null) {
+            throw new APIException("Identifier ranges can only be generated from a saved generator");
+        }
+        Object syncLock = getSyncLock(source.getId());
+        synchronized (syncLock) {
+            IdentifierRange range = Context.getService(IdentifierSourceService.class).generateIdentifierRangeInternal(source.getId(), batchSize, comment);
+            dao.refreshIdentifierSource(source);
+            return range;
+        }
+    }
+
+    /**
+     * @see IdentifierSourceService#generateIdentifierRangeInternal(Integer, int, String)
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public IdentifierRange generateIdentifierRangeInternal(Integer generatorId, int count, String comment) {
+        IdentifierRange range = reserveIdentifierRange(generatorId, count);
+
+        // logged with the reservation, a chunk at a time so that the range is never held in memory as a whole
+        IdentifierSource source = getIdentifierSource(generatorId);
+        List<String> chunk = new ArrayList<String>(Math.min(count, CHUNK_SIZE));
+        for (String identifier : range) {
+            chunk.add(identifier);
+            if (chunk.size() == CHUNK_SIZE) {
+                saveLogEntries(source, chunk, comment);
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            saveLogEntries(source, chunk, comment);
+        }
+        return range;
+    }
+
+    /**
+     * @see IdentifierSourceService#reserveIdentifierRangeInternal(Integer, int)
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public IdentifierRange reserveIdentifierRangeInternal(Integer generatorId, int count) {
+        return reserveIdentifierRange(generatorId, count);
+    }
+
+    private IdentifierRange reserveIdentifierRange(Integer generatorId, int count) {
+        SequentialIdentifierGenerator seq = (SequentialIdentifierGenerator) getIdentifierSource(generatorId);
+        Long firstSeed = dao.getSequenceValue(seq);
+        if (firstSeed == null || firstSeed < 0) {
+            firstSeed = seq.getInitialSequenceValue();
+        }
+        IdentifierFormatter formatter = IdentifierFormatter.forGenerator(seq);
+        ReservedIdentifierIndex reservedIdentifiers = getReservedIdentifierIndex(seq);
+        List<Long> skipped = new ArrayList<Long>();
+        if (reservedIdentifiers.size() > 0) {
+            BaseCodec.Counter counter = formatter.counter(firstSeed);
+            for (int found = 0; found < count;) {
+                long seed = counter.getValue();
+                if (reservedIdentifiers.contains(formatter.format(counter))) {
+                    skipped.add(seed);
+                }
+                else {
+                    found++;
+                }
+            }
+        }
+        long[] skippedSeeds = new long[skipped.size()];
+        for (int i = 0; i < skippedSeeds.length; i++) {
+            skippedSeeds[i] = skipped.get(i);
+        }
+        dao.saveSequenceValue(seq, firstSeed + count + skippedSeeds.length);
+        return new IdentifierRange(generatorId, formatter, firstSeed, count, skippedSeeds);
+    }
+
     /**
      * This method exists because we want a transaction to be opened and closed inside the synchronized block in generateIdentifiers
      * @param source
@@ -199,16 +429,121 @@ public class BaseIdentifierSourceService extends BaseOpenmrsService implements I
         }
 
         List<String> identifiers = processor.getIdentifiers(source, batchSize);
+        saveLogEntries(source, identifiers, comment);
+        return identifiers;
+    }
 
+    /**
+     * @see IdentifierSourceService#saveLogEntriesInternal(Integer, List, String)
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public void saveLogEntriesInternal(Integer sourceId, List<String> identifiers, String comment) {
+        saveLogEntries(getIdentifierSource(sourceId), identifiers, comment);
+    }
+
+    private void saveLogEntries(IdentifierSource source, List<String> identifiers, String comment) {
         Date now = new Date();
         User currentUser = Context.getAuthenticatedUser();
 
+        if (logEntryQueue != null && logEntryQueue.isEnabled()) {
+            Integer currentUserId = (currentUser == null ? null : currentUser.getUserId());
+            List<LogEntryQueue.QueuedLogEntry> queued = new ArrayList<LogEntryQueue.QueuedLogEntry>(identifiers.size());
+            for (String s : identifiers) {
+                queued.add(new LogEntryQueue.QueuedLogEntry(source.getId(), s, now, currentUserId, comment));
+            }
+            // journaled before the transaction commits, or written with the identifiers if they cannot be
+            if (logEntryQueue.offerOnCommit(queued)) {
+                return;
+            }
+        }
+
+        List<LogEntry> logEntries = new ArrayList<LogEntry>(identifiers.size());
         for (String s : identifiers) {
-            LogEntry logEntry = new LogEntry(source, s, now, currentUser, comment);
-            dao.saveLogEntry(logEntry);
+            logEntries.add(new LogEntry(source, s, now, currentUser, comment));
         }
+        dao.saveLogEntries(logEntries);
+    }
 
-        return identifiers;
+    /**
+     * @return the block size if the source hands out identifiers from reserved blocks of sequence values, otherwise 0
+     */
+    private int getDispensedBlockSize(IdentifierSource source) {
+        IdentifierSourceProcessor processor = getProcessor(source);
+        if (source.getId() != null && processor instanceof SequentialIdentifierGeneratorProcessor) {
+            return ((SequentialIdentifierGeneratorProcessor) processor).getBlockSize();
+        }
+        return 0;
+    }
+
+    private IdentifierDispenser getDispenser(IdentifierSource source) {
+        final Integer sourceId = source.getId();
+        final int blockSize = getDispensedBlockSize(source);
+        // this method does not need to be synchronized, because putIfAbsent is atomic
+        dispensers.putIfAbsent(sourceId, new IdentifierDispenser() {
+            @Override
+            protected List<String> nextBatch() {
+                // reserved from the persisted sequence, so the block in this dispenser is the only one held in memory
+                // for the source, and the only one skipped on restart
+                synchronized (getSyncLock(sourceId)) {
+                    IdentifierRange range = Context.getService(IdentifierSourceService.class).reserveIdentifierRangeInternal(sourceId, blockSize);
+                    return new ArrayList<String>(range);
+                }
+            }
+        });
+        return dispensers.get(sourceId);
+    }
+
+    /**
+     * @see IdentifierSourceService#flushQueuedLogEntries()
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void flushQueuedLogEntries() {
+        if (logEntryQueue != null) {
+            logEntryQueue.flush(getQueuedLogEntryWriter());
+        }
+    }
+
+    /**
+     * @return a writer of queued log entries, committing each batch in a transaction of its own
+     */
+    private LogEntryQueue.LogEntryWriter getQueuedLogEntryWriter() {
+        return new LogEntryQueue.LogEntryWriter() {
+            @Override
+            public void write(List<LogEntryQueue.QueuedLogEntry> entries) {
+                Context.getService(IdentifierSourceService.class).saveQueuedLogEntriesInternal(entries);
+            }
+        };
+    }
+
+    /**
+     * @see IdentifierSourceService#saveQueuedLogEntriesInternal(List)
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public void saveQueuedLogEntriesInternal(List<LogEntryQueue.QueuedLogEntry> entries) {
+        Map<Integer, IdentifierSource> sources = new HashMap<Integer, IdentifierSource>();
+        Map<Integer, User> users = new HashMap<Integer, User>();
+        List<LogEntry> logEntries = new ArrayList<LogEntry>(entries.size());
+        for (LogEntryQueue.QueuedLogEntry entry : entries) {
+            IdentifierSource source = sources.get(entry.getSourceId());
+            if (source == null) {
+                source = getIdentifierSource(entry.getSourceId());
+                if (source == null) {
+                    log.warn("Dropping queued log entry for " + entry.getIdentifier() + ", its source no longer exists");
+                    continue;
+                }
+                sources.put(entry.getSourceId(), source);
+            }
+            User user = null;
+            if (entry.getGeneratedById() != null) {
+                user = users.get(entry.getGeneratedById());
+                if (user == null) {
+                    user = Context.getUserService().getUser(entry.getGeneratedById());
+                    users.put(entry.getGeneratedById(), user);
+                }
+            }
+            logEntries.add(new LogEntry(source, entry.getIdentifier(), entry.getDateGenerated(), user, entry.getComment()));
+        }
+        dao.saveLogEntries(logEntries);
     }
 
     private Object getSyncLock(Integer identifierSourceId) {
@@ -221,6 +556,12 @@ public class BaseIdentifierSourceService extends BaseOpenmrsService implements I
      * @see org.openmrs.module.idgen.service.IdentifierSourceService#generateIdentifier(org.openmrs.PatientIdentifierType, java.lang.String)
      */
     public String generateIdentifier(PatientIdentifierType type, String comment) {
+        if (type != null && type.getId() != null) {
+            List<AutoGenerationOptionIndex.Entry> entries = getAutoGenerationOptionIndex().getEntries(type.getId());
+            if (entries.size() <= 1) {
+                return generateIdentifier(entries.isEmpty() ? null : entries.get(0), comment);
+            }
+        }
         AutoGenerationOption option = getAutoGenerationOption(type);
 
         if (option != null && option.isAutomaticGenerationEnabled()) {
@@ -235,6 +576,12 @@ public class BaseIdentifierSourceService extends BaseOpenmrsService implements I
 	 * @see org.openmrs.module.idgen.service.IdentifierSourceService#generateIdentifier(org.openmrs.PatientIdentifierType, org.openmrs.Location, java.lang.String)
 	 */
 	public String generateIdentifier(PatientIdentifierType type, Location location, String comment) {
+		if (type != null && type.getId() != null) {
+			List<AutoGenerationOptionIndex.Entry> entries = getAutoGenerationOptionIndex().getEntries(type.getId(), location == null ? null : location.getId());
+			if (entries.size() <= 1) {
+				return generateIdentifier(entries.isEmpty() ? null : entries.get(0), comment);
+			}
+		}
 		AutoGenerationOption option = getAutoGenerationOption(type, location);
 	
 		if (option != null && option.isAutomaticGenerationEnabled()) {
@@ -245,6 +592,122 @@ public class BaseIdentifierSourceService extends BaseOpenmrsService implements I
 		}
 	}
 	
+	/**
+	 * Generates an identifier from the source of the given option, which was resolved without querying the database
+	 * @return the identifier, or null if there is no option or it does not generate identifiers automatically
+	 */
+	private String generateIdentifier(AutoGenerationOptionIndex.Entry entry, String comment) {
+		if (entry == null || !entry.isAutomaticGenerationEnabled()) {
+			return null;
+		}
+		return generateIdentifier(dao.getIdentifierSource(entry.getSourceId()), comment);
+	}
+
+	/**
+	 * @return the lookup of auto generation options, loaded if there is none.  An index loaded within a transaction is
+	 * only shared once that transaction commits, so that one which saw uncommitted changes is never kept.
+	 */
+	private AutoGenerationOptionIndex getAutoGenerationOptionIndex() {
+		TransactionOptionIndex transactionIndex = getTransactionOptionIndex(false);
+		if (transactionIndex != null && transactionIndex.loaded != null) {
+			return transactionIndex.loaded;
+		}
+		long now = System.currentTimeMillis();
+		AutoGenerationOptionIndex index = autoGenerationOptionIndex;
+		if (index != null && !index.isExpired(now) && (transactionIndex == null || !transactionIndex.evicted)) {
+			return index;
+		}
+		int version = autoGenerationOptionVersion.get();
+		// read when the options are loaded, so a change to the interval applies from the next load
+		int cacheInterval = IdgenUtil.getGlobalPropertyAsInt(IdgenConstants.GP_AUTO_GENERATION_OPTION_CACHE_INTERVAL, 60);
+		index = new AutoGenerationOptionIndex(dao.getAutoGenerationOptionIndexEntries(), now + cacheInterval * 1000L);
+		transactionIndex = getTransactionOptionIndex(true);
+		if (transactionIndex == null) {
+			publishAutoGenerationOptionIndex(index, version);
+		}
+		else {
+			transactionIndex.loaded = index;
+			transactionIndex.version = version;
+		}
+		return index;
+	}
+
+	private synchronized void publishAutoGenerationOptionIndex(AutoGenerationOptionIndex index, int version) {
+		if (autoGenerationOptionVersion.get() == version) {
+			autoGenerationOptionIndex = index;
+		}
+	}
+
+	/**
+	 * Discards the lookup of auto generation options, now and again once the current transaction completes
+	 */
+	private void evictAutoGenerationOptionIndex() {
+		discardAutoGenerationOptionIndex();
+		TransactionOptionIndex transactionIndex = getTransactionOptionIndex(true);
+		if (transactionIndex != null) {
+			transactionIndex.loaded = null;
+			transactionIndex.evicted = true;
+		}
+	}
+
+	private synchronized void discardAutoGenerationOptionIndex() {
+		autoGenerationOptionVersion.incrementAndGet();
+		autoGenerationOptionIndex = null;
+	}
+
+	/**
+	 * @return the state of the lookup of auto generation options in the current transaction, or null if there is no
+	 * transaction to hold it
+	 */
+	private TransactionOptionIndex getTransactionOptionIndex(boolean create) {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			return null;
+		}
+		TransactionOptionIndex transactionIndex = (TransactionOptionIndex) TransactionSynchronizationManager.getResource(autoGenerationOptionIndexKey);
+		if (transactionIndex == null && create) {
+			transactionIndex = new TransactionOptionIndex();
+			TransactionSynchronizationManager.bindResource(autoGenerationOptionIndexKey, transactionIndex);
+			TransactionSynchronizationManager.registerSynchronization(transactionIndex);
+		}
+		return transactionIndex;
+	}
+
+	/**
+	 * The lookup of auto generation options loaded or discarded by one transaction, which is shared or discarded for
+	 * everyone once that transaction completes
+	 */
+	private class TransactionOptionIndex extends TransactionSynchronizationAdapter {
+
+		private AutoGenerationOptionIndex loaded;
+		private int version;
+		private boolean evicted;
+
+		@Override
+		public void suspend() {
+			TransactionSynchronizationManager.unbindResourceIfPossible(autoGenerationOptionIndexKey);
+		}
+
+		@Override
+		public void resume() {
+			TransactionSynchronizationManager.bindResource(autoGenerationOptionIndexKey, this);
+		}
+
+		@Override
+		public void afterCommit() {
+			if (!evicted && loaded != null) {
+				publishAutoGenerationOptionIndex(loaded, version);
+			}
+		}
+
+		@Override
+		public void afterCompletion(int status) {
+			TransactionSynchronizationManager.unbindResourceIfPossible(autoGenerationOptionIndexKey);
+			if (evicted) {
+				discardAutoGenerationOptionIndex();
+			}
+		}
+	}
+
 	/** 
 	 * @see IdentifierSourceService#generateIdentifier(IdentifierSource, String)
 	 */
@@ -256,6 +719,98 @@ public class BaseIdentifierSourceService extends BaseOpenmrsService implements I
 		return l.get(0);
 	}
 
+	/**
+	 * @see IdentifierSourceService#getReservedIdentifierIndex(IdentifierSource)
+	 */
+	@Transactional(readOnly=true)
+	public ReservedIdentifierIndex getReservedIdentifierIndex(IdentifierSource source) throws APIException {
+		if (source.getId() == null) {
+			return new ReservedIdentifierIndex(source.getReservedIdentifiers());
+		}
+		// reservations changed by this transaction are not shared until it commits
+		ReservedIdentifierEvictions evictions = getReservedIdentifierEvictions(false);
+		if (evictions != null && evictions.sourceIds.contains(source.getId())) {
+			return new ReservedIdentifierIndex(dao.getReservedIdentifiers(source));
+		}
+		long now = System.currentTimeMillis();
+		ReservedIdentifierIndex index = reservedIdentifierIndexes.get(source.getId());
+		if (index != null && !index.isExpired(now)) {
+			return index;
+		}
+		int version = reservedIdentifierVersion.get();
+		// read when the reservations are loaded, so a change to the interval applies from the next load
+		int cacheInterval = IdgenUtil.getGlobalPropertyAsInt(IdgenConstants.GP_RESERVED_IDENTIFIER_CACHE_INTERVAL, 60);
+		index = new ReservedIdentifierIndex(dao.getReservedIdentifiers(source), now + cacheInterval * 1000L);
+		publishReservedIdentifierIndex(source.getId(), index, version);
+		return index;
+	}
+
+	private synchronized void publishReservedIdentifierIndex(Integer sourceId, ReservedIdentifierIndex index, int version) {
+		if (reservedIdentifierVersion.get() == version) {
+			reservedIdentifierIndexes.put(sourceId, index);
+		}
+	}
+
+	private synchronized void discardReservedIdentifierIndex(Integer sourceId) {
+		reservedIdentifierVersion.incrementAndGet();
+		reservedIdentifierIndexes.remove(sourceId);
+	}
+
+	/**
+	 * Discards the lookup of the reserved identifiers of a source, now and again once the current transaction completes
+	 */
+	private void evictReservedIdentifierIndex(Integer sourceId) {
+		discardReservedIdentifierIndex(sourceId);
+		ReservedIdentifierEvictions evictions = getReservedIdentifierEvictions(true);
+		if (evictions != null) {
+			evictions.sourceIds.add(sourceId);
+		}
+	}
+
+	/**
+	 * @return the sources whose reserved identifiers the current transaction has changed, or null if there is no
+	 * transaction to hold them
+	 */
+	private ReservedIdentifierEvictions getReservedIdentifierEvictions(boolean create) {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			return null;
+		}
+		ReservedIdentifierEvictions evictions = (ReservedIdentifierEvictions) TransactionSynchronizationManager.getResource(reservedIdentifierIndexKey);
+		if (evictions == null && create) {
+			evictions = new ReservedIdentifierEvictions();
+			TransactionSynchronizationManager.bindResource(reservedIdentifierIndexKey, evictions);
+			TransactionSynchronizationManager.registerSynchronization(evictions);
+		}
+		return evictions;
+	}
+
+	/**
+	 * The sources whose reserved identifiers one transaction has changed, whose lookups are discarded again once it
+	 * completes, so that one loaded by another thread before it committed is not kept
+	 */
+	private class ReservedIdentifierEvictions extends TransactionSynchronizationAdapter {
+
+		private final Set<Integer> sourceIds = new HashSet<Integer>();
+
+		@Override
+		public void suspend() {
+			TransactionSynchronizationManager.unbindResourceIfPossible(reservedIdentifierIndexKey);
+		}
+
+		@Override
+		public void resume() {
+			TransactionSynchronizationManager.bindResource(reservedIdentifierIndexKey, this);
+		}
+
+		@Override
+		public void afterCompletion(int status) {
+			TransactionSynchronizationManager.unbindResourceIfPossible(reservedIdentifierIndexKey);
+			for (Integer sourceId : sourceIds) {
+				discardReservedIdentifierIndex(sourceId);
+			}
+		}
+	}
+
 	/** 
 	 * @see IdentifierSourceService#getAvailableIdentifiers(IdentifierPool, int)
 	 */
@@ -264,12 +819,49 @@ public class BaseIdentifierSourceService extends BaseOpenmrsService implements I
 	    return dao.getAvailableIdentifiers(pool, quantity);
 	}
 
+	/**
+	 * @see IdentifierSourceService#claimAvailableIdentifiers(IdentifierPool, int)
+	 */
+	@Transactional
+	public List<String> claimAvailableIdentifiers(IdentifierPool pool, int quantity) throws APIException {
+		Date now = new Date();
+		List<String> claimed = dao.claimAvailableIdentifiers(pool, quantity, now);
+		if (claimed.size() < quantity) {
+			// the counts of the pool said it held enough, for instance because other servers claimed from it since
+			if (poolQuantityCounter != null) {
+				poolQuantityCounter.evict(pool.getId());
+			}
+			// marks the transaction for rollback, which releases the rows locked by the claim
+			throw new EmptyIdentifierPoolException("Unable to retrieve " + quantity + " available identifiers from Pool " + pool + ".  Maybe you need to add more identifiers to your pool first.");
+		}
+		consumptionMeter.record(pool.getId(), claimed.size(), now.getTime());
+		if (poolQuantityCounter != null) {
+			poolQuantityCounter.recordClaimed(pool.getId(), claimed.size());
+		}
+		return claimed;
+	}
+
 	/** 
 	 * @see IdentifierSourceService#getQuantityInPool(IdentifierPool, boolean, boolean)
 	 */
 	@Transactional(readOnly=true)
 	public int getQuantityInPool(IdentifierPool pool, boolean availableOnly, boolean usedOnly) throws APIException {
-		return dao.getQuantityInPool(pool, availableOnly, usedOnly);
+		if (pool.getId() == null || poolQuantityCounter == null || (availableOnly && usedOnly)) {
+			return dao.getQuantityInPool(pool, availableOnly, usedOnly);
+		}
+		long now = System.currentTimeMillis();
+		Integer available = poolQuantityCounter.getAvailable(pool.getId(), now);
+		Integer used = poolQuantityCounter.getUsed(pool.getId(), now);
+		if (available == null || used == null) {
+			long countVersion = poolQuantityCounter.getVersion();
+			available = dao.getQuantityInPool(pool, true, false);
+			used = dao.getQuantityInPool(pool, false, true);
+			poolQuantityCounter.reconcile(pool.getId(), available, used, now, countVersion);
+		}
+		if (availableOnly) {
+			return available;
+		}
+		return usedOnly ? used : available + used;
 	}
 
 	/** 
@@ -277,18 +869,51 @@ public class BaseIdentifierSourceService extends BaseOpenmrsService implements I
 	 */
 	@Transactional
 	public void addIdentifiersToPool(IdentifierPool pool, List<String> identifiers) throws APIException {
+		if (pool.getId() == null) {
+			pool.getIdentifiers().addAll(toPooledIdentifiers(pool, identifiers));
+			Context.getService(IdentifierSourceService.class).saveIdentifierSource(pool);
+		}
+		else {
+			dao.addIdentifiersToPool(pool, identifiers);
+			if (poolQuantityCounter != null) {
+				poolQuantityCounter.recordAdded(pool.getId(), identifiers.size());
+			}
+		}
+	}
+
+	private List<PooledIdentifier> toPooledIdentifiers(IdentifierPool pool, List<String> identifiers) {
+		List<PooledIdentifier> ret = new ArrayList<PooledIdentifier>(identifiers.size());
 		for (String identifier : identifiers) {
-			pool.addIdentifierToPool(identifier);
+			ret.add(new PooledIdentifier(pool, identifier));
 		}
-		Context.getService(IdentifierSourceService.class).saveIdentifierSource(pool);
+		return ret;
 	}
 	
 	/** 
 	 * @see IdentifierSourceService#addIdentifiersToPool(IdentifierPool, Integer)
 	 */
 	@Transactional
-	public void addIdentifiersToPool(IdentifierPool pool, Integer batchSize) throws APIException {
-		List<String> identifiers = generateIdentifiers(pool.getSource(), batchSize, "Generating identifier for pool " + pool.getName());
+	public void addIdentifiersToPool(final IdentifierPool pool, Integer batchSize) throws APIException {
+		final IdentifierSource source = pool.getSource();
+		final String comment = "Generating identifier for pool " + pool.getName();
+		IdentifierSourceProcessor processor = getProcessor(source);
+		if (pool.getId() != null && source.getId() != null && processor instanceof RemoteIdentifierSourceProcessor
+				&& ((RemoteIdentifierSourceProcessor) processor).getPrefetchHighWater() <= 0) {
+			// identifiers are logged and added to the pool a chunk at a time as the response of the remote source is parsed
+			((RemoteIdentifierSourceProcessor) processor).fetchIdentifiers((RemoteIdentifierSource) source, batchSize, CHUNK_SIZE,
+					new IdentifierImportReader.ChunkHandler() {
+						@Override
+						public void handle(List<String> identifiers) {
+							saveLogEntries(source, identifiers, comment);
+							dao.addIdentifiersToPool(pool, identifiers);
+							if (poolQuantityCounter != null) {
+								poolQuantityCounter.recordAdded(pool.getId(), identifiers.size());
+							}
+						}
+					});
+			return;
+		}
+		List<String> identifiers = generateIdentifiers(source, batchSize, comment);
 		addIdentifiersToPool(pool, identifiers);
 	}
 
@@ -306,6 +931,13 @@ public class BaseIdentifierSourceService extends BaseOpenmrsService implements I
      */
     @Transactional(readOnly=true)
     public AutoGenerationOption getAutoGenerationOption(PatientIdentifierType type, Location location) throws APIException {
+        if (type != null && type.getId() != null) {
+            List<AutoGenerationOptionIndex.Entry> entries = getAutoGenerationOptionIndex().getEntries(type.getId(), location == null ? null : location.getId());
+            if (entries.size() <= 1) {
+                return entries.isEmpty() ? null : dao.getAutoGenerationOption(entries.get(0).getOptionId());
+            }
+        }
+        // lets the dao report options which are ambiguous
         return dao.getAutoGenerationOption(type, location);
     }
 
@@ -322,14 +954,30 @@ public class BaseIdentifierSourceService extends BaseOpenmrsService implements I
 	 */
 	@Transactional(readOnly=true)
 	public AutoGenerationOption getAutoGenerationOption(PatientIdentifierType type) throws APIException {
+		if (type != null && type.getId() != null) {
+			List<AutoGenerationOptionIndex.Entry> entries = getAutoGenerationOptionIndex().getEntries(type.getId());
+			if (entries.size() <= 1) {
+				return entries.isEmpty() ? null : dao.getAutoGenerationOption(entries.get(0).getOptionId());
+			}
+		}
+		// lets the dao report options which are ambiguous
 		return dao.getAutoGenerationOption(type);
 	}
 
+	/**
+	 * @see IdentifierSourceService#loadAutoGenerationOptionIndex()
+	 */
+	@Transactional(readOnly=true)
+	public void loadAutoGenerationOptionIndex() throws APIException {
+		getAutoGenerationOptionIndex();
+	}
+
 	/** 
 	 * @see IdentifierSourceService#saveAutoGenerationOption(AutoGenerationOption)
 	 */
 	@Transactional
 	public AutoGenerationOption saveAutoGenerationOption(AutoGenerationOption option) throws APIException {
+		evictAutoGenerationOptionIndex();
 		return dao.saveAutoGenerationOption(option);
 	}
 
@@ -338,6 +986,7 @@ public class BaseIdentifierSourceService extends BaseOpenmrsService implements I
 	 */
 	@Transactional
 	public void purgeAutoGenerationOption(AutoGenerationOption option) throws APIException {
+		evictAutoGenerationOptionIndex();
 		dao.purgeAutoGenerationOption(option);
 		
 	}
@@ -358,6 +1007,34 @@ public class BaseIdentifierSourceService extends BaseOpenmrsService implements I
 		this.dao = dao;
 	}
 	
+	/**
+	 * @return the logEntryQueue
+	 */
+	public LogEntryQueue getLogEntryQueue() {
+		return logEntryQueue;
+	}
+
+	/**
+	 * @param logEntryQueue the queue which log entries are written through when asynchronous logging is enabled
+	 */
+	public void setLogEntryQueue(LogEntryQueue logEntryQueue) {
+		this.logEntryQueue = logEntryQueue;
+	}
+
+	/**
+	 * @return the poolQuantityCounter
+	 */
+	public PoolQuantityCounter getPoolQuantityCounter() {
+		return poolQuantityCounter;
+	}
+
+	/**
+	 * @param poolQuantityCounter the in-memory counts of available and used identifiers in each pool
+	 */
+	public void setPoolQuantityCounter(PoolQuantityCounter poolQuantityCounter) {
+		this.poolQuantityCounter = poolQuantityCounter;
+	}
+
 	/**
 	 * @return the processors
 	 */
@@ -391,31 +1068,39 @@ public class BaseIdentifierSourceService extends BaseOpenmrsService implements I
     /**
      * Adds identifiers to a pool presumably from a pool's sequential source in batches of 100 until the min
      * pool quantity of unused is reached.
+     *
+     * The pool is topped up to its min pool size plus the number of identifiers it is projected to hand out over the
+     * next {@link IdgenConstants#GP_REFILL_LOOKAHEAD} seconds at its recent rate of claims, in batches large enough
+     * to cover that demand, so that a busy pool does not run dry between refills.
      * @param pool
      */
     @Transactional
     public void checkAndRefillIdentifierPool(IdentifierPool pool){
         if (pool.getSource() != null && (pool.getSource() instanceof SequentialIdentifierGenerator || pool.getSource() instanceof RemoteIdentifierSource)) {
-            while (pool.getMinPoolSize() > getQuantityInPool(pool, true, false)){
-                addIdentifiersToPool(pool, pool.getBatchSize());
+            int lookahead = IdgenUtil.getGlobalPropertyAsInt(IdgenConstants.GP_REFILL_LOOKAHEAD, 0);
+            int projectedDemand = (pool.getId() == null || lookahead <= 0 ? 0 : consumptionMeter.getProjectedDemand(pool.getId(), lookahead, System.currentTimeMillis()));
+            int target = pool.getMinPoolSize() + projectedDemand;
+            int batchSize = Math.max(pool.getBatchSize(), projectedDemand);
+            while (target > getQuantityInPool(pool, true, false)){
+                addIdentifiersToPool(pool, batchSize);
             }
         }
     }
     
+    /**
+     * @see IdentifierSourceService#refillIdentifierPoolInternal(Integer)
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public void refillIdentifierPoolInternal(Integer poolId) {
+        checkAndRefillIdentifierPool((IdentifierPool) getIdentifierSource(poolId));
+    }
+
     /**
      * @see org.openmrs.module.idgen.service.IdentifierSourceService#getPatientIdentifierTypesByAutoGenerationOption(java.lang.Boolean, java.lang.Boolean)
      */
+    @Transactional(readOnly = true)
     public List<PatientIdentifierType> getPatientIdentifierTypesByAutoGenerationOption(Boolean manualEntryEnabled, Boolean autoGenerationEnabled) {
-    	
-    	List<PatientIdentifierType> identifierTypes = new ArrayList<PatientIdentifierType>();
-    	
-    	for (PatientIdentifierType type : Context.getPatientService().getAllPatientIdentifierTypes()) {
-    		AutoGenerationOption option = getAutoGenerationOption(type);
-    		if (option != null && option.isManualEntryEnabled() == manualEntryEnabled.booleanValue() && option.isAutomaticGenerationEnabled() == autoGenerationEnabled.booleanValue()) {
-    			identifierTypes.add(type);
-    		}
-    	}
-    	return identifierTypes;
+    	return dao.getPatientIdentifierTypesByAutoGenerationOption(manualEntryEnabled, autoGenerationEnabled);
    }
 
     /**
@@ -457,7 +1142,23 @@ public class BaseIdentifierSourceService extends BaseOpenmrsService implements I
 	public void retireIdentifierSource(IdentifierSource identifierSource, String reason) throws APIException {
 		identifierSource.setRetired(true);
 		identifierSource.setRetireReason(reason);
+		dispensers.remove(identifierSource.getId());
+		evictReservedIdentifierIndex(identifierSource.getId());
+		discardRemoteIdentifierSource(identifierSource);
 		dao.saveIdentifierSource(identifierSource);		
 	}
 
+	/**
+	 * Discards the identifiers prefetched from the given source and its pooled client, if it is a remote source, since
+	 * they may be for a server it no longer points at
+	 */
+	private void discardRemoteIdentifierSource(IdentifierSource identifierSource) {
+		if (identifierSource instanceof RemoteIdentifierSource) {
+			IdentifierSourceProcessor processor = getProcessor(identifierSource);
+			if (processor instanceof RemoteIdentifierSourceProcessor) {
+				((RemoteIdentifierSourceProcessor) processor).discardSource(identifierSource.getId());
+			}
+		}
+	}
+
 }
@@ -0,0 +1,104 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.idgen.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openmrs.api.APIException;
+
+/**
+ * Hands out identifiers of a single source from an in-memory batch of pre-generated identifiers.
+ * Threads claim identifiers by advancing an atomic cursor, so claims never block each other; only
+ * replacing a used-up batch with a new one from {@link #nextBatch()} is done under a lock.
+ * Identifiers that have been claimed are never handed out again, even if the claiming thread fails afterwards.
+ */
+public abstract class IdentifierDispenser {
+
+	private volatile Batch current;
+
+	private final Object refillLock = new Object();
+
+	/**
+	 * @return the next batch of identifiers to hand out; implementations must reserve these so that they are
+	 * not returned again by any other means
+	 */
+	protected abstract List<String> nextBatch();
+
+	/**
+	 * @param quantity the number of identifiers to claim
+	 * @return the claimed identifiers
+	 * @should return the requested number of identifiers
+	 * @should never return the same identifier twice under concurrent claims
+	 */
+	public List<String> claim(int quantity) {
+		List<String> claimed = new ArrayList<String>(quantity);
+		while (claimed.size() < quantity) {
+			Batch batch = current;
+			if (batch == null || batch.claim(quantity - claimed.size(), claimed) == 0) {
+				refill(batch);
+			}
+		}
+		return claimed;
+	}
+
+	/**
+	 * Replaces the used-up batch with a new one, unless another thread has already done so
+	 */
+	private void refill(Batch usedUp) {
+		synchronized (refillLock) {
+			if (current == usedUp) {
+				List<String> identifiers = nextBatch();
+				if (identifiers == null || identifiers.isEmpty()) {
+					throw new APIException("Unable to refill identifiers: the source returned no identifiers");
+				}
+				current = new Batch(identifiers.toArray(new String[identifiers.size()]));
+			}
+		}
+	}
+
+	/**
+	 * A fixed array of identifiers and the position of the next one to hand out
+	 */
+	private static class Batch {
+
+		private final String[] identifiers;
+		private final AtomicInteger cursor = new AtomicInteger();
+
+		public Batch(String[] identifiers) {
+			this.identifiers = identifiers;
+		}
+
+		/**
+		 * Claims up to quantity identifiers, adding them to claimed
+		 * @return the number of identifiers claimed, 0 if this batch is used up
+		 */
+		public int claim(int quantity, List<String> claimed) {
+			while (true) {
+				int start = cursor.get();
+				if (start >= identifiers.length) {
+					return 0;
+				}
+				int end = Math.min(start + quantity, identifiers.length);
+				if (cursor.compareAndSet(start, end)) {
+					for (int i = start; i < end; i++) {
+						claimed.add(identifiers[i]);
+					}
+					return end - start;
+				}
+			}
+		}
+	}
+}
@@ -21,7 +21,9 @@ import org.openmrs.api.APIException;
 import org.openmrs.api.OpenmrsService;
 import org.openmrs.module.idgen.AutoGenerationOption;
 import org.openmrs.module.idgen.IdentifierPool;
+import org.openmrs.module.idgen.IdentifierRange;
 import org.openmrs.module.idgen.IdentifierSource;
+import org.openmrs.module.idgen.IdentifierSourceSummary;
 import org.openmrs.module.idgen.IdgenConstants;
 import org.openmrs.module.idgen.LogEntry;
 import org.openmrs.module.idgen.PooledIdentifier;
@@ -75,6 +77,28 @@ public interface IdentifierSourceService extends OpenmrsService {
 	 */
 	@Transactional(readOnly = true)
 	public Map<PatientIdentifierType, List<IdentifierSource>> getIdentifierSourcesByType(boolean includeRetired) throws APIException;
+
+	/**
+	 * Returns the id, name and type of all IdentifierSources without loading them, for pages and resources which
+	 * only list them
+	 * @param includeRetired if true, also returns retired IdentifierSources
+	 * @return a summary of all IdentifierSources, ordered by name
+	 * @throws APIException
+	 * @should return a summary of all identifier sources
+	 * @should not return retired identifier sources unless asked to
+	 */
+	@Transactional(readOnly = true)
+	public List<IdentifierSourceSummary> getIdentifierSourceSummaries(boolean includeRetired) throws APIException;
+
+	/**
+	 * Returns a summary of all IdentifierSources by PatientIdentifierType
+	 * @param includeRetired if true, also returns retired IdentifierSources
+	 * @return a summary of all IdentifierSources by PatientIdentifierType
+	 * @throws APIException
+	 * @should return a summary of all identifier sources by type
+	 */
+	@Transactional(readOnly = true)
+	public Map<PatientIdentifierType, List<IdentifierSourceSummary>> getIdentifierSourceSummariesByType(boolean includeRetired) throws APIException;
 	
 	/**
 	 * Persists a IdentifierSource, either as a save or update.
@@ -133,12 +157,30 @@ public interface IdentifierSourceService extends OpenmrsService {
 	public String generateIdentifier(IdentifierSource source, String comment) throws APIException;
 	
 	/**
-	 * Generates a List of Identifiers from the given source in the given quantity
+	 * Generates a List of Identifiers from the given source in the given quantity.  Identifiers are claimed from a
+	 * pool in a transaction of their own, and if the pool turns out to have too few, for instance because other
+	 * servers have claimed from it, the pool is refilled once that transaction has rolled back and claimed from again.
+	 * @should refill a pool and claim again when other servers have emptied it
 	 * @throws APIException
 	 */
 	@Transactional
 	@Authorized( IdgenConstants.PRIV_GENERATE_BATCH_OF_IDENTIFIERS )
 	public List<String> generateIdentifiers(IdentifierSource source, Integer batchSize, String comment) throws APIException;
+
+	/**
+	 * Generates a batch of identifiers from the given generator as a range of its sequence values, without holding
+	 * the identifiers in memory: they are formatted as the returned range is iterated.  Every identifier of the
+	 * range is logged, just as by {@link #generateIdentifiers(IdentifierSource, Integer, String)}, in the same
+	 * transaction as the sequence values are reserved, so the range is logged in full before it is returned, however
+	 * the caller goes on to use it.
+	 * @should return a range of the requested number of identifiers
+	 * @should log every identifier of the range before returning it
+	 * @should skip seeds whose identifiers are reserved
+	 * @throws APIException
+	 */
+	@Transactional
+	@Authorized( IdgenConstants.PRIV_GENERATE_BATCH_OF_IDENTIFIERS )
+	public IdentifierRange generateIdentifierRange(SequentialIdentifierGenerator source, Integer batchSize, String comment) throws APIException;
 	
 	/**
 	 * Returns an appropriate IdentifierSourceProcessor for the given IdentifierSource
@@ -157,11 +199,37 @@ public interface IdentifierSourceService extends OpenmrsService {
 	@Transactional(readOnly = true)
 	public void registerProcessor(Class<? extends IdentifierSource> type, IdentifierSourceProcessor processorToRegister) throws APIException;
 
+	/**
+	 * Returns a lookup of the reserved identifiers of the given source.  The lookup is cached, so that checking
+	 * generated identifiers against the reservations does not query them on every generation.  It is reloaded as soon
+	 * as the source is saved or purged on this server, and after {@link IdgenConstants#GP_RESERVED_IDENTIFIER_CACHE_INTERVAL}
+	 * seconds to see reservations changed on other servers.
+	 * @should return the reserved identifiers of a source
+	 * @should reload the reserved identifiers when the source is saved
+	 * @should reload the reserved identifiers changed by another server once the lookup expires
+	 * @should keep the reserved identifiers without querying them until the lookup expires
+	 */
+	@Transactional(readOnly=true)
+	public ReservedIdentifierIndex getReservedIdentifierIndex(IdentifierSource source) throws APIException;
+
 	/**
 	 * Returns available identifiers from a pool
 	 */
 	@Transactional(readOnly=true)
 	public List<PooledIdentifier> getAvailableIdentifiers(IdentifierPool pool, int quantity) throws APIException;
+
+	/**
+	 * Marks the given quantity of available identifiers in a pool as used and returns them, without locking
+	 * the pool, so that identifiers can be drawn from the same pool concurrently by several threads or servers.
+	 * If the pool does not have enough, the in-memory counts of the pool, which said it had, are discarded, and the
+	 * exception marks the transaction for rollback, which releases the rows the claim locked.  The pool must not be
+	 * refilled until that transaction has ended.
+	 * @should return available identifiers and mark them as used
+	 * @should throw an EmptyIdentifierPoolException if the pool does not have enough available identifiers
+	 * @should count the pool again if it does not have enough available identifiers
+	 */
+	@Transactional
+	public List<String> claimAvailableIdentifiers(IdentifierPool pool, int quantity) throws APIException;
 	
 	/**
 	 * Returns Pooled Identifiers for the given source, with the given status options
@@ -170,8 +238,10 @@ public interface IdentifierSourceService extends OpenmrsService {
 	public int getQuantityInPool(IdentifierPool pool, boolean availableOnly, boolean usedOnly) throws APIException;
 	
 	/**
-	 * Adds a List of Identifiers to the given pool
+	 * Adds a List of Identifiers to the given pool.  Identifiers are inserted directly into a saved pool,
+	 * without loading the identifiers already in it.
 	 * @throws APIException
+	 * @should add identifiers to a saved pool without loading the identifiers already in it
 	 */
 	@Transactional
 	@Authorized( IdgenConstants.PRIV_UPLOAD_BATCH_OF_IDENTIFIERS )
@@ -219,6 +289,14 @@ public interface IdentifierSourceService extends OpenmrsService {
     @Transactional(readOnly = true)
     public AutoGenerationOption getAutoGenerationOption(PatientIdentifierType type) throws APIException;
 
+    /**
+     * Loads the lookup of auto generation options used to find the option of an identifier type, which is otherwise
+     * loaded when it is first needed, and again once it is older than the auto generation option cache interval
+     * @should load the options of every identifier type and location
+     */
+    @Transactional(readOnly = true)
+    public void loadAutoGenerationOptionIndex() throws APIException;
+
 	/**
 	 * Persists a AutoGenerationOption, either as a save or update.
 	 * @param option
@@ -248,6 +326,8 @@ public interface IdentifierSourceService extends OpenmrsService {
 	/**
 	 * Convenience method that checks a pool's level and incrementally adds identifiers in batches of 100
 	 * until the min available size is reached.  Only does something if the pool's source is a remote or sequential generator.
+	 * The min available size is raised by the demand projected from the pool's recent rate of claims.
+	 * @should top up the pool to cover the demand projected from recent claims
 	 * @param pool
 	 */
 	@Transactional
@@ -255,6 +335,7 @@ public interface IdentifierSourceService extends OpenmrsService {
 	
 	/**
 	 * Convenience method that returns the set of Patient Identifier Types that match certain AutoGeneration parameters
+	 * @should return the types of matching options with a constant number of queries
 	 */
 	@Transactional(readOnly=true)
 	public List<PatientIdentifierType> getPatientIdentifierTypesByAutoGenerationOption(Boolean manualEntryEnabled, Boolean autoGenerationEnabled);
@@ -295,4 +376,46 @@ public interface IdentifierSourceService extends OpenmrsService {
      */
     List<String> generateIdentifiersInternal(Integer sourceId, Integer batchSize, String comment);
 
+    /**
+     * Internal method which logs identifiers handed out from memory in a transaction of its own, so that the log
+     * entries are kept even if the transaction of the caller, which the identifiers are handed out to, rolls back
+     */
+    void saveLogEntriesInternal(Integer sourceId, List<String> identifiers, String comment);
+
+    /**
+     * Internal method which reserves the sequence values for a range of identifiers from a SequentialIdentifierGenerator
+     * in a transaction of its own, skipping values whose identifiers are reserved
+     * @param generatorId the id of the SequentialIdentifierGenerator
+     * @param count the number of identifiers in the range
+     * @return the reserved range
+     */
+    IdentifierRange reserveIdentifierRangeInternal(Integer generatorId, int count);
+
+    /**
+     * Internal method which reserves a range of identifiers, as {@link #reserveIdentifierRangeInternal(Integer, int)},
+     * and logs all of its identifiers in the same transaction, so that none is handed out without having been logged
+     * @param generatorId the id of the SequentialIdentifierGenerator
+     * @param count the number of identifiers in the range
+     * @param comment the comment to log the identifiers with
+     * @return the reserved and logged range
+     */
+    IdentifierRange generateIdentifierRangeInternal(Integer generatorId, int count, String comment);
+
+    /**
+     * Internal method which refills the pool with the given id, if needed, in a transaction of its own, so that the
+     * identifiers added to it are visible to other transactions as soon as it returns
+     */
+    void refillIdentifierPoolInternal(Integer poolId);
+
+    /**
+     * Writes all log entries which have been queued for writing in the background, including any left in the journal
+     * by a previous run.  Each batch is committed in a transaction of its own before it is removed from the journal.
+     */
+    void flushQueuedLogEntries();
+
+    /**
+     * Internal method which writes a batch of queued log entries in a transaction of its own
+     */
+    void saveQueuedLogEntriesInternal(List<LogEntryQueue.QueuedLogEntry> entries);
+
 }
@@ -0,0 +1,655 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.idgen.service;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.idgen.IdgenConstants;
+import org.openmrs.util.OpenmrsUtil;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Bounded queue of log entries waiting to be written to the database in the background, used when the
+ * {@link IdgenConstants#GP_ASYNC_LOG_ENTRIES} global property is true.
+ *
+ * Entries are appended to a journal file in the application data directory, and synced to disk, before the
+ * transaction generating their identifiers commits, so entries of a generation which has committed are never lost,
+ * even if the server crashes straight after.  They are only queued for writing once that transaction commits, and a
+ * discard record is journaled for a transaction which rolls back.  Concurrent transactions share the disk syncs of
+ * the journal, and no lock shared between them is held while it syncs.
+ *
+ * A journal file is only deleted after its entries have been committed, which means an entry may be written twice if
+ * the server dies in between.  Entries of a transaction which was still in progress when the server crashed are
+ * written as well, since it cannot be known whether it committed.
+ */
+public class LogEntryQueue implements GlobalPropertyListener {
+
+	protected Log log = LogFactory.getLog(getClass());
+
+	private static final String JOURNAL = "log-entries.journal";
+	private static final String FLUSHING_PREFIX = "log-entries-";
+	private static final String FLUSHING_SUFFIX = ".flushing";
+
+	/**
+	 * Marks a journal record saying that the entries of a transaction were rolled back
+	 */
+	private static final String DISCARDED = "-";
+
+	/**
+	 * Marks a journal record saying that the entries of a transaction were journaled again in the next journal
+	 */
+	private static final String CARRIED_OVER = ">";
+
+	private int capacity = 10000;
+	private File journalDirectory;
+
+	private volatile Boolean enabled;
+
+	/**
+	 * Number of entries of committed transactions which are waiting to be written
+	 */
+	private int queued = 0;
+
+	/**
+	 * Entries of transactions which have not completed yet, by the id under which they were journaled
+	 */
+	private Map<String, List<QueuedLogEntry>> inProgress = new LinkedHashMap<String, List<QueuedLogEntry>>();
+
+	private volatile FileOutputStream journalStream;
+	private Writer journal;
+	private boolean journalRecovered = false;
+
+	/**
+	 * Whether journal files which have not been written may be left on disk, looked up the first time it is asked
+	 */
+	private Boolean unflushedJournals;
+
+	/**
+	 * Number of records appended to the journal, and the number of those known to be synced to disk
+	 */
+	private volatile long appended = 0;
+	private final AtomicLong synced = new AtomicLong();
+
+	private final String idPrefix = Long.toString(System.currentTimeMillis(), 36) + ".";
+	private long lastId = 0;
+
+	private final Object syncLock = new Object();
+	private final Object flushLock = new Object();
+
+	/**
+	 * Writes a list of queued entries to the database, committing before it returns
+	 */
+	public interface LogEntryWriter {
+		void write(List<QueuedLogEntry> entries);
+	}
+
+	/**
+	 * @return true if log entries should be queued rather than written with the identifiers they log
+	 */
+	public boolean isEnabled() {
+		if (enabled == null) {
+			enabled = "true".equalsIgnoreCase(Context.getAdministrationService().getGlobalProperty(IdgenConstants.GP_ASYNC_LOG_ENTRIES));
+		}
+		return enabled;
+	}
+
+	/**
+	 * Journals the given entries before the current transaction commits, and queues them once it commits, or at
+	 * once if there is no transaction
+	 * @return false if the entries were not journaled, because the queue is full or the journal cannot be written,
+	 * in which case the caller should write them itself within its transaction
+	 * @should journal entries before the transaction commits
+	 * @should queue entries only once the transaction commits
+	 * @should not queue entries of a transaction which rolls back
+	 */
+	public boolean offerOnCommit(final List<QueuedLogEntry> toQueue) {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			return offer(toQueue);
+		}
+		final String id;
+		synchronized (this) {
+			id = idPrefix + (++lastId);
+		}
+		if (!journal(id, toQueue)) {
+			return false;
+		}
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+			@Override
+			public void afterCommit() {
+				complete(id, true);
+			}
+
+			@Override
+			public void afterCompletion(int status) {
+				// entries of a transaction whose outcome is unknown are kept, since it may have committed
+				complete(id, status != STATUS_ROLLED_BACK);
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Journals the given entries and queues them at once
+	 * @return false if the entries were not queued, because the queue is full or the journal cannot be written,
+	 * in which case the caller should write them itself
+	 * @should refuse entries beyond its capacity
+	 */
+	public boolean offer(List<QueuedLogEntry> toQueue) {
+		String id;
+		synchronized (this) {
+			id = idPrefix + (++lastId);
+		}
+		if (!journal(id, toQueue)) {
+			return false;
+		}
+		complete(id, true);
+		return true;
+	}
+
+	/**
+	 * Appends the given entries to the journal and waits until they are synced to disk
+	 */
+	private boolean journal(String id, List<QueuedLogEntry> toQueue) {
+		long record;
+		synchronized (this) {
+			int waiting = queued;
+			for (List<QueuedLogEntry> entries : inProgress.values()) {
+				waiting += entries.size();
+			}
+			if (waiting + toQueue.size() > capacity) {
+				return false;
+			}
+			try {
+				openJournal();
+				if (journal == null) {
+					return false;
+				}
+				for (QueuedLogEntry entry : toQueue) {
+					journal.write(id);
+					journal.write('\t');
+					journal.write(entry.toJournalLine());
+					journal.write('\n');
+				}
+				journal.flush();
+			}
+			catch (IOException e) {
+				log.warn("Unable to journal log entries, they will be written immediately", e);
+				closeJournal();
+				return false;
+			}
+			record = ++appended;
+			inProgress.put(id, toQueue);
+		}
+		if (!sync(record)) {
+			complete(id, false);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Syncs the journal to disk up to the given record, unless another thread has already done so.  A sync covers
+	 * every record appended before it starts, so threads journaling at the same time share their syncs.
+	 */
+	private boolean sync(long record) {
+		synchronized (syncLock) {
+			if (synced.get() >= record) {
+				return true;
+			}
+			long upTo = appended;
+			FileOutputStream stream = journalStream;
+			try {
+				if (stream != null) {
+					stream.getFD().sync();
+					markSynced(upTo);
+				}
+			}
+			catch (IOException e) {
+				// the journal may have been closed, which syncs it, since the record was appended
+				if (synced.get() < record) {
+					log.warn("Unable to sync log entry journal, entries will be written immediately", e);
+					return false;
+				}
+			}
+			return synced.get() >= record;
+		}
+	}
+
+	private void markSynced(long upTo) {
+		for (long current = synced.get(); current < upTo; current = synced.get()) {
+			if (synced.compareAndSet(current, upTo)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Queues the entries journaled under the given id, or records in the journal that they were discarded
+	 */
+	private synchronized void complete(String id, boolean committed) {
+		List<QueuedLogEntry> entries = inProgress.remove(id);
+		if (entries == null) {
+			return;
+		}
+		if (committed) {
+			queued += entries.size();
+			return;
+		}
+		try {
+			openJournal();
+			if (journal != null) {
+				// not synced, since entries of a discard record lost in a crash are written, which is only superfluous
+				journal.write(DISCARDED + "\t" + id + "\n");
+				journal.flush();
+				appended++;
+			}
+		}
+		catch (IOException e) {
+			log.warn("Unable to journal discarded log entries, they will be written on recovery", e);
+			closeJournal();
+		}
+	}
+
+	/**
+	 * @return true if there are entries waiting to be written, queued by this instance or journaled by a previous one.
+	 * The journal directory is only looked at the first time, so nothing is read from disk while nothing is queued.
+	 * @should return whether there are entries waiting to be written
+	 */
+	public synchronized boolean hasPendingEntries() {
+		if (queued > 0) {
+			return true;
+		}
+		lookForUnflushedJournals();
+		return unflushedJournals;
+	}
+
+	/**
+	 * Looks for journals left by a previous run, unless it has been done, without creating the journal directory
+	 */
+	private void lookForUnflushedJournals() {
+		if (unflushedJournals == null) {
+			File directory = (journalDirectory != null ? journalDirectory : new File(OpenmrsUtil.getApplicationDataDirectory(), "idgen"));
+			String[] journals = directory.list(new FilenameFilter() {
+				@Override
+				public boolean accept(File dir, String name) {
+					return name.equals(JOURNAL) || (name.startsWith(FLUSHING_PREFIX) && name.endsWith(FLUSHING_SUFFIX));
+				}
+			});
+			unflushedJournals = journals != null && journals.length > 0;
+		}
+	}
+
+	/**
+	 * Writes all queued and journaled entries with the given writer.  Entries left over from a previous run,
+	 * or from a flush which failed, are written as well.  Entries of transactions still in progress are journaled
+	 * again in the new journal, and written by a later flush once their transaction has committed.
+	 * @should write queued entries
+	 * @should write entries journaled by a previous instance
+	 * @should keep entries whose write failed for the next flush
+	 * @should leave entries of transactions in progress for a later flush
+	 */
+	public void flush(LogEntryWriter writer) {
+		synchronized (flushLock) {
+			synchronized (this) {
+				recoverJournal();
+				if (getJournalFile().exists()) {
+					if (!carryOver()) {
+						return;
+					}
+				}
+				queued = 0;
+				unflushedJournals = true;
+			}
+			File[] toFlush = getJournalDirectory().listFiles(new FilenameFilter() {
+				@Override
+				public boolean accept(File dir, String name) {
+					return name.startsWith(FLUSHING_PREFIX) && name.endsWith(FLUSHING_SUFFIX);
+				}
+			});
+			if (toFlush == null) {
+				return;
+			}
+			Arrays.sort(toFlush);
+			boolean allDeleted = true;
+			for (File file : toFlush) {
+				List<QueuedLogEntry> fileEntries = readJournal(file);
+				if (!fileEntries.isEmpty()) {
+					writer.write(fileEntries);
+				}
+				if (!file.delete()) {
+					log.warn("Unable to delete flushed log entry journal " + file);
+					allDeleted = false;
+				}
+			}
+			synchronized (this) {
+				unflushedJournals = !allDeleted || (queued > 0);
+			}
+		}
+	}
+
+	/**
+	 * Rotates the journal to be flushed, and journals the entries of transactions in progress again in a new one,
+	 * recording in the rotated journal that they were carried over
+	 * @return false if the journal could not be rotated
+	 */
+	private boolean carryOver() {
+		try {
+			if (journal != null) {
+				for (String id : inProgress.keySet()) {
+					journal.write(CARRIED_OVER + "\t" + id + "\n");
+				}
+			}
+		}
+		catch (IOException e) {
+			log.warn("Unable to rotate log entry journal " + getJournalFile() + ", will retry on the next flush", e);
+			return false;
+		}
+		closeJournal();
+		if (rotateJournal() == null) {
+			return false;
+		}
+		if (inProgress.isEmpty()) {
+			return true;
+		}
+		try {
+			openJournal();
+			if (journal == null) {
+				return true;
+			}
+			for (Map.Entry<String, List<QueuedLogEntry>> e : inProgress.entrySet()) {
+				for (QueuedLogEntry entry : e.getValue()) {
+					journal.write(e.getKey());
+					journal.write('\t');
+					journal.write(entry.toJournalLine());
+					journal.write('\n');
+				}
+			}
+			journal.flush();
+			journalStream.getFD().sync();
+		}
+		catch (IOException e) {
+			log.error("Unable to journal log entries of transactions in progress again, they are left in " + getJournalDirectory(), e);
+			closeJournal();
+		}
+		return true;
+	}
+
+	/**
+	 * Opens the journal for appending, if it is not open, once a journal left by a previous run has been moved aside
+	 */
+	private void openJournal() throws IOException {
+		if (journal == null) {
+			recoverJournal();
+			if (!journalRecovered) {
+				return;
+			}
+			journalStream = new FileOutputStream(getJournalFile(), true);
+			journal = new OutputStreamWriter(journalStream, "UTF-8");
+		}
+	}
+
+	/**
+	 * The first time the journal is touched, moves a journal left by a previous run aside, so that its entries
+	 * are flushed separately from those of this run
+	 */
+	private void recoverJournal() {
+		if (!journalRecovered) {
+			lookForUnflushedJournals();
+			if (getJournalFile().exists() && rotateJournal() == null) {
+				return;
+			}
+			journalRecovered = true;
+		}
+	}
+
+	/**
+	 * Renames the journal to a new file to be flushed
+	 * @return the renamed file, or null if it could not be renamed
+	 */
+	private File rotateJournal() {
+		long timestamp = System.currentTimeMillis();
+		File rotated = new File(getJournalDirectory(), FLUSHING_PREFIX + timestamp + FLUSHING_SUFFIX);
+		while (rotated.exists()) {
+			rotated = new File(getJournalDirectory(), FLUSHING_PREFIX + (++timestamp) + FLUSHING_SUFFIX);
+		}
+		if (!getJournalFile().renameTo(rotated)) {
+			log.warn("Unable to rotate log entry journal " + getJournalFile() + ", will retry on the next flush");
+			return null;
+		}
+		return rotated;
+	}
+
+	/**
+	 * @return the entries in the given journal, except those of transactions which were rolled back or which were
+	 * carried over to the next journal
+	 */
+	private List<QueuedLogEntry> readJournal(File file) {
+		Map<String, List<QueuedLogEntry>> byId = new LinkedHashMap<String, List<QueuedLogEntry>>();
+		Set<String> skipped = new HashSet<String>();
+		BufferedReader r = null;
+		try {
+			r = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			for (String line = r.readLine(); line != null; line = r.readLine()) {
+				String[] fields = line.split("\t", -1);
+				if (fields.length == 2 && (DISCARDED.equals(fields[0]) || CARRIED_OVER.equals(fields[0]))) {
+					skipped.add(fields[1]);
+					continue;
+				}
+				// entries journaled before they were tagged with the id of their transaction have 5 fields
+				String id = (fields.length == 6 ? fields[0] : "");
+				QueuedLogEntry entry = QueuedLogEntry.fromJournalLine(fields.length == 6 ? line.substring(id.length() + 1) : line);
+				if (entry != null) {
+					List<QueuedLogEntry> entries = byId.get(id);
+					if (entries == null) {
+						entries = new ArrayList<QueuedLogEntry>();
+						byId.put(id, entries);
+					}
+					entries.add(entry);
+				}
+			}
+		}
+		catch (IOException e) {
+			throw new RuntimeException("Error reading log entry journal " + file, e);
+		}
+		finally {
+			if (r != null) {
+				try {
+					r.close();
+				}
+				catch (IOException e) {
+					log.warn("Error closing reader: ", e);
+				}
+			}
+		}
+		List<QueuedLogEntry> ret = new ArrayList<QueuedLogEntry>();
+		for (Map.Entry<String, List<QueuedLogEntry>> e : byId.entrySet()) {
+			if (!skipped.contains(e.getKey())) {
+				ret.addAll(e.getValue());
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Closes the journal, syncing it to disk first so that a thread waiting to sync it finds its records synced
+	 */
+	private void closeJournal() {
+		if (journal != null) {
+			try {
+				long upTo = appended;
+				journal.flush();
+				journalStream.getFD().sync();
+				markSynced(upTo);
+			}
+			catch (IOException e) {
+				log.warn("Error syncing log entry journal", e);
+			}
+			try {
+				journal.close();
+			}
+			catch (IOException e) {
+				log.warn("Error closing log entry journal", e);
+			}
+			journal = null;
+			journalStream = null;
+		}
+	}
+
+	private File getJournalFile() {
+		return new File(getJournalDirectory(), JOURNAL);
+	}
+
+	private File getJournalDirectory() {
+		if (journalDirectory == null) {
+			journalDirectory = OpenmrsUtil.getDirectoryInApplicationDataDirectory("idgen");
+		}
+		return journalDirectory;
+	}
+
+	/**
+	 * @see GlobalPropertyListener#supportsPropertyName(String)
+	 */
+	@Override
+	public boolean supportsPropertyName(String propertyName) {
+		return IdgenConstants.GP_ASYNC_LOG_ENTRIES.equals(propertyName);
+	}
+
+	/**
+	 * @see GlobalPropertyListener#globalPropertyChanged(GlobalProperty)
+	 */
+	@Override
+	public void globalPropertyChanged(GlobalProperty newValue) {
+		enabled = null;
+	}
+
+	/**
+	 * @see GlobalPropertyListener#globalPropertyDeleted(String)
+	 */
+	@Override
+	public void globalPropertyDeleted(String propertyName) {
+		enabled = null;
+	}
+
+	/**
+	 * @param capacity the maximum number of entries waiting to be written
+	 */
+	public void setCapacity(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @param journalDirectory the directory to keep journal files in, defaults to idgen in the application data directory
+	 */
+	public void setJournalDirectory(File journalDirectory) {
+		this.journalDirectory = journalDirectory;
+	}
+
+	/**
+	 * A log entry waiting to be written, referring to its source and user by id so it can outlive the session
+	 */
+	public static class QueuedLogEntry {
+
+		private Integer sourceId;
+		private String identifier;
+		private Date dateGenerated;
+		private Integer generatedById;
+		private String comment;
+
+		public QueuedLogEntry(Integer sourceId, String identifier, Date dateGenerated, Integer generatedById, String comment) {
+			this.sourceId = sourceId;
+			this.identifier = identifier;
+			this.dateGenerated = dateGenerated;
+			this.generatedById = generatedById;
+			this.comment = comment;
+		}
+
+		public Integer getSourceId() {
+			return sourceId;
+		}
+
+		public String getIdentifier() {
+			return identifier;
+		}
+
+		public Date getDateGenerated() {
+			return dateGenerated;
+		}
+
+		public Integer getGeneratedById() {
+			return generatedById;
+		}
+
+		public String getComment() {
+			return comment;
+		}
+
+		String toJournalLine() {
+			return sourceId + "\t" + dateGenerated.getTime() + "\t" + (generatedById == null ? "" : generatedById)
+					+ "\t" + escape(identifier) + "\t" + (comment == null ? "" : "=" + escape(comment));
+		}
+
+		static QueuedLogEntry fromJournalLine(String line) {
+			String[] fields = line.split("\t", -1);
+			if (fields.length != 5) {
+				// a line only partly written before a crash
+				return null;
+			}
+			return new QueuedLogEntry(Integer.valueOf(fields[0]), unescape(fields[3]), new Date(Long.parseLong(fields[1])),
+					fields[2].length() == 0 ? null : Integer.valueOf(fields[2]),
+					fields[4].length() == 0 ? null : unescape(fields[4].substring(1)));
+		}
+
+		private static String escape(String s) {
+			return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+		}
+
+		private static String unescape(String s) {
+			StringBuilder sb = new StringBuilder(s.length());
+			for (int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				if (c == '\\' && i + 1 < s.length()) {
+					char next = s.charAt(++i);
+					sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+				}
+				else {
+					sb.append(c);
+				}
+			}
+			return sb.toString();
+		}
+	}
+}
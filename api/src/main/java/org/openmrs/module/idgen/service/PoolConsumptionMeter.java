@@ -0,0 +1,93 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.idgen.service;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Measures the rate at which identifiers are claimed from each pool, as an exponentially decaying moving average,
+ * so that recent demand counts for more than demand long past.  Rates are kept in memory only and start from
+ * nothing when the server starts.
+ */
+public class PoolConsumptionMeter {
+
+	/**
+	 * The number of milliseconds over which the weight of a claim decays by a factor of e
+	 */
+	private final double decayMillis;
+
+	private final ConcurrentHashMap<Integer, Rate> rates = new ConcurrentHashMap<Integer, Rate>();
+
+	/**
+	 * @param decayMillis the number of milliseconds over which the weight of a claim decays by a factor of e
+	 */
+	public PoolConsumptionMeter(long decayMillis) {
+		this.decayMillis = decayMillis;
+	}
+
+	/**
+	 * Records that the given number of identifiers were claimed from the pool with the given id at the given time
+	 */
+	public void record(Integer poolId, int quantity, long time) {
+		Rate rate = rates.get(poolId);
+		if (rate == null) {
+			rates.putIfAbsent(poolId, new Rate());
+			rate = rates.get(poolId);
+		}
+		rate.record(quantity, time);
+	}
+
+	/**
+	 * @return the number of identifiers per second recently claimed from the pool with the given id
+	 * @should decay when nothing is claimed
+	 */
+	public double getRatePerSecond(Integer poolId, long time) {
+		Rate rate = rates.get(poolId);
+		return rate == null ? 0 : rate.getPerMilli(time) * 1000;
+	}
+
+	/**
+	 * @return the whole number of identifiers the pool with the given id is projected to hand out over the given number
+	 * of seconds, if demand continues at its recent rate
+	 * @should project demand from the recent rate of claims
+	 */
+	public int getProjectedDemand(Integer poolId, int seconds, long time) {
+		return (int) Math.floor(getRatePerSecond(poolId, time) * seconds);
+	}
+
+	/**
+	 * Forgets the rate of the pool with the given id
+	 */
+	public void reset(Integer poolId) {
+		rates.remove(poolId);
+	}
+
+	private class Rate {
+
+		private double perMilli = 0;
+		private long lastUpdated = 0;
+
+		public synchronized void record(int quantity, long time) {
+			perMilli = getPerMilli(time) + quantity / decayMillis;
+			lastUpdated = Math.max(lastUpdated, time);
+		}
+
+		public synchronized double getPerMilli(long time) {
+			if (time <= lastUpdated) {
+				return perMilli;
+			}
+			return perMilli * Math.exp(-(time - lastUpdated) / decayMillis);
+		}
+	}
+}
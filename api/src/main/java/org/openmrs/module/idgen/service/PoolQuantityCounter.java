@@ -0,0 +1,350 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.idgen.service;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.module.idgen.IdgenConstants;
+import org.openmrs.module.idgen.IdgenUtil;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Keeps the number of available and used identifiers in each pool in memory, so that checking how full a pool is
+ * does not count its rows.  The counts are adjusted as identifiers are claimed from and added to pools, and counted
+ * again from the database once they are older than {@link IdgenConstants#GP_POOL_COUNT_RECONCILE_INTERVAL} seconds,
+ * which corrects for changes made by other servers or outside of the service.
+ *
+ * Changes made within a transaction are only applied to the shared counts once it commits, so a rolled back claim
+ * or refill does not leave the counts wrong.  A count is only shared if no change to the pool was committed since it
+ * was started, since it may not include that change; otherwise the pool is counted again the next time.
+ *
+ * Claims made by other servers are only seen once the counts are reconciled, so a claim which finds the pool emptier
+ * than its counts said evicts them, see {@link IdentifierSourceService#claimAvailableIdentifiers(org.openmrs.module.idgen.IdentifierPool, int)}.
+ */
+public class PoolQuantityCounter implements GlobalPropertyListener {
+
+	private final ConcurrentHashMap<Integer, Quantities> counts = new ConcurrentHashMap<Integer, Quantities>();
+
+	/**
+	 * Incremented whenever a change to a pool is committed
+	 */
+	private final AtomicLong version = new AtomicLong();
+
+	/**
+	 * The version at which a change to each pool was last committed
+	 */
+	private final ConcurrentHashMap<Integer, Long> changedAt = new ConcurrentHashMap<Integer, Long>();
+
+	private volatile Integer reconcileInterval;
+
+	/**
+	 * @return the number of available identifiers in the pool with the given id, as seen by the current transaction,
+	 * or null if the pool needs to be counted
+	 */
+	public Integer getAvailable(Integer poolId, long now) {
+		Quantities q = getQuantities(poolId, now);
+		return q == null ? null : q.available;
+	}
+
+	/**
+	 * @return the number of used identifiers in the pool with the given id, as seen by the current transaction,
+	 * or null if the pool needs to be counted
+	 */
+	public Integer getUsed(Integer poolId, long now) {
+		Quantities q = getQuantities(poolId, now);
+		return q == null ? null : q.used;
+	}
+
+	private Quantities getQuantities(Integer poolId, long now) {
+		if (getReconcileInterval() <= 0) {
+			return null;
+		}
+		Changes changes = getChanges(false);
+		Pending pending = (changes == null ? null : changes.get(poolId));
+		Quantities base;
+		if (pending != null && (pending.counted != null || pending.evicted)) {
+			base = pending.counted;
+		}
+		else {
+			base = counts.get(poolId);
+		}
+		if (base == null || now - base.countedAt > getReconcileInterval() * 1000L) {
+			return null;
+		}
+		if (pending == null) {
+			return base;
+		}
+		return new Quantities(base.available + pending.available, base.used + pending.used, base.countedAt);
+	}
+
+	/**
+	 * @return the version to take before counting a pool, and to pass to
+	 * {@link #reconcile(Integer, int, int, long, long)} with the count
+	 */
+	public long getVersion() {
+		return version.get();
+	}
+
+	/**
+	 * Records the number of available and used identifiers just counted in the pool with the given id, as seen by
+	 * the current transaction, where no change to the pool can have been committed since the count was started
+	 * @should return the counted quantities until they are older than the reconcile interval
+	 */
+	public void reconcile(Integer poolId, int available, int used, long now) {
+		reconcile(poolId, available, used, now, getVersion());
+	}
+
+	/**
+	 * Records the number of available and used identifiers just counted in the pool with the given id, as seen by
+	 * the current transaction
+	 * @param countVersion the version taken before the pool was counted
+	 * @should not share a count started before a change to the pool was committed
+	 */
+	public void reconcile(Integer poolId, int available, int used, long now, long countVersion) {
+		Changes changes = getChanges(true);
+		if (changes == null) {
+			publish(poolId, new Quantities(available, used, now), countVersion, false);
+			return;
+		}
+		// the count includes the changes of this transaction, which are applied to the shared counts on commit
+		Pending pending = changes.getOrCreate(poolId);
+		pending.counted = new Quantities(available - pending.available, used - pending.used, now);
+		pending.countVersion = countVersion;
+		pending.evicted = false;
+	}
+
+	/**
+	 * Records that the given number of identifiers were claimed from the pool with the given id
+	 * @should apply claims to the shared counts only when the transaction commits
+	 */
+	public void recordClaimed(Integer poolId, int quantity) {
+		adjust(poolId, -quantity, quantity);
+	}
+
+	/**
+	 * Records that the given number of identifiers were added to the pool with the given id
+	 */
+	public void recordAdded(Integer poolId, int quantity) {
+		adjust(poolId, quantity, 0);
+	}
+
+	private void adjust(Integer poolId, int available, int used) {
+		if (poolId == null || (available == 0 && used == 0)) {
+			return;
+		}
+		Changes changes = getChanges(true);
+		if (changes == null) {
+			apply(poolId, available, used);
+			return;
+		}
+		Pending pending = changes.getOrCreate(poolId);
+		pending.available += available;
+		pending.used += used;
+	}
+
+	/**
+	 * Forgets the counts of the pool with the given id, so that it is counted again the next time, and again after
+	 * the current transaction commits
+	 */
+	public void evict(Integer poolId) {
+		if (poolId == null) {
+			return;
+		}
+		remove(poolId);
+		Changes changes = getChanges(true);
+		if (changes != null) {
+			Pending pending = changes.getOrCreate(poolId);
+			pending.counted = null;
+			pending.evicted = true;
+			pending.available = 0;
+			pending.used = 0;
+		}
+	}
+
+	/**
+	 * Applies committed changes to the shared counts of a pool, if it has any
+	 */
+	private synchronized void apply(Integer poolId, int available, int used) {
+		changedAt.put(poolId, version.incrementAndGet());
+		Quantities q = counts.get(poolId);
+		if (q != null) {
+			counts.put(poolId, new Quantities(q.available + available, q.used + used, q.countedAt));
+		}
+	}
+
+	/**
+	 * Shares the given counts of a pool, unless a change to the pool was committed since they were started
+	 * @param changed whether the counts include changes just committed, which counts started earlier do not
+	 */
+	private synchronized void publish(Integer poolId, Quantities counted, long countVersion, boolean changed) {
+		Long lastChanged = changedAt.get(poolId);
+		if (lastChanged != null && lastChanged > countVersion) {
+			counts.remove(poolId);
+		}
+		else {
+			counts.put(poolId, counted);
+		}
+		if (changed) {
+			changedAt.put(poolId, version.incrementAndGet());
+		}
+	}
+
+	private synchronized void remove(Integer poolId) {
+		changedAt.put(poolId, version.incrementAndGet());
+		counts.remove(poolId);
+	}
+
+	/**
+	 * @return the changes made by the current transaction, or null if there is no transaction to hold them
+	 */
+	private Changes getChanges(boolean create) {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			return null;
+		}
+		Changes changes = (Changes) TransactionSynchronizationManager.getResource(this);
+		if (changes == null && create) {
+			changes = new Changes();
+			TransactionSynchronizationManager.bindResource(this, changes);
+			TransactionSynchronizationManager.registerSynchronization(new ChangesSynchronization(changes));
+		}
+		return changes;
+	}
+
+	/**
+	 * @return the number of seconds after which the counts of a pool are counted again, 0 to always count, which is
+	 * also the case when the global property is not set
+	 */
+	public int getReconcileInterval() {
+		if (reconcileInterval == null) {
+			reconcileInterval = IdgenUtil.getGlobalPropertyAsInt(IdgenConstants.GP_POOL_COUNT_RECONCILE_INTERVAL, 0);
+		}
+		return reconcileInterval;
+	}
+
+	/**
+	 * @see GlobalPropertyListener#supportsPropertyName(String)
+	 */
+	@Override
+	public boolean supportsPropertyName(String propertyName) {
+		return IdgenConstants.GP_POOL_COUNT_RECONCILE_INTERVAL.equals(propertyName);
+	}
+
+	/**
+	 * @see GlobalPropertyListener#globalPropertyChanged(GlobalProperty)
+	 */
+	@Override
+	public void globalPropertyChanged(GlobalProperty newValue) {
+		reconcileInterval = null;
+		counts.clear();
+	}
+
+	/**
+	 * @see GlobalPropertyListener#globalPropertyDeleted(String)
+	 */
+	@Override
+	public void globalPropertyDeleted(String propertyName) {
+		reconcileInterval = null;
+		counts.clear();
+	}
+
+	private static class Quantities {
+
+		private final int available;
+		private final int used;
+		private final long countedAt;
+
+		public Quantities(int available, int used, long countedAt) {
+			this.available = available;
+			this.used = used;
+			this.countedAt = countedAt;
+		}
+	}
+
+	/**
+	 * The changes made to one pool by the current transaction
+	 */
+	private static class Pending {
+
+		private int available;
+		private int used;
+		private Quantities counted;
+		private long countVersion;
+		private boolean evicted;
+	}
+
+	private static class Changes extends HashMap<Integer, Pending> {
+
+		public Pending getOrCreate(Integer poolId) {
+			Pending pending = get(poolId);
+			if (pending == null) {
+				pending = new Pending();
+				put(poolId, pending);
+			}
+			return pending;
+		}
+	}
+
+	/**
+	 * Applies the changes of a transaction to the shared counts when it commits, and keeps them apart from those of
+	 * any transaction started while it is suspended
+	 */
+	private class ChangesSynchronization extends TransactionSynchronizationAdapter {
+
+		private final Changes changes;
+
+		public ChangesSynchronization(Changes changes) {
+			this.changes = changes;
+		}
+
+		@Override
+		public void suspend() {
+			TransactionSynchronizationManager.unbindResourceIfPossible(PoolQuantityCounter.this);
+		}
+
+		@Override
+		public void resume() {
+			TransactionSynchronizationManager.bindResource(PoolQuantityCounter.this, changes);
+		}
+
+		@Override
+		public void afterCommit() {
+			for (Map.Entry<Integer, Pending> entry : changes.entrySet()) {
+				Pending pending = entry.getValue();
+				if (pending.evicted) {
+					remove(entry.getKey());
+				}
+				else if (pending.counted != null) {
+					// counts of other transactions committed since this count was started are not merged into it
+					Quantities c = pending.counted;
+					publish(entry.getKey(), new Quantities(c.available + pending.available, c.used + pending.used, c.countedAt),
+					    pending.countVersion, pending.available != 0 || pending.used != 0);
+				}
+				else {
+					apply(entry.getKey(), pending.available, pending.used);
+				}
+			}
+		}
+
+		@Override
+		public void afterCompletion(int status) {
+			TransactionSynchronizationManager.unbindResourceIfPossible(PoolQuantityCounter.this);
+		}
+	}
+}
@@ -0,0 +1,68 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.idgen.service;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Immutable lookup of the reserved identifiers of a source, held as a sorted array so that it stays compact
+ * when there are many reservations, and can be shared between threads and cached between generations
+ */
+public class ReservedIdentifierIndex {
+
+	private final String[] identifiers;
+
+	private final long expiresAt;
+
+	/**
+	 * @param reservedIdentifiers the reserved identifiers, which are copied, for a lookup which is not to be cached
+	 */
+	public ReservedIdentifierIndex(Collection<String> reservedIdentifiers) {
+		this(reservedIdentifiers, 0);
+	}
+
+	/**
+	 * @param reservedIdentifiers the reserved identifiers, which are copied
+	 * @param expiresAt the time in milliseconds after which the reserved identifiers must be loaded again, to see
+	 * those changed by other servers
+	 */
+	public ReservedIdentifierIndex(Collection<String> reservedIdentifiers, long expiresAt) {
+		this.identifiers = reservedIdentifiers.toArray(new String[reservedIdentifiers.size()]);
+		this.expiresAt = expiresAt;
+		Arrays.sort(this.identifiers);
+	}
+
+	/**
+	 * @return whether the reserved identifiers must be loaded again at the given time
+	 */
+	public boolean isExpired(long now) {
+		return now >= expiresAt;
+	}
+
+	/**
+	 * @return true if the given identifier is reserved
+	 * @should return true for reserved identifiers only
+	 */
+	public boolean contains(String identifier) {
+		return identifiers.length > 0 && Arrays.binarySearch(identifiers, identifier) >= 0;
+	}
+
+	/**
+	 * @return the number of reserved identifiers
+	 */
+	public int size() {
+		return identifiers.length;
+	}
+}
@@ -16,11 +16,13 @@ package org.openmrs.module.idgen.service.db;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.Criteria;
+import org.hibernate.Hibernate;
 import org.hibernate.Query;
 import org.hibernate.criterion.Expression;
 import org.hibernate.criterion.MatchMode;
 import org.hibernate.criterion.Order;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.jdbc.Work;
 import org.openmrs.Location;
 import org.openmrs.PatientIdentifierType;
 import org.openmrs.User;
@@ -32,15 +34,26 @@ import org.openmrs.module.idgen.AutoGenerationOption;
 import org.openmrs.module.idgen.EmptyIdentifierPoolException;
 import org.openmrs.module.idgen.IdentifierPool;
 import org.openmrs.module.idgen.IdentifierSource;
+import org.openmrs.module.idgen.IdentifierSourceSummary;
 import org.openmrs.module.idgen.LogEntry;
 import org.openmrs.module.idgen.PooledIdentifier;
 import org.openmrs.module.idgen.SequentialIdentifierGenerator;
+import org.openmrs.module.idgen.service.AutoGenerationOptionIndex;
 import org.openmrs.module.idgen.service.IdentifierSourceService;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
+import java.util.UUID;
 
 /**
  *  Hibernate Implementation of the IdentifierSourceDAO Interface
@@ -49,6 +62,16 @@ import java.util.List;
 public class HibernateIdentifierSourceDAO implements IdentifierSourceDAO {
 	
 	protected Log log = LogFactory.getLog(getClass());
+
+	/**
+	 * Number of rows sent to the database in each JDBC batch by bulk inserts
+	 */
+	private static final int JDBC_BATCH_SIZE = 500;
+
+	/**
+	 * The locking clause for claiming pooled identifiers on the connected database, determined on first use
+	 */
+	private volatile String lockingClause;
 	
 	//***** PROPERTIES *****
 	
@@ -78,6 +101,28 @@ public class HibernateIdentifierSourceDAO implements IdentifierSourceDAO {
 		return criteria.list();
 	}
 
+	/**
+	 * @see IdentifierSourceDAO#getIdentifierSourceSummaries(Class, boolean)
+	 */
+	@SuppressWarnings("unchecked")
+	@Transactional(readOnly=true)
+	public List<IdentifierSourceSummary> getIdentifierSourceSummaries(Class<? extends IdentifierSource> type, boolean includeRetired) throws DAOException {
+		// querying the subclass itself only joins its own table, and the projection leaves its properties unloaded
+		StringBuilder hql = new StringBuilder("select s.id, s.uuid, s.name, s.identifierType.id, s.retired from ");
+		hql.append(type.getName()).append(" s");
+		if (!includeRetired) {
+			hql.append(" where s.retired = false");
+		}
+		hql.append(" order by s.name");
+		List<Object[]> rows = sessionFactory.getCurrentSession().createQuery(hql.toString()).list();
+		List<IdentifierSourceSummary> ret = new ArrayList<IdentifierSourceSummary>(rows.size());
+		for (Object[] row : rows) {
+			ret.add(new IdentifierSourceSummary((Integer) row[0], (String) row[1], (String) row[2], (Integer) row[3],
+					type, Boolean.TRUE.equals(row[4])));
+		}
+		return ret;
+	}
+
 	/**
 	 * @see IdentifierSourceService#saveIdentifierSource(IdentifierSource)
 	 */
@@ -113,7 +158,7 @@ public class HibernateIdentifierSourceDAO implements IdentifierSourceDAO {
 			criteria.addOrder(Order.asc("identifier"));
 		}
 		else {
-			criteria.addOrder(Order.asc("uuid"));
+			criteria.addOrder(Order.asc("claimOrder"));
 		}
 		List<PooledIdentifier> results = (List<PooledIdentifier>) criteria.list();
 		if (results.size() < quantity) {
@@ -122,20 +167,159 @@ public class HibernateIdentifierSourceDAO implements IdentifierSourceDAO {
 		return results;
 	}
 	
+	/**
+	 * @see IdentifierSourceDAO#claimAvailableIdentifiers(IdentifierPool, int, Date)
+	 */
+	@Transactional
+	public List<String> claimAvailableIdentifiers(final IdentifierPool pool, final int quantity, final Date dateUsed) {
+		final List<String> claimed = new ArrayList<String>(quantity);
+		if (quantity <= 0) {
+			return claimed;
+		}
+		DbSession currentSession = sessionFactory.getCurrentSession();
+		// pending changes to pooled identifiers must reach the database before the rows are claimed with plain JDBC
+		currentSession.flush();
+		currentSession.doWork(new Work() {
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				String orderBy = pool.isSequential() ? "identifier" : "claim_order";
+				PreparedStatement select = connection.prepareStatement("select id, identifier from idgen_pooled_identifier "
+						+ "where pool_id = ? and date_used is null order by " + orderBy + getLockingClause(connection));
+				List<Integer> ids = new ArrayList<Integer>(quantity);
+				try {
+					select.setMaxRows(quantity);
+					select.setInt(1, pool.getId());
+					ResultSet rs = select.executeQuery();
+					while (rs.next()) {
+						ids.add(rs.getInt(1));
+						claimed.add(rs.getString(2));
+					}
+					rs.close();
+				}
+				finally {
+					select.close();
+				}
+				if (claimed.size() < quantity) {
+					// the rows read stay locked until the caller ends the transaction
+					claimed.clear();
+					return;
+				}
+				for (int start = 0; start < ids.size(); start += JDBC_BATCH_SIZE) {
+					List<Integer> chunk = ids.subList(start, Math.min(start + JDBC_BATCH_SIZE, ids.size()));
+					StringBuilder sql = new StringBuilder("update idgen_pooled_identifier set date_used = ? where date_used is null and id in (");
+					for (int i = 0; i < chunk.size(); i++) {
+						sql.append(i == 0 ? "?" : ", ?");
+					}
+					PreparedStatement update = connection.prepareStatement(sql.append(")").toString());
+					try {
+						update.setTimestamp(1, new Timestamp(dateUsed.getTime()));
+						for (int i = 0; i < chunk.size(); i++) {
+							update.setInt(i + 2, chunk.get(i));
+						}
+						int updated = update.executeUpdate();
+						if (updated != chunk.size()) {
+							throw new APIException("Expected to claim " + chunk.size() + " pooled identifiers but claimed " + updated + " instead!");
+						}
+					}
+					finally {
+						update.close();
+					}
+				}
+			}
+		});
+		return claimed;
+	}
+
+	/**
+	 * @return the clause which makes a select lock the rows it returns, skipping rows locked by other transactions
+	 * where the database supports it, so that concurrent claims do not wait on each other.  Other databases get a
+	 * plain locking read, which makes concurrent claims from the same pool wait for each other.
+	 */
+	private String getLockingClause(Connection connection) throws SQLException {
+		if (lockingClause == null) {
+			DatabaseMetaData metaData = connection.getMetaData();
+			String product = metaData.getDatabaseProductName().toLowerCase();
+			int major = metaData.getDatabaseMajorVersion();
+			int minor = metaData.getDatabaseMinorVersion();
+			if ((product.contains("mysql") && major >= 8) || (product.contains("postgresql") && (major > 9 || (major == 9 && minor >= 5)))) {
+				lockingClause = " for update skip locked";
+			}
+			else {
+				lockingClause = " for update";
+			}
+		}
+		return lockingClause;
+	}
+
+	/**
+	 * @see IdentifierSourceDAO#addIdentifiersToPool(IdentifierPool, List)
+	 */
+	@Transactional
+	public void addIdentifiersToPool(final IdentifierPool pool, final List<String> identifiers) throws DAOException {
+		if (identifiers.isEmpty()) {
+			return;
+		}
+		DbSession currentSession = sessionFactory.getCurrentSession();
+		currentSession.flush();
+		currentSession.doWork(new Work() {
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				PreparedStatement statement = connection.prepareStatement("insert into idgen_pooled_identifier "
+						+ "(uuid, pool_id, identifier, claim_order) values (?, ?, ?, ?)");
+				try {
+					int batched = 0;
+					for (String identifier : identifiers) {
+						statement.setString(1, UUID.randomUUID().toString());
+						statement.setInt(2, pool.getId());
+						statement.setString(3, identifier);
+						statement.setInt(4, PooledIdentifier.randomClaimOrder());
+						statement.addBatch();
+						if (++batched == JDBC_BATCH_SIZE) {
+							statement.executeBatch();
+							batched = 0;
+						}
+					}
+					if (batched > 0) {
+						statement.executeBatch();
+					}
+				}
+				finally {
+					statement.close();
+				}
+			}
+		});
+		// a collection of pooled identifiers that was already loaded no longer matches the table
+		if (Hibernate.isInitialized(pool.getIdentifiers()) && currentSession.contains(pool)) {
+			currentSession.refresh(pool);
+		}
+	}
+
+	/**
+	 * @see IdentifierSourceDAO#getReservedIdentifiers(IdentifierSource)
+	 */
+	@SuppressWarnings("unchecked")
+	@Transactional(readOnly=true)
+	public List<String> getReservedIdentifiers(IdentifierSource source) throws DAOException {
+		return sessionFactory.getCurrentSession()
+				.createSQLQuery("select identifier from idgen_reserved_identifier where source = :source")
+				.setParameter("source", source.getId())
+				.list();
+	}
+
 	/**
 	 * @see IdentifierSourceDAO#getQuantityInPool(IdentifierPool, boolean, boolean)
 	 */
 	@Transactional(readOnly=true)
 	public int getQuantityInPool(IdentifierPool pool, boolean availableOnly, boolean usedOnly) {
-		String hql = "select count(*) from PooledIdentifier where pool_id = " + pool.getId();
+		String hql = "select count(*) from PooledIdentifier where pool = :pool";
 		if (availableOnly) {
-			hql += " and date_used is null";
+			hql += " and dateUsed is null";
 		}
 		if (usedOnly) {
-			hql += " and date_used is not null";
+			hql += " and dateUsed is not null";
 		}
-		Query query = sessionFactory.getCurrentSession().createQuery(hql);
-		return Integer.parseInt(query.uniqueResult().toString());
+		Query query = sessionFactory.getCurrentSession().createQuery(hql).setParameter("pool", pool);
+		return ((Number) query.uniqueResult()).intValue();
 	}
 
     /**
@@ -144,9 +328,45 @@ public class HibernateIdentifierSourceDAO implements IdentifierSourceDAO {
     @Transactional(readOnly=true)
     @Override
     public AutoGenerationOption getAutoGenerationOption(Integer autoGenerationOptionId) throws DAOException {
-        Criteria criteria = sessionFactory.getCurrentSession().createCriteria(AutoGenerationOption.class);
-        criteria.add(Expression.eq("id", autoGenerationOptionId));
-        return (AutoGenerationOption)criteria.uniqueResult();
+        if (autoGenerationOptionId == null) {
+            return null;
+        }
+        return (AutoGenerationOption) sessionFactory.getCurrentSession().get(AutoGenerationOption.class, autoGenerationOptionId);
+    }
+
+    /**
+     * @see IdentifierSourceDAO#getPatientIdentifierTypesByAutoGenerationOption(boolean, boolean)
+     */
+    @SuppressWarnings("unchecked")
+    @Transactional(readOnly=true)
+    public List<PatientIdentifierType> getPatientIdentifierTypesByAutoGenerationOption(boolean manualEntryEnabled, boolean automaticGenerationEnabled) throws DAOException {
+        // ordered like PatientService#getAllPatientIdentifierTypes()
+        return (List<PatientIdentifierType>) sessionFactory.getCurrentSession().createQuery(
+                "select distinct t from AutoGenerationOption o join o.identifierType t "
+                        + "where o.manualEntryEnabled = :manualEntryEnabled and o.automaticGenerationEnabled = :automaticGenerationEnabled "
+                        + "and t.retired = false order by t.required desc, t.name, t.patientIdentifierTypeId")
+                .setParameter("manualEntryEnabled", manualEntryEnabled)
+                .setParameter("automaticGenerationEnabled", automaticGenerationEnabled)
+                .list();
+    }
+
+    /**
+     * @see IdentifierSourceDAO#getAutoGenerationOptionIndexEntries()
+     */
+    @SuppressWarnings("unchecked")
+    @Transactional(readOnly=true)
+    public List<AutoGenerationOptionIndex.Entry> getAutoGenerationOptionIndexEntries() throws DAOException {
+        // selects the ids alone, so the identifier types, locations and sources of the options are not loaded
+        List<Object[]> rows = sessionFactory.getCurrentSession().createQuery(
+                "select o.id, t.id, l.id, s.id, o.manualEntryEnabled, o.automaticGenerationEnabled "
+                        + "from AutoGenerationOption o join o.identifierType t join o.source s left join o.location l")
+                .list();
+        List<AutoGenerationOptionIndex.Entry> entries = new ArrayList<AutoGenerationOptionIndex.Entry>(rows.size());
+        for (Object[] row : rows) {
+            entries.add(new AutoGenerationOptionIndex.Entry((Integer) row[0], (Integer) row[1], (Integer) row[2],
+                    (Integer) row[3], Boolean.TRUE.equals(row[4]), Boolean.TRUE.equals(row[5])));
+        }
+        return entries;
     }
 
     /**
@@ -268,6 +488,49 @@ public class HibernateIdentifierSourceDAO implements IdentifierSourceDAO {
 		return logEntry;
 	}
 
+	/**
+	 * @see IdentifierSourceDAO#saveLogEntries(List)
+	 */
+	public void saveLogEntries(final List<LogEntry> logEntries) throws DAOException {
+		if (logEntries.isEmpty()) {
+			return;
+		}
+		// plain JDBC, because the identity-generated ids of LogEntry prevent Hibernate from batching inserts
+		sessionFactory.getCurrentSession().doWork(new Work() {
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				PreparedStatement statement = connection.prepareStatement("insert into idgen_log_entry "
+						+ "(source, identifier, date_generated, generated_by, comment) values (?, ?, ?, ?, ?)");
+				try {
+					int batched = 0;
+					for (LogEntry logEntry : logEntries) {
+						statement.setInt(1, logEntry.getSource().getId());
+						statement.setString(2, logEntry.getIdentifier());
+						statement.setTimestamp(3, new Timestamp(logEntry.getDateGenerated().getTime()));
+						if (logEntry.getGeneratedBy() == null) {
+							statement.setNull(4, Types.INTEGER);
+						}
+						else {
+							statement.setInt(4, logEntry.getGeneratedBy().getUserId());
+						}
+						statement.setString(5, logEntry.getComment());
+						statement.addBatch();
+						if (++batched == JDBC_BATCH_SIZE) {
+							statement.executeBatch();
+							batched = 0;
+						}
+					}
+					if (batched > 0) {
+						statement.executeBatch();
+					}
+				}
+				finally {
+					statement.close();
+				}
+			}
+		});
+	}
+
     /**
      * @see IdentifierSourceDAO#saveSequenceValue(org.openmrs.module.idgen.SequentialIdentifierGenerator, long)
      */
@@ -20,9 +20,11 @@ import org.openmrs.api.db.DAOException;
 import org.openmrs.module.idgen.AutoGenerationOption;
 import org.openmrs.module.idgen.IdentifierPool;
 import org.openmrs.module.idgen.IdentifierSource;
+import org.openmrs.module.idgen.IdentifierSourceSummary;
 import org.openmrs.module.idgen.LogEntry;
 import org.openmrs.module.idgen.PooledIdentifier;
 import org.openmrs.module.idgen.SequentialIdentifierGenerator;
+import org.openmrs.module.idgen.service.AutoGenerationOptionIndex;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.util.Date;
@@ -49,6 +51,14 @@ public interface IdentifierSourceDAO {
 	@Transactional(readOnly = true)
 	public List<IdentifierSource> getAllIdentifierSources(boolean includeRetired) throws DAOException;
 
+	/**
+	 * @param type the IdentifierSource subclass to read
+	 * @param includeRetired if true, also returns retired IdentifierSources
+	 * @return a summary of each IdentifierSource of the given type, ordered by name, read with a projection
+	 */
+	@Transactional(readOnly = true)
+	public List<IdentifierSourceSummary> getIdentifierSourceSummaries(Class<? extends IdentifierSource> type, boolean includeRetired) throws DAOException;
+
 	/**
 	 * Persists a IdentifierSource, either as a save or update.
 	 * @param identifierSource
@@ -69,7 +79,36 @@ public interface IdentifierSourceDAO {
 	 */
 	@Transactional(readOnly=true)
 	public List<PooledIdentifier> getAvailableIdentifiers(IdentifierPool pool, int quantity) throws DAOException;
+
+	/**
+	 * Marks the given quantity of available identifiers in the pool as used, in the order they would be returned by
+	 * {@link #getAvailableIdentifiers(IdentifierPool, int)}, and returns them.  The claimed rows are selected with a
+	 * locking read, so concurrent claims from other threads or servers never return the same identifier.
+	 * <p>
+	 * On databases which can skip locked rows (MySQL 8 and PostgreSQL 9.5 onwards) concurrent claims take different
+	 * rows without waiting for each other.  On any other database a claim waits until concurrent claims from the same
+	 * pool have committed, so claims from one pool are handled one at a time across all servers, and the transactions
+	 * claiming from pools should be kept short.
+	 * <p>
+	 * The rows read stay locked until the transaction ends, also when too few are found and none are claimed, which on
+	 * MySQL includes the gaps between them.  The caller must then end the transaction, by rolling it back, before the
+	 * pool is refilled, since the refill inserts rows into those gaps.
+	 * @return the claimed identifiers, or an empty list if the pool has fewer available identifiers, in which case
+	 * none are claimed
+	 */
+	public List<String> claimAvailableIdentifiers(IdentifierPool pool, int quantity, Date dateUsed) throws DAOException;
 	
+	/**
+	 * Inserts the given identifiers into a saved pool as available identifiers, without loading the identifiers
+	 * already in the pool
+	 */
+	public void addIdentifiersToPool(IdentifierPool pool, List<String> identifiers) throws DAOException;
+
+	/**
+	 * Returns the reserved identifiers of the given source, without loading its reservedIdentifiers collection
+	 */
+	public List<String> getReservedIdentifiers(IdentifierSource source) throws DAOException;
+
 	/**
 	 * Returns Pooled Identifiers for the given source, with the given status options
 	 */
@@ -92,6 +131,21 @@ public interface IdentifierSourceDAO {
 	@Transactional(readOnly=true)
 	public AutoGenerationOption getAutoGenerationOption(PatientIdentifierType type, Location location) throws DAOException;
 
+    /**
+     * @param manualEntryEnabled
+     * @param automaticGenerationEnabled
+     * @return the unretired PatientIdentifierTypes which have an AutoGenerationOption with the given flags, found in a
+     * single query
+     */
+    @Transactional(readOnly = true)
+    public List<PatientIdentifierType> getPatientIdentifierTypesByAutoGenerationOption(boolean manualEntryEnabled, boolean automaticGenerationEnabled) throws DAOException;
+
+    /**
+     * @return the ids and flags of all AutoGenerationOptions, found in a single query without loading the options
+     */
+    @Transactional(readOnly = true)
+    public List<AutoGenerationOptionIndex.Entry> getAutoGenerationOptionIndexEntries() throws DAOException;
+
     /**
      * @param type
      * @return the AutoGenerationOption that matches the given PatientIdentifierType
@@ -128,6 +182,13 @@ public interface IdentifierSourceDAO {
 	 * @throws DAOException
 	 */
 	public LogEntry saveLogEntry(LogEntry logEntry) throws DAOException;
+
+	/**
+	 * Saves new Log Entries with batched inserts, rather than one statement per entry.
+	 * The saved entries are not associated with the current session and their ids are not set.
+	 * @throws DAOException
+	 */
+	public void saveLogEntries(List<LogEntry> logEntries) throws DAOException;
 	
 	/**
 	 * Retrieves the Log Entries that match the supplied parameters.  All parameters are optional.
@@ -0,0 +1,54 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.idgen.task;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.idgen.service.IdentifierSourceService;
+import org.openmrs.module.idgen.service.LogEntryQueue;
+
+/**
+ * Writes log entries which have been queued for writing in the background to the database.  No thread is started
+ * while there are none, which is always the case once any left over from asynchronous logging have been written
+ * after it was switched off.
+ */
+public class FlushLogEntriesTask extends IdgenTask {
+
+    private Log log = LogFactory.getLog(getClass());
+
+    @Override
+    protected boolean isRunNeeded() {
+        LogEntryQueue queue = Context.getRegisteredComponent("idgenLogEntryQueue", LogEntryQueue.class);
+        return queue == null || queue.hasPendingEntries();
+    }
+
+    @Override
+    public Runnable getRunnableTask() {
+        return new RunnableTask();
+    }
+
+    private class RunnableTask implements Runnable {
+        @Override
+        public void run() {
+            try {
+                Context.getService(IdentifierSourceService.class).flushQueuedLogEntries();
+            }
+            catch (Exception ex) {
+                log.warn("Failed to write queued log entries, will retry on the next run", ex);
+            }
+        }
+    }
+
+}
@@ -26,7 +26,9 @@ public abstract class IdgenTask extends TimerTask {
 	@Override
 	public final void run() {
 		if (daemonToken != null && enabled) {
-			createAndRunTask();
+			if (isRunNeeded()) {
+				createAndRunTask();
+			}
 		}
 		else {
 			log.warn("Not running scheduled task. DaemonToken = " + daemonToken + "; enabled = " + enabled);
@@ -48,6 +50,13 @@ public abstract class IdgenTask extends TimerTask {
 
 	public abstract Runnable getRunnableTask();
 
+	/**
+	 * @return false if the task has nothing to do, in which case no thread is started for it, true by default
+	 */
+	protected boolean isRunNeeded() {
+		return true;
+	}
+
 	/**
 	 * Sets the daemon token
 	 */
@@ -55,6 +64,18 @@ public abstract class IdgenTask extends TimerTask {
 		daemonToken = token;
 	}
 
+	/**
+	 * Runs the given runnable in a daemon thread with a session of its own, if the module is running
+	 * @return false if the runnable was not run, because the module is not running
+	 */
+	public static boolean runInDaemonThread(Runnable runnable) {
+		if (daemonToken == null || !enabled) {
+			return false;
+		}
+		Daemon.runInDaemonThread(runnable, daemonToken);
+		return true;
+	}
+
 	public static boolean isEnabled() {
 		return enabled;
 	}
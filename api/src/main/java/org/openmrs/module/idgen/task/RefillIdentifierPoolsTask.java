@@ -13,20 +13,47 @@
  */
 package org.openmrs.module.idgen.task;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.idgen.IdentifierPool;
 import org.openmrs.module.idgen.IdentifierSource;
+import org.openmrs.module.idgen.IdgenConstants;
+import org.openmrs.module.idgen.IdgenUtil;
 import org.openmrs.module.idgen.service.IdentifierSourceService;
 
 /**
  * For all identifier pools that are configured to be refilled by a scheduled task, refill if necessary
+ *
+ * Pools are refilled in parallel, each in a daemon thread of its own, with at most
+ * {@link IdgenConstants#GP_REFILL_THREADS} refills running at once, so that one slow pool does not hold up the
+ * others.  A pool is never refilled by two runs at once.  Each run logs a summary of what each refill did, and
+ * stops waiting for refills which take longer than {@link IdgenConstants#GP_REFILL_TIMEOUT}.  A refill which timed
+ * out is left to finish, since interrupting it would abort its transaction part way, and it keeps its thread and
+ * its pool until it does.
  */
 public class RefillIdentifierPoolsTask extends IdgenTask {
 
     private Log log = LogFactory.getLog(getClass());
 
+    /**
+     * Ids of the pools currently being refilled, including by earlier runs which are still going
+     */
+    private static final ConcurrentHashMap<Integer, Boolean> refillsInProgress = new ConcurrentHashMap<Integer, Boolean>();
+
+    /**
+     * Refill threads shared by all runs, so that refills still going from an earlier run count against the limit
+     */
+    private Semaphore permits;
+    private int permitCount;
+
     @Override
     public Runnable getRunnableTask() {
         return new RunnableTask();
@@ -35,21 +62,181 @@ public class RefillIdentifierPoolsTask extends IdgenTask {
     private class RunnableTask implements Runnable {
         @Override
         public void run() {
-            IdentifierSourceService service = Context.getService(IdentifierSourceService.class);
-            for (IdentifierSource source : service.getAllIdentifierSources(false)) {
-                if (source instanceof IdentifierPool) {
-                    IdentifierPool pool = (IdentifierPool) source;
-                    if (pool.isRefillWithScheduledTask()) {
-                        try {
-                            service.checkAndRefillIdentifierPool(pool);
-                        }
-                        catch (Exception ex) {
-                            log.warn("Failed to refill identifier pool: " + pool.getName(), ex);
-                        }
-                    }
+            List<String> results = refillPools();
+            if (!results.isEmpty()) {
+                StringBuilder summary = new StringBuilder("Refilled identifier pools:");
+                for (String result : results) {
+                    summary.append("\n  ").append(result);
                 }
+                log.info(summary);
             }
         }
     }
 
+    /**
+     * Refills the pools which are refilled by this task and waits for the refills to finish or time out
+     * @return what the refill of each pool did
+     * @should refill each pool refilled by the task
+     * @should stop waiting for a refill which times out without interrupting it
+     * @should skip a pool still being refilled by an earlier run
+     */
+    protected List<String> refillPools() {
+        long timeout = getRefillTimeout();
+        Semaphore permits = getPermits();
+
+        List<PoolRefill> refills = new ArrayList<PoolRefill>();
+        for (IdentifierSource source : getService().getAllIdentifierSources(false)) {
+            if (source instanceof IdentifierPool) {
+                IdentifierPool pool = (IdentifierPool) source;
+                if (pool.isRefillWithScheduledTask()) {
+                    PoolRefill refill = new PoolRefill(pool, permits);
+                    refills.add(refill);
+                    refill.start(timeout);
+                }
+            }
+        }
+
+        List<String> results = new ArrayList<String>(refills.size());
+        for (PoolRefill refill : refills) {
+            refill.await(timeout);
+            results.add(refill.toString());
+        }
+        return results;
+    }
+
+    /**
+     * @return the refill threads, replaced when their number is changed
+     */
+    private synchronized Semaphore getPermits() {
+        int threads = getRefillThreads();
+        if (permits == null || threads != permitCount) {
+            permits = new Semaphore(threads);
+            permitCount = threads;
+        }
+        return permits;
+    }
+
+    protected IdentifierSourceService getService() {
+        return Context.getService(IdentifierSourceService.class);
+    }
+
+    /**
+     * @return the maximum number of pools refilled at once
+     */
+    protected int getRefillThreads() {
+        return Math.max(1, IdgenUtil.getGlobalPropertyAsInt(IdgenConstants.GP_REFILL_THREADS, 4));
+    }
+
+    /**
+     * @return the number of milliseconds to wait for the refill of one pool
+     */
+    protected long getRefillTimeout() {
+        return TimeUnit.SECONDS.toMillis(Math.max(1, IdgenUtil.getGlobalPropertyAsInt(IdgenConstants.GP_REFILL_TIMEOUT, 600)));
+    }
+
+    /**
+     * Runs the refill of one pool in a daemon thread with a session of its own
+     * @return false if it was not run, because the module is not running
+     */
+    protected boolean runInBackground(Runnable refill) {
+        return IdgenTask.runInDaemonThread(refill);
+    }
+
+    /**
+     * The refill of one pool, run in a daemon thread with a session of its own
+     */
+    private class PoolRefill implements Runnable {
+
+        private final Integer poolId;
+        private final String poolName;
+        private final Semaphore permits;
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private volatile String result;
+        private volatile long started;
+        private volatile long finished;
+
+        public PoolRefill(IdentifierPool pool, Semaphore permits) {
+            this.poolId = pool.getId();
+            this.poolName = pool.getName();
+            this.permits = permits;
+        }
+
+        /**
+         * Starts the refill once a thread is free, unless the pool is already being refilled
+         */
+        public void start(long timeout) {
+            if (refillsInProgress.putIfAbsent(poolId, Boolean.TRUE) != null) {
+                finish("skipped, still being refilled by an earlier run");
+                return;
+            }
+            try {
+                if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                    refillsInProgress.remove(poolId);
+                    finish("skipped, no refill thread became free within " + timeout + " ms");
+                    return;
+                }
+            }
+            catch (InterruptedException e) {
+                refillsInProgress.remove(poolId);
+                Thread.currentThread().interrupt();
+                finish("skipped, interrupted");
+                return;
+            }
+            started = System.currentTimeMillis();
+            if (!runInBackground(this)) {
+                refillsInProgress.remove(poolId);
+                permits.release();
+                finish("skipped, the module is not running");
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                IdentifierSourceService service = getService();
+                IdentifierPool pool = (IdentifierPool) service.getIdentifierSource(poolId);
+                int before = service.getQuantityInPool(pool, true, false);
+                service.checkAndRefillIdentifierPool(pool);
+                int after = service.getQuantityInPool(pool, true, false);
+                finish("added " + (after - before) + " identifiers, " + after + " available");
+            }
+            catch (Exception ex) {
+                log.warn("Failed to refill identifier pool: " + poolName, ex);
+                finish("failed: " + ex.getMessage());
+            }
+            finally {
+                refillsInProgress.remove(poolId);
+                permits.release();
+            }
+        }
+
+        /**
+         * Waits for the refill to finish until it has run for the given timeout.  A refill which has not finished by
+         * then is left running, holding its thread, and later runs skip the pool until it finishes.
+         */
+        public void await(long timeout) {
+            try {
+                long remaining = (started == 0 ? 0 : started + timeout - System.currentTimeMillis());
+                if (!done.await(Math.max(0, remaining), TimeUnit.MILLISECONDS)) {
+                    result = "timed out after " + timeout + " ms, still running and holding a refill thread until it finishes";
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void finish(String result) {
+            this.result = result;
+            this.finished = System.currentTimeMillis();
+            done.countDown();
+        }
+
+        @Override
+        public String toString() {
+            String duration = (started > 0 && finished > 0 ? " in " + (finished - started) + " ms" : "");
+            return poolName + " (" + poolId + "): " + result + duration;
+        }
+    }
 }
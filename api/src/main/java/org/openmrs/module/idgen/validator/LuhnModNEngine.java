@@ -0,0 +1,130 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.idgen.validator;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.openmrs.patient.UnallowedIdentifierException;
+
+/**
+ * Table-driven implementation of the Luhn Mod-N algorithm for one set of base characters.
+ * Characters are mapped to their code points through an array indexed by character, and the sum of digits
+ * of every doubled code point is precomputed, so computing or validating a check digit is a single pass
+ * over the input that allocates nothing.  Engines are immutable and shared between all validators using the
+ * same base characters.
+ */
+public final class LuhnModNEngine {
+
+	private static final ConcurrentHashMap<String, LuhnModNEngine> ENGINES = new ConcurrentHashMap<String, LuhnModNEngine>();
+
+	private final char[] baseChars;
+
+	private final int mod;
+
+	/**
+	 * Code point of each character, indexed by character, -1 for characters outside the base.
+	 * Lower-case variants of the base characters map to the same code point.
+	 */
+	private final int[] codePoints;
+
+	/**
+	 * Sum of the digits, expressed in base mod, of twice each code point
+	 */
+	private final int[] doubledAddends;
+
+	private LuhnModNEngine(String baseCharacters) {
+		this.baseChars = baseCharacters.toCharArray();
+		this.mod = baseChars.length;
+		char max = 0;
+		for (char c : baseChars) {
+			max = (char) Math.max(max, Math.max(c, Character.toLowerCase(c)));
+		}
+		this.codePoints = new int[max + 1];
+		Arrays.fill(codePoints, -1);
+		for (int j = 0; j < baseChars.length; j++) {
+			codePoints[baseChars[j]] = j;
+		}
+		for (int j = 0; j < baseChars.length; j++) {
+			char lower = Character.toLowerCase(baseChars[j]);
+			if (codePoints[lower] == -1) {
+				codePoints[lower] = j;
+			}
+		}
+		this.doubledAddends = new int[mod];
+		for (int j = 0; j < mod; j++) {
+			int addend = 2 * j;
+			doubledAddends[j] = (addend / mod) + (addend % mod);
+		}
+	}
+
+	/**
+	 * @return the shared engine for the given base characters
+	 */
+	public static LuhnModNEngine forBaseCharacters(String baseCharacters) {
+		LuhnModNEngine engine = ENGINES.get(baseCharacters);
+		if (engine == null) {
+			engine = new LuhnModNEngine(baseCharacters);
+			LuhnModNEngine existing = ENGINES.putIfAbsent(baseCharacters, engine);
+			if (existing != null) {
+				engine = existing;
+			}
+		}
+		return engine;
+	}
+
+	/**
+	 * Computes the check digit for the characters from start (inclusive) to end (exclusive)
+	 * @should compute the same check digit as the linear algorithm
+	 * @should accept lower-case characters
+	 * @should throw an UnallowedIdentifierException for characters outside the base
+	 */
+	public char computeCheckDigit(CharSequence chars, int start, int end) {
+		int checkCodePoint = (mod - sum(chars, start, end, true) % mod) % mod;
+		return baseChars[checkCodePoint];
+	}
+
+	/**
+	 * Validates the check digit at the end of the characters from start (inclusive) to end (exclusive)
+	 * @should validate a correct check digit
+	 */
+	public boolean validateCheckDigit(CharSequence chars, int start, int end) {
+		return sum(chars, start, end, false) % mod == 0;
+	}
+
+	/**
+	 * Sums the addends of the given characters, starting from the right with a doubled addend if doubleFirst
+	 */
+	private int sum(CharSequence chars, int start, int end, boolean doubleFirst) {
+		int sum = 0;
+		boolean doubled = doubleFirst;
+		for (int i = end - 1; i >= start; i--) {
+			char c = chars.charAt(i);
+			int codePoint = c < codePoints.length ? codePoints[c] : -1;
+			if (codePoint == -1) {
+				throw new UnallowedIdentifierException("Invalid character specified for validator");
+			}
+			sum += doubled ? doubledAddends[codePoint] : codePoint;
+			doubled = !doubled;
+		}
+		return sum;
+	}
+
+	/**
+	 * @return the number of base characters
+	 */
+	public int getMod() {
+		return mod;
+	}
+}
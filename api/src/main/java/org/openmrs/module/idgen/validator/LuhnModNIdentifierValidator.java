@@ -19,8 +19,12 @@ import org.openmrs.patient.UnallowedIdentifierException;
 /**
  * A IdentifierValidator based on the Luhn Mod-N Algorithm
  * See http://en.wikipedia.org/wiki/Luhn_mod_N_algorithm
+ * The algorithm itself is implemented by the {@link LuhnModNEngine} shared by all validators with the same
+ * base characters.
  */
 public abstract class LuhnModNIdentifierValidator implements IdentifierValidator {
+
+	private volatile LuhnModNEngine engine;
 	
 	/**
 	 * This is the primary method for determining the Base for this implementation.
@@ -78,8 +82,10 @@ public abstract class LuhnModNIdentifierValidator implements IdentifierValidator
 	public boolean isValid(String identifier) throws UnallowedIdentifierException {
 		try {
 			identifier = standardizeValidIdentifier(identifier);
-			String undecoratedIdentifier = identifier.substring(0, identifier.length()-1);
-			return identifier.equals(getValidIdentifier(undecoratedIdentifier));
+			if (identifier.length() == 0) {
+				throw new IllegalArgumentException("Identifier must include a check digit");
+			}
+			return getEngine().validateCheckDigit(identifier, 0, identifier.length());
 		}
 		catch (Exception e) {
 			throw new UnallowedIdentifierException("Invalid identifier specified for validator", e);
@@ -91,39 +97,17 @@ public abstract class LuhnModNIdentifierValidator implements IdentifierValidator
 	 * @should compute a valid check digit
 	 */
 	public char computeCheckDigit(String undecoratedIdentifier) {
-		int factor = 2;
-		int sum = 0;
-		char[] inputChars = standardizeValidIdentifier(undecoratedIdentifier).toCharArray();
-		char[] baseChars = getBaseCharacters().toCharArray();
-		int mod = baseChars.length;
-	 
-		// Starting from the right and working leftwards is easier since the initial "factor" will always be "2" 
-		for (int i = inputChars.length - 1; i >= 0; i--) {
-			int codePoint = -1;
-			for (int j=0; j<baseChars.length; j++) {
-				if (baseChars[j] == inputChars[i]) {
-					codePoint = j;
-				}
-			}
-			if (codePoint == -1) {
-				throw new UnallowedIdentifierException("Invalid character specified for validator");
-			}
-			int addend = factor * codePoint;
-	 
-			// Alternate the "factor" that each "codePoint" is multiplied by
-			factor = (factor == 2) ? 1 : 2;
-	 
-			// Sum the digits as expressed in base "n"
-			addend = (addend / mod) + (addend % mod);
-			sum += addend;
-		}
-	 
-		// Calculate the number that must be added to the "sum" to make it divisible by "n"
-		int remainder = sum % mod;
-		int checkCodePoint = mod - remainder;
-		checkCodePoint %= mod;
-		
-		return baseChars[checkCodePoint];
+		String standardized = standardizeValidIdentifier(undecoratedIdentifier);
+		return getEngine().computeCheckDigit(standardized, 0, standardized.length());
+	}
+
+	/**
+	 * Computes the check digit for the characters of an undecorated identifier from start (inclusive) to
+	 * end (exclusive), without allocating.  The characters are not standardized, apart from being matched
+	 * regardless of case.
+	 */
+	public char computeCheckDigit(CharSequence undecoratedIdentifier, int start, int end) {
+		return getEngine().computeCheckDigit(undecoratedIdentifier, start, end);
 	}
 	
 	/**
@@ -131,31 +115,28 @@ public abstract class LuhnModNIdentifierValidator implements IdentifierValidator
 	 * @should validate a correct check digit
 	 */
 	public boolean validateCheckDigit(String identifier) {
-		int factor = 1;
-		int sum = 0;
-		char[] inputChars = standardizeValidIdentifier(identifier).toCharArray();
-		char[] baseChars = getBaseCharacters().toCharArray();
-		int mod = baseChars.length;
+		String standardized = standardizeValidIdentifier(identifier);
+		return getEngine().validateCheckDigit(standardized, 0, standardized.length());
+	}
 
-		for (int i = inputChars.length-1; i >= 0; i--) {
-			int codePoint = -1;
-			for (int j=0; j<baseChars.length; j++) {
-				if (baseChars[j] == inputChars[i]) {
-					codePoint = j;
-				}
-			}
-			if (codePoint == -1) {
-				throw new UnallowedIdentifierException("Invalid character specified for validator");
-			}
-			int addend = factor * codePoint;
-			// Alternate the "factor" that each "codePoint" is multiplied by
-			factor = (factor == 2) ? 1 : 2;
-		 
-			// Sum the digits as expressed in base "n"
-			addend = (addend / mod) + (addend % mod);
-			sum += addend;
+	/**
+	 * Validates the check digit at the end of the characters of an identifier from start (inclusive) to
+	 * end (exclusive), without allocating.  The characters are not standardized, apart from being matched
+	 * regardless of case.
+	 */
+	public boolean validateCheckDigit(CharSequence identifier, int start, int end) {
+		return getEngine().validateCheckDigit(identifier, start, end);
+	}
+
+	/**
+	 * @return the table-driven engine for the base characters of this validator
+	 */
+	protected LuhnModNEngine getEngine() {
+		LuhnModNEngine engine = this.engine;
+		if (engine == null) {
+			engine = LuhnModNEngine.forBaseCharacters(getBaseCharacters());
+			this.engine = engine;
 		}
-		int remainder = sum % mod;
-		return (remainder == 0);
+		return engine;
 	}
 }
@@ -0,0 +1,99 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.idgen;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.test.Verifies;
+
+public class BaseCodecTest {
+
+	private static final String BASE_CHARACTERS = "0123456789ACDEFGHJKLMNPRTUVWXY";
+
+	/**
+	 * Encodes the way IdgenUtil always has, to compare against
+	 */
+	private String divide(long n, char[] baseCharacters, int padToLength) {
+		StringBuilder sb = new StringBuilder();
+		while (n > 0) {
+			sb.insert(0, baseCharacters[(int) (n % baseCharacters.length)]);
+			n = n / baseCharacters.length;
+		}
+		while (sb.length() < padToLength) {
+			sb.insert(0, baseCharacters[0]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @see {@link BaseCodec#encode(long,int)}
+	 */
+	@Test
+	@Verifies(value = "should encode numbers like the original division algorithm", method = "encode(long,int)")
+	public void encode_shouldEncodeNumbersLikeTheOriginalDivisionAlgorithm() throws Exception {
+		BaseCodec codec = BaseCodec.forBaseCharacters(BASE_CHARACTERS);
+		char[] baseCharacters = BASE_CHARACTERS.toCharArray();
+		for (int pad = 0; pad < 6; pad++) {
+			for (long n = 0; n < 2000; n++) {
+				Assert.assertEquals(divide(n, baseCharacters, pad), codec.encode(n, pad));
+			}
+		}
+		Assert.assertEquals(divide(Long.MAX_VALUE, baseCharacters, 0), codec.encode(Long.MAX_VALUE, 0));
+	}
+
+	/**
+	 * @see {@link BaseCodec#decode(CharSequence)}
+	 */
+	@Test
+	@Verifies(value = "should decode what was encoded", method = "decode(CharSequence)")
+	public void decode_shouldDecodeWhatWasEncoded() throws Exception {
+		BaseCodec codec = BaseCodec.forBaseCharacters(BASE_CHARACTERS);
+		for (long n = 1; n < 100000000L; n = n * 7 + 3) {
+			Assert.assertEquals(n, codec.decode(codec.encode(n, 6)));
+		}
+		Assert.assertEquals(Long.MAX_VALUE, codec.decode(codec.encode(Long.MAX_VALUE, 0)));
+	}
+
+	/**
+	 * @see {@link BaseCodec#decode(CharSequence)}
+	 */
+	@Test(expected = RuntimeException.class)
+	@Verifies(value = "should throw an exception for characters outside the base", method = "decode(CharSequence)")
+	public void decode_shouldThrowAnExceptionForCharactersOutsideTheBase() throws Exception {
+		BaseCodec.forBaseCharacters(BASE_CHARACTERS).decode("12B4");
+	}
+
+	/**
+	 * @see {@link BaseCodec#counter(long,int)}
+	 */
+	@Test
+	@Verifies(value = "should format consecutive numbers like encode", method = "counter(long,int)")
+	public void counter_shouldFormatConsecutiveNumbersLikeEncode() throws Exception {
+		BaseCodec codec = BaseCodec.forBaseCharacters("01");
+		BaseCodec.Counter counter = codec.counter(0, 3);
+		for (long n = 0; n < 1000; n++) {
+			Assert.assertEquals(n, counter.getValue());
+			Assert.assertEquals(codec.encode(n, 3), counter.current());
+			counter.increment();
+		}
+		codec = BaseCodec.forBaseCharacters(BASE_CHARACTERS);
+		counter = codec.counter(26995, 0);
+		for (long n = 26995; n < 27100; n++) {
+			StringBuilder sb = new StringBuilder("X");
+			counter.appendTo(sb);
+			Assert.assertEquals("X" + codec.encode(n, 0), sb.toString());
+			counter.increment();
+		}
+	}
+}
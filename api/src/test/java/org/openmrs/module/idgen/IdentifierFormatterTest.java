@@ -0,0 +1,53 @@
+package org.openmrs.module.idgen;
+
+import org.junit.Test;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * test class for {@link IdentifierFormatter}
+ */
+public class IdentifierFormatterTest {
+
+	/**
+	 * @verifies compile a new formatter when the generator changes
+	 * @see IdentifierFormatter#forGenerator(SequentialIdentifierGenerator)
+	 */
+	@Test
+	public void forGenerator_shouldCompileANewFormatterWhenTheGeneratorChanges() throws Exception {
+		SequentialIdentifierGenerator generator = new SequentialIdentifierGenerator();
+		generator.setId(9999);
+		generator.setBaseCharacterSet("0123456789");
+		generator.setPrefix("FOO-");
+		try {
+			assertThat(generator.getIdentifierForSeed(7), is("FOO-7"));
+			assertThat(IdentifierFormatter.forGenerator(generator) == IdentifierFormatter.forGenerator(generator), is(true));
+			generator.setPrefix("BAR-");
+			generator.setFirstIdentifierBase("00");
+			assertThat(generator.getIdentifierForSeed(7), is("BAR-07"));
+		}
+		finally {
+			IdentifierFormatter.evict(9999);
+		}
+	}
+
+	/**
+	 * @verifies format consecutive seeds like format
+	 * @see IdentifierFormatter#format(BaseCodec.Counter)
+	 */
+	@Test
+	public void format_shouldFormatConsecutiveSeedsLikeFormat() throws Exception {
+		SequentialIdentifierGenerator generator = new SequentialIdentifierGenerator();
+		generator.setBaseCharacterSet("0123456789ACDEFGHJKLMNPRTUVWXY");
+		generator.setPrefix("FOO-");
+		generator.setSuffix("-ACK");
+		generator.setFirstIdentifierBase("000");
+		IdentifierFormatter formatter = IdentifierFormatter.forGenerator(generator);
+
+		BaseCodec.Counter counter = formatter.counter(880);
+		for (long seed = 880; seed < 1000; seed++) {
+			assertThat(formatter.format(counter), is(formatter.format(seed)));
+		}
+	}
+}
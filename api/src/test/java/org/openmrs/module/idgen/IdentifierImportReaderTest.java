@@ -0,0 +1,103 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.idgen;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.codehaus.jackson.JsonParseException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IdentifierImportReaderTest {
+
+	/**
+	 * Handler recording the chunks it receives
+	 */
+	private static class RecordingHandler implements IdentifierImportReader.ChunkHandler {
+
+		private List<List<String>> chunks = new ArrayList<List<String>>();
+
+		@Override
+		public void handle(List<String> identifiers) {
+			chunks.add(new ArrayList<String>(identifiers));
+		}
+	}
+
+	private int read(String input, int chunkSize, RecordingHandler handler) throws Exception {
+		return IdentifierImportReader.read(new ByteArrayInputStream(input.getBytes("UTF-8")), chunkSize, handler);
+	}
+
+	/**
+	 * @see IdentifierImportReader#read(java.io.InputStream, int, IdentifierImportReader.ChunkHandler)
+	 * @verifies read identifiers from a json message in chunks
+	 */
+	@Test
+	public void read_shouldReadIdentifiersFromAJsonMessageInChunks() throws Exception {
+		RecordingHandler handler = new RecordingHandler();
+		int read = read("{\"source\":{\"name\":\"x\"}, \"identifiers\":[\"1\",\"2\",\"3\",\"4\",\"5\"]}", 2, handler);
+		Assert.assertEquals(5, read);
+		Assert.assertEquals("[[1, 2], [3, 4], [5]]", handler.chunks.toString());
+	}
+
+	/**
+	 * @see IdentifierImportReader#read(java.io.InputStream, int, IdentifierImportReader.ChunkHandler)
+	 * @verifies read identifiers from a json array
+	 */
+	@Test
+	public void read_shouldReadIdentifiersFromAJsonArray() throws Exception {
+		RecordingHandler handler = new RecordingHandler();
+		Assert.assertEquals(3, read("  [\"A\", \"B\", \"C\"]", 10, handler));
+		Assert.assertEquals("[[A, B, C]]", handler.chunks.toString());
+	}
+
+	/**
+	 * @see IdentifierImportReader#read(java.io.InputStream, int, IdentifierImportReader.ChunkHandler)
+	 * @verifies read identifiers from plain text lines skipping blank lines
+	 */
+	@Test
+	public void read_shouldReadIdentifiersFromPlainTextLinesSkippingBlankLines() throws Exception {
+		RecordingHandler handler = new RecordingHandler();
+		Assert.assertEquals(3, read("A1\r\n\r\n B2 \nC3", 2, handler));
+		Assert.assertEquals("[[A1, B2], [C3]]", handler.chunks.toString());
+	}
+
+	/**
+	 * @see IdentifierImportReader#read(java.io.InputStream, int, IdentifierImportReader.ChunkHandler)
+	 * @verifies reject json identifiers which are not strings
+	 */
+	@Test
+	public void read_shouldRejectJsonIdentifiersWhichAreNotStrings() throws Exception {
+		for (String input : new String[] { "[\"A\", 2]", "[\"A\", {\"id\":\"B\"}]", "[\"A\", [\"B\"]]", "[\"A\", null]" }) {
+			RecordingHandler handler = new RecordingHandler();
+			try {
+				read(input, 10, handler);
+				Assert.fail("Accepted " + input);
+			}
+			catch (JsonParseException e) {
+				Assert.assertTrue(handler.chunks.isEmpty());
+			}
+		}
+	}
+
+	/**
+	 * @see IdentifierImportReader#readJson(java.io.InputStream, int, IdentifierImportReader.ChunkHandler)
+	 * @verifies fail if the stream does not hold json
+	 */
+	@Test(expected = JsonParseException.class)
+	public void readJson_shouldFailIfTheStreamDoesNotHoldJson() throws Exception {
+		IdentifierImportReader.readJson(new ByteArrayInputStream("A1\nB2".getBytes("UTF-8")), 10, new RecordingHandler());
+	}
+}
@@ -0,0 +1,49 @@
+package org.openmrs.module.idgen;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import org.junit.Test;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * test class for {@link IdentifierRange}
+ */
+public class IdentifierRangeTest {
+
+	/**
+	 * @verifies format the identifiers of the range in order, skipping the skipped seeds
+	 * @see IdentifierRange#iterator()
+	 */
+	@Test
+	public void iterator_shouldFormatTheIdentifiersOfTheRangeInOrderSkippingTheSkippedSeeds() throws Exception {
+		IdentifierRange range = range(4, new long[] { 2, 4 });
+		assertThat(range.getEndSeed(), is(7L));
+
+		Iterator<String> i = range.iterator();
+		assertThat(i.next(), is("1"));
+		assertThat(i.next(), is("3"));
+		assertThat(i.next(), is("5"));
+		assertThat(i.next(), is("6"));
+		assertThat(i.hasNext(), is(false));
+	}
+
+	/**
+	 * @verifies return the same identifiers each time the range is iterated
+	 * @see IdentifierRange#iterator()
+	 */
+	@Test
+	public void iterator_shouldReturnTheSameIdentifiersEachTimeTheRangeIsIterated() throws Exception {
+		IdentifierRange range = range(3, new long[0]);
+		assertThat(new ArrayList<String>(range).toString(), is("[1, 2, 3]"));
+		assertThat(new ArrayList<String>(range).toString(), is("[1, 2, 3]"));
+	}
+
+	private IdentifierRange range(int count, long[] skippedSeeds) {
+		SequentialIdentifierGenerator generator = new SequentialIdentifierGenerator();
+		generator.setBaseCharacterSet("0123456789");
+		return new IdentifierRange(null, IdentifierFormatter.forGenerator(generator), 1, count, skippedSeeds);
+	}
+}
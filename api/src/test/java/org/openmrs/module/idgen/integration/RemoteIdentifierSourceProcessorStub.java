@@ -18,6 +18,7 @@ import org.openmrs.module.idgen.RemoteIdentifierSource;
 import org.openmrs.module.idgen.RemoteIdentifiersMessage;
 import org.openmrs.module.idgen.processor.RemoteIdentifierSourceProcessor;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.util.ArrayList;
@@ -42,7 +43,7 @@ public class RemoteIdentifierSourceProcessorStub extends RemoteIdentifierSourceP
 	}
 
 	@Override
-	protected String doHttpPost(RemoteIdentifierSource source, int batchSize) throws IOException {
+	protected void doHttpPost(RemoteIdentifierSource source, int batchSize, ResponseReader reader) throws IOException {
 		timesCalled++;
 
 		List<String> list = new ArrayList<String>();
@@ -51,7 +52,7 @@ public class RemoteIdentifierSourceProcessorStub extends RemoteIdentifierSourceP
 		}
 		StringWriter writer = new StringWriter();
 		new ObjectMapper().writeValue(writer, new RemoteIdentifiersMessage(list));
-		return writer.toString();
+		reader.read(new ByteArrayInputStream(writer.toString().getBytes("UTF-8")));
 	}
 
 	public int getTimesCalled() {
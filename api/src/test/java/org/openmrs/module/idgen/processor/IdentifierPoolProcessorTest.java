@@ -0,0 +1,134 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.idgen.processor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.hibernate.SessionFactory;
+import org.junit.Test;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.idgen.EmptyIdentifierPoolException;
+import org.openmrs.module.idgen.IdentifierPool;
+import org.openmrs.module.idgen.IdgenBaseTest;
+import org.openmrs.module.idgen.IdgenConstants;
+import org.openmrs.module.idgen.service.IdentifierSourceService;
+import org.openmrs.module.idgen.service.PoolQuantityCounter;
+
+public class IdentifierPoolProcessorTest extends IdgenBaseTest {
+
+	private IdentifierPoolProcessor processor;
+
+	private RecordingRefiller refiller;
+
+	@Before
+	public void setUp() throws Exception {
+		executeDataSet("org/openmrs/module/idgen/include/TestData.xml");
+		refiller = new RecordingRefiller();
+		processor = new IdentifierPoolProcessor();
+		processor.setPoolRefiller(refiller);
+	}
+
+	/**
+	 * @see IdentifierPoolProcessor#getIdentifiers(org.openmrs.module.idgen.IdentifierSource, int)
+	 * @verifies refill the pool in the background while enough identifiers are left
+	 */
+	@Test
+	public void getIdentifiers_shouldRefillThePoolInTheBackgroundWhileEnoughIdentifiersAreLeft() throws Exception {
+		IdentifierPool pool = (IdentifierPool) getService().getIdentifierSource(3); // 5 available, min pool size 100
+		List<String> identifiers = processor.getIdentifiers(pool, 2);
+		Assert.assertEquals(2, identifiers.size());
+		Assert.assertEquals(1, refiller.backgroundRefills.size());
+		Assert.assertEquals(0, refiller.inlineRefills);
+		Assert.assertEquals(3, getService().getQuantityInPool(pool, true, false));
+	}
+
+	/**
+	 * @see IdentifierPoolProcessor#getIdentifiers(org.openmrs.module.idgen.IdentifierSource, int)
+	 * @verifies wait for the pool to be refilled when too few identifiers are left
+	 */
+	@Test
+	public void getIdentifiers_shouldWaitForThePoolToBeRefilledWhenTooFewIdentifiersAreLeft() throws Exception {
+		IdentifierPool pool = (IdentifierPool) getService().getIdentifierSource(3);
+		List<String> identifiers = processor.getIdentifiers(pool, 10);
+		Assert.assertEquals(10, identifiers.size());
+		Assert.assertEquals(0, refiller.backgroundRefills.size());
+		Assert.assertEquals(1, refiller.inlineRefills);
+	}
+
+	/**
+	 * @see IdentifierPoolProcessor#getIdentifiers(org.openmrs.module.idgen.IdentifierSource, int)
+	 * @verifies fail without refilling the pool when other servers have emptied it
+	 */
+	@Test
+	public void getIdentifiers_shouldFailWithoutRefillingThePoolWhenOtherServersHaveEmptiedIt() throws Exception {
+		PoolQuantityCounter counter = Context.getRegisteredComponent("idgenPoolQuantityCounter", PoolQuantityCounter.class);
+		GlobalProperty reconcileInterval = new GlobalProperty(IdgenConstants.GP_POOL_COUNT_RECONCILE_INTERVAL, "60");
+		Context.getAdministrationService().saveGlobalProperty(reconcileInterval);
+		counter.globalPropertyChanged(reconcileInterval);
+		try {
+			IdentifierPool pool = (IdentifierPool) getService().getIdentifierSource(3);
+			pool.setMinPoolSize(1);
+			getService().saveIdentifierSource(pool);
+			Assert.assertEquals(5, getService().getQuantityInPool(pool, true, false));
+
+			// another server claims every identifier, which the counts of this one do not see
+			Context.getRegisteredComponent("sessionFactory", SessionFactory.class).getCurrentSession()
+			        .createSQLQuery("update idgen_pooled_identifier set date_used = current_timestamp where pool_id = 3")
+			        .executeUpdate();
+			Assert.assertEquals(5, getService().getQuantityInPool(pool, true, false));
+
+			try {
+				processor.getIdentifiers(pool, 2);
+				Assert.fail();
+			}
+			catch (EmptyIdentifierPoolException e) {
+				// the refill is left until the transaction holding the locks of the claim has rolled back
+			}
+			Assert.assertEquals(0, refiller.inlineRefills);
+			Assert.assertEquals(0, refiller.backgroundRefills.size());
+		}
+		finally {
+			counter.globalPropertyDeleted(IdgenConstants.GP_POOL_COUNT_RECONCILE_INTERVAL);
+		}
+	}
+
+	private IdentifierSourceService getService() {
+		return Context.getService(IdentifierSourceService.class);
+	}
+
+	/**
+	 * Refills pools within the transaction of the test, and records background refills without running them
+	 */
+	private class RecordingRefiller extends PoolRefiller {
+
+		private final List<Runnable> backgroundRefills = new ArrayList<Runnable>();
+		private int inlineRefills;
+
+		@Override
+		protected boolean runInBackground(Runnable runnable) {
+			backgroundRefills.add(runnable);
+			return true;
+		}
+
+		@Override
+		protected void doRefill(Integer poolId) {
+			inlineRefills++;
+			getService().checkAndRefillIdentifierPool((IdentifierPool) getService().getIdentifierSource(poolId));
+		}
+	}
+}
@@ -0,0 +1,170 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.idgen.processor;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PoolRefillerTest {
+
+	/**
+	 * @see PoolRefiller#refill(Integer)
+	 * @verifies refill the pool in the calling thread if no refill is in flight
+	 */
+	@Test
+	public void refill_shouldRefillThePoolInTheCallingThreadIfNoRefillIsInFlight() throws Exception {
+		StubRefiller refiller = new StubRefiller();
+		refiller.refill(3);
+		Assert.assertEquals(Collections.singletonList(Thread.currentThread()), refiller.refillThreads);
+		Assert.assertFalse(refiller.isRefilling(3));
+	}
+
+	/**
+	 * @see PoolRefiller#refill(Integer)
+	 * @verifies wait for the refill in flight instead of starting another
+	 */
+	@Test
+	public void refill_shouldWaitForTheRefillInFlightInsteadOfStartingAnother() throws Exception {
+		final StubRefiller refiller = new StubRefiller();
+		refiller.release = new CountDownLatch(1);
+		Assert.assertTrue(refiller.refillInBackground(3));
+		Assert.assertTrue(refiller.started.await(5, TimeUnit.SECONDS));
+
+		final CountDownLatch waited = new CountDownLatch(1);
+		Thread request = new Thread() {
+			@Override
+			public void run() {
+				refiller.refill(3);
+				waited.countDown();
+			}
+		};
+		request.start();
+		Assert.assertFalse("the request should wait for the refill in flight", waited.await(200, TimeUnit.MILLISECONDS));
+
+		refiller.release.countDown();
+		Assert.assertTrue(waited.await(5, TimeUnit.SECONDS));
+		Assert.assertEquals(1, refiller.refillThreads.size());
+	}
+
+	/**
+	 * @see PoolRefiller#refill(Integer)
+	 * @verifies refill the pool itself if the refill it waited for failed
+	 */
+	@Test
+	public void refill_shouldRefillThePoolItselfIfTheRefillItWaitedForFailed() throws Exception {
+		final StubRefiller refiller = new StubRefiller();
+		refiller.release = new CountDownLatch(1);
+		refiller.failures.set(1);
+		Assert.assertTrue(refiller.refillInBackground(3));
+		Assert.assertTrue(refiller.started.await(5, TimeUnit.SECONDS));
+
+		final CountDownLatch waited = new CountDownLatch(1);
+		Thread request = new Thread() {
+			@Override
+			public void run() {
+				refiller.refill(3);
+				waited.countDown();
+			}
+		};
+		request.start();
+		refiller.release.countDown();
+		Assert.assertTrue(waited.await(5, TimeUnit.SECONDS));
+		Assert.assertEquals(2, refiller.refillThreads.size());
+		Assert.assertEquals(request, refiller.refillThreads.get(1));
+	}
+
+	/**
+	 * @see PoolRefiller#refillInBackground(Integer)
+	 * @verifies refill the pool in the background
+	 */
+	@Test
+	public void refillInBackground_shouldRefillThePoolInTheBackground() throws Exception {
+		StubRefiller refiller = new StubRefiller();
+		refiller.release = new CountDownLatch(1);
+		Assert.assertTrue(refiller.refillInBackground(3));
+		Assert.assertTrue(refiller.started.await(5, TimeUnit.SECONDS));
+		Assert.assertTrue(refiller.isRefilling(3));
+		Assert.assertNotSame(Thread.currentThread(), refiller.refillThreads.get(0));
+
+		refiller.release.countDown();
+		refiller.finished.await(5, TimeUnit.SECONDS);
+		Assert.assertFalse(refiller.isRefilling(3));
+	}
+
+	/**
+	 * @see PoolRefiller#refillInBackground(Integer)
+	 * @verifies not start a refill while one is in flight
+	 */
+	@Test
+	public void refillInBackground_shouldNotStartARefillWhileOneIsInFlight() throws Exception {
+		StubRefiller refiller = new StubRefiller();
+		refiller.release = new CountDownLatch(1);
+		Assert.assertTrue(refiller.refillInBackground(3));
+		Assert.assertTrue(refiller.started.await(5, TimeUnit.SECONDS));
+		Assert.assertTrue(refiller.refillInBackground(3));
+		Assert.assertTrue(refiller.refillInBackground(3));
+
+		refiller.release.countDown();
+		refiller.finished.await(5, TimeUnit.SECONDS);
+		Assert.assertEquals(1, refiller.backgroundThreads.get());
+		Assert.assertEquals(1, refiller.refillThreads.size());
+	}
+
+	/**
+	 * Refills nothing, recording the threads it refilled in, and runs background refills in plain threads
+	 */
+	private static class StubRefiller extends PoolRefiller {
+
+		private final List<Thread> refillThreads = new CopyOnWriteArrayList<Thread>();
+		private final AtomicInteger backgroundThreads = new AtomicInteger();
+		private final AtomicInteger failures = new AtomicInteger();
+		private final CountDownLatch started = new CountDownLatch(1);
+		private final CountDownLatch finished = new CountDownLatch(1);
+		private volatile CountDownLatch release;
+
+		@Override
+		protected boolean runInBackground(Runnable runnable) {
+			backgroundThreads.incrementAndGet();
+			new Thread(runnable).start();
+			return true;
+		}
+
+		@Override
+		protected void doRefill(Integer poolId) {
+			refillThreads.add(Thread.currentThread());
+			started.countDown();
+			try {
+				if (release != null) {
+					release.await();
+				}
+				if (failures.getAndDecrement() > 0) {
+					throw new RuntimeException("refill failed");
+				}
+			}
+			catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			finally {
+				finished.countDown();
+			}
+		}
+	}
+}
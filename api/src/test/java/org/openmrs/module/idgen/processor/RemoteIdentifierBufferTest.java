@@ -0,0 +1,149 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.idgen.processor;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+
+public class RemoteIdentifierBufferTest {
+
+	private File bufferDirectory;
+
+	@Before
+	public void createBufferDirectory() throws Exception {
+		bufferDirectory = File.createTempFile("idgen", "buffer");
+		bufferDirectory.delete();
+		bufferDirectory.mkdir();
+	}
+
+	@After
+	public void deleteBufferDirectory() throws Exception {
+		for (File f : bufferDirectory.listFiles()) {
+			f.delete();
+		}
+		bufferDirectory.delete();
+	}
+
+	/**
+	 * @see RemoteIdentifierBuffer#take(int)
+	 * @verifies take identifiers in the order they were added
+	 */
+	@Test
+	public void take_shouldTakeIdentifiersInTheOrderTheyWereAdded() throws Exception {
+		RemoteIdentifierBuffer buffer = new RemoteIdentifierBuffer(new File(bufferDirectory, "1.buffer"));
+		buffer.add(Arrays.asList("A", "B", "C"));
+		Assert.assertEquals(Arrays.asList("A", "B"), buffer.take(2));
+		buffer.putBack(Arrays.asList("B"));
+		Assert.assertEquals(Arrays.asList("B", "C"), buffer.take(5));
+		Assert.assertEquals(0, buffer.size());
+	}
+
+	/**
+	 * @see RemoteIdentifierBuffer#take(int)
+	 * @verifies keep identifiers across instances
+	 */
+	@Test
+	public void take_shouldKeepIdentifiersAcrossInstances() throws Exception {
+		File file = new File(bufferDirectory, "1.buffer");
+		RemoteIdentifierBuffer buffer = new RemoteIdentifierBuffer(file);
+		buffer.add(Arrays.asList("A", "B", "C"));
+		buffer.take(1);
+		RemoteIdentifierBuffer reloaded = new RemoteIdentifierBuffer(file);
+		Assert.assertEquals(2, reloaded.size());
+		Assert.assertEquals(Arrays.asList("B", "C"), reloaded.take(2));
+	}
+
+	/**
+	 * @see RemoteIdentifierBuffer#take(int)
+	 * @verifies append to the file rather than rewrite it
+	 */
+	@Test
+	public void take_shouldAppendToTheFileRatherThanRewriteIt() throws Exception {
+		File file = new File(bufferDirectory, "1.buffer");
+		RemoteIdentifierBuffer buffer = new RemoteIdentifierBuffer(file);
+		buffer.add(Arrays.asList("A", "B", "C"));
+		long lengthAfterAdd = file.length();
+		buffer.take(1);
+		buffer.putBack(Arrays.asList("A"));
+		buffer.take(2);
+		Assert.assertEquals(lengthAfterAdd + "-1\n<A\n-2\n".length(), file.length());
+		Assert.assertEquals(Arrays.asList("C"), new RemoteIdentifierBuffer(file).take(5));
+	}
+
+	/**
+	 * @see RemoteIdentifierBuffer#RemoteIdentifierBuffer(File)
+	 * @verifies ignore a record cut short by a crash
+	 */
+	@Test
+	public void RemoteIdentifierBuffer_shouldIgnoreARecordCutShortByACrash() throws Exception {
+		File file = new File(bufferDirectory, "1.buffer");
+		write(file, "#journal\n+A\n+B\n-1\n+C");
+		Assert.assertEquals(Arrays.asList("B"), new RemoteIdentifierBuffer(file).take(5));
+	}
+
+	/**
+	 * @see RemoteIdentifierBuffer#RemoteIdentifierBuffer(File)
+	 * @verifies restore a compacted file which was not yet moved into place
+	 */
+	@Test
+	public void RemoteIdentifierBuffer_shouldRestoreACompactedFileWhichWasNotYetMovedIntoPlace() throws Exception {
+		File file = new File(bufferDirectory, "1.buffer");
+		write(new File(bufferDirectory, "1.buffer.tmp"), "#journal\n+A\n+B\n");
+		Assert.assertEquals(Arrays.asList("A", "B"), new RemoteIdentifierBuffer(file).take(5));
+		Assert.assertFalse(new File(bufferDirectory, "1.buffer.tmp").exists());
+	}
+
+	/**
+	 * @see RemoteIdentifierBuffer#RemoteIdentifierBuffer(File)
+	 * @verifies load a buffer written one identifier per line
+	 */
+	@Test
+	public void RemoteIdentifierBuffer_shouldLoadABufferWrittenOneIdentifierPerLine() throws Exception {
+		File file = new File(bufferDirectory, "1.buffer");
+		write(file, "A\nB\n");
+		RemoteIdentifierBuffer buffer = new RemoteIdentifierBuffer(file);
+		Assert.assertEquals(Arrays.asList("A"), buffer.take(1));
+		Assert.assertEquals(Arrays.asList("B"), new RemoteIdentifierBuffer(file).take(5));
+	}
+
+	/**
+	 * @see RemoteIdentifierBuffer#discard()
+	 * @verifies delete the file and ignore identifiers added afterwards
+	 */
+	@Test
+	public void discard_shouldDeleteTheFileAndIgnoreIdentifiersAddedAfterwards() throws Exception {
+		File file = new File(bufferDirectory, "1.buffer");
+		RemoteIdentifierBuffer buffer = new RemoteIdentifierBuffer(file);
+		buffer.add(Arrays.asList("A", "B"));
+		Assert.assertEquals(2, buffer.discard());
+		Assert.assertFalse(file.exists());
+		buffer.add(Arrays.asList("C"));
+		Assert.assertEquals(0, buffer.size());
+		Assert.assertFalse(file.exists());
+	}
+
+	private void write(File file, String contents) throws Exception {
+		Writer w = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		w.write(contents);
+		w.close();
+	}
+}
@@ -0,0 +1,54 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.idgen.service;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AutoGenerationOptionIndexTest {
+
+	/**
+	 * @see AutoGenerationOptionIndex#isExpired(long)
+	 * @verifies expire once the given expiry time has passed
+	 */
+	@Test
+	public void isExpired_shouldExpireOnceTheGivenExpiryTimeHasPassed() throws Exception {
+		AutoGenerationOptionIndex index = new AutoGenerationOptionIndex(Collections.<AutoGenerationOptionIndex.Entry>emptyList(), 1000);
+		Assert.assertFalse(index.isExpired(999));
+		Assert.assertTrue(index.isExpired(1000));
+		Assert.assertTrue(index.isExpired(2000));
+	}
+
+	/**
+	 * @see AutoGenerationOptionIndex#getEntries(Integer, Integer)
+	 * @verifies return the options for the location and those for no location
+	 */
+	@Test
+	public void getEntries_shouldReturnTheOptionsForTheLocationAndThoseForNoLocation() throws Exception {
+		AutoGenerationOptionIndex.Entry anywhere = new AutoGenerationOptionIndex.Entry(1, 1, null, 1, true, true);
+		AutoGenerationOptionIndex.Entry atLocation2 = new AutoGenerationOptionIndex.Entry(2, 1, 2, 1, false, true);
+		AutoGenerationOptionIndex.Entry otherType = new AutoGenerationOptionIndex.Entry(3, 2, 2, 1, false, true);
+		AutoGenerationOptionIndex index = new AutoGenerationOptionIndex(Arrays.asList(anywhere, atLocation2, otherType), Long.MAX_VALUE);
+
+		Assert.assertEquals(Arrays.asList(anywhere, atLocation2), index.getEntries(1));
+		Assert.assertEquals(Arrays.asList(anywhere, atLocation2), index.getEntries(1, 2));
+		Assert.assertEquals(Arrays.asList(anywhere), index.getEntries(1, 3));
+		Assert.assertEquals(Arrays.asList(anywhere), index.getEntries(1, null));
+		Assert.assertEquals(Arrays.asList(otherType), index.getEntries(2, 2));
+		Assert.assertTrue(index.getEntries(3).isEmpty());
+	}
+}
@@ -0,0 +1,93 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.idgen.service;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+public class IdentifierDispenserTest {
+
+	/**
+	 * Dispenser handing out "1", "2", "3"... in batches of the given size
+	 */
+	private static class CountingDispenser extends IdentifierDispenser {
+
+		private int batchSize;
+		private int next = 1;
+		private int batchesRequested = 0;
+
+		public CountingDispenser(int batchSize) {
+			this.batchSize = batchSize;
+		}
+
+		@Override
+		protected List<String> nextBatch() {
+			batchesRequested++;
+			List<String> batch = new ArrayList<String>();
+			for (int i = 0; i < batchSize; i++) {
+				batch.add("" + next++);
+			}
+			return batch;
+		}
+	}
+
+	/**
+	 * @see IdentifierDispenser#claim(int)
+	 * @verifies return the requested number of identifiers
+	 */
+	@Test
+	public void claim_shouldReturnTheRequestedNumberOfIdentifiers() throws Exception {
+		CountingDispenser dispenser = new CountingDispenser(5);
+		Assert.assertEquals("[1, 2, 3]", dispenser.claim(3).toString());
+		Assert.assertEquals("[4, 5, 6, 7, 8, 9, 10, 11, 12]", dispenser.claim(9).toString());
+		Assert.assertEquals(3, dispenser.batchesRequested);
+	}
+
+	/**
+	 * @see IdentifierDispenser#claim(int)
+	 * @verifies never return the same identifier twice under concurrent claims
+	 */
+	@Test
+	public void claim_shouldNeverReturnTheSameIdentifierTwiceUnderConcurrentClaims() throws Exception {
+		final int numThreads = 50;
+		final int numPerThread = 10;
+		final CountingDispenser dispenser = new CountingDispenser(7);
+		final List<String> claimed = Collections.synchronizedList(new ArrayList<String>());
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < numThreads; ++i) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < numPerThread; ++j) {
+						claimed.addAll(dispenser.claim(1));
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		Assert.assertEquals(numThreads * numPerThread, claimed.size());
+		Assert.assertEquals(numThreads * numPerThread, new HashSet<String>(claimed).size());
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.idgen.service;
+
+import junit.framework.Assert;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.SessionFactory;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.idgen.IdentifierPool;
+import org.openmrs.module.idgen.IdentifierSource;
+import org.openmrs.module.idgen.IdgenBaseTest;
+import org.openmrs.module.idgen.service.db.IdentifierSourceDAO;
+
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * Times the queries served by the indexes of the liquibase changelog against tables of a million rows, before and
+ * after those indexes are created: claiming from and counting a pool, searching the log entries of a source by date,
+ * and loading the reserved identifiers of a source.  The test schema is built from the Hibernate mappings, so the
+ * indexes are created here with the same columns.  Too slow to run with the other tests.
+ */
+@Ignore
+public class IdentifierPoolIndexBenchmarkTest extends IdgenBaseTest {
+
+    protected final Log log = LogFactory.getLog(getClass());
+
+    public static final int NUM_ROWS = 1000000;
+    public static final int NUM_RESERVED = 100000;
+    public static final int NUM_QUERIES = 20;
+    public static final int NUM_PER_CLAIM = 100;
+
+    private static final String[] QUERIES = { "claim from pool", "count available", "count used",
+            "log entries of a source by date", "reserved identifiers of a source" };
+
+    @Test
+    public void testQueryLatencyWithAndWithoutIndexes() throws Exception {
+        executeDataSet("org/openmrs/module/idgen/include/TestData.xml");
+
+        IdentifierSourceService service = Context.getService(IdentifierSourceService.class);
+        IdentifierSourceDAO dao = Context.getRegisteredComponent("IdentifierSourceDAO", IdentifierSourceDAO.class);
+        IdentifierPool pool = (IdentifierPool) service.getIdentifierSource(3);
+
+        // half of the pool has been used, the rest is available
+        executeUpdate("insert into idgen_pooled_identifier (uuid, pool_id, identifier, date_used) "
+                + "select random_uuid(), " + pool.getId() + ", concat('B', lpad(cast(x as varchar), 7, '0')), "
+                + "case when mod(x, 2) = 0 then current_timestamp else null end from system_range(1, " + NUM_ROWS + ")");
+        // a minute apart, alternating between two sources
+        executeUpdate("insert into idgen_log_entry (source, identifier, date_generated, generated_by, comment) "
+                + "select case when mod(x, 2) = 0 then 1 else 3 end, concat('L', x), "
+                + "dateadd('MINUTE', x, timestamp '2000-01-01 00:00:00'), 1, 'benchmark' from system_range(1, " + NUM_ROWS + ")");
+        // almost all of them reserved for another source than the one looked up
+        executeUpdate("insert into idgen_reserved_identifier (source, identifier) "
+                + "select case when x <= 100 then 1 else 3 end, concat('R', x) from system_range(1, " + NUM_RESERVED + ")");
+
+        long[] without = time(dao, pool);
+
+        executeUpdate("create index idgen_pooled_identifier_available_by_identifier on idgen_pooled_identifier (pool_id, date_used, identifier)");
+        executeUpdate("create index idgen_log_entry_source_date_generated on idgen_log_entry (source, date_generated)");
+        executeUpdate("create index idgen_reserved_identifier_source_identifier on idgen_reserved_identifier (source, identifier)");
+        executeUpdate("analyze");
+
+        long[] with = time(dao, pool);
+
+        for (int i = 0; i < QUERIES.length; i++) {
+            log.info(QUERIES[i] + ": " + without[i] / NUM_QUERIES + " ms without indexes, "
+                    + with[i] / NUM_QUERIES + " ms with indexes, per query");
+        }
+    }
+
+    /**
+     * @return the total milliseconds taken by each of the queries
+     */
+    private long[] time(IdentifierSourceDAO dao, IdentifierPool pool) {
+        long[] millis = new long[QUERIES.length];
+        IdentifierSource logged = dao.getIdentifierSource(1);
+        int available = dao.getQuantityInPool(pool, true, false);
+        int used = dao.getQuantityInPool(pool, false, true);
+        Calendar day = Calendar.getInstance();
+        for (int i = 0; i < NUM_QUERIES; ++i) {
+            long start = System.currentTimeMillis();
+            Assert.assertEquals(NUM_PER_CLAIM, dao.claimAvailableIdentifiers(pool, NUM_PER_CLAIM, new Date()).size());
+            millis[0] += System.currentTimeMillis() - start;
+
+            start = System.currentTimeMillis();
+            Assert.assertEquals(available - (i + 1) * NUM_PER_CLAIM, dao.getQuantityInPool(pool, true, false));
+            millis[1] += System.currentTimeMillis() - start;
+
+            start = System.currentTimeMillis();
+            Assert.assertEquals(used + (i + 1) * NUM_PER_CLAIM, dao.getQuantityInPool(pool, false, true));
+            millis[2] += System.currentTimeMillis() - start;
+
+            // a day of log entries, a different day each time
+            day.clear();
+            day.set(2000, Calendar.FEBRUARY, 1 + i);
+            start = System.currentTimeMillis();
+            Assert.assertEquals(720, dao.getLogEntries(logged, day.getTime(), day.getTime(), null, null, null).size());
+            millis[3] += System.currentTimeMillis() - start;
+
+            start = System.currentTimeMillis();
+            Assert.assertEquals(100, dao.getReservedIdentifiers(logged).size());
+            millis[4] += System.currentTimeMillis() - start;
+        }
+        return millis;
+    }
+
+    private void executeUpdate(String sql) {
+        Context.getRegisteredComponent("sessionFactory", SessionFactory.class).getCurrentSession().createSQLQuery(sql).executeUpdate();
+    }
+
+}
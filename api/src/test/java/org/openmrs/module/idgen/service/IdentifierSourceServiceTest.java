@@ -13,20 +13,30 @@
  */
 package org.openmrs.module.idgen.service;
 
+import org.hibernate.Hibernate;
 import org.hibernate.NonUniqueResultException;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.openmrs.GlobalProperty;
 import org.openmrs.Location;
 import org.openmrs.PatientIdentifierType;
 import org.openmrs.api.LocationService;
 import org.openmrs.api.PatientService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.idgen.*;
+import org.openmrs.module.idgen.processor.SequentialIdentifierGeneratorProcessor;
 import org.openmrs.module.idgen.service.db.IdentifierSourceDAO;
 import org.openmrs.test.Verifies;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.util.*;
 
@@ -46,6 +56,9 @@ public class IdentifierSourceServiceTest extends IdgenBaseTest {
     @Qualifier("locationService")
     LocationService locationService;
 
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
     @Before
     public void beforeEachTest() throws Exception {
 
@@ -63,6 +76,346 @@ public class IdentifierSourceServiceTest extends IdgenBaseTest {
 		Assert.assertEquals(sig.toString(), "[G-0, H-8, I-5, J-3, K-1, L-9, M-7]");
 	}
 
+	/**
+	 * @see IdentifierSourceService#addIdentifiersToPool(IdentifierPool, List)
+	 * @verifies add identifiers to a saved pool without loading the identifiers already in it
+	 */
+	@Test
+	public void addIdentifiersToPool_shouldAddIdentifiersToASavedPoolWithoutLoadingTheIdentifiersAlreadyInIt() throws Exception {
+		IdentifierPool pool = (IdentifierPool) identifierSourceService.getIdentifierSource(3);
+		identifierSourceService.addIdentifiersToPool(pool, Arrays.asList("00006", "00007", "00008"));
+		Assert.assertFalse(Hibernate.isInitialized(pool.getIdentifiers()));
+		Assert.assertEquals(8, identifierSourceService.getQuantityInPool(pool, true, false));
+		Assert.assertEquals("[00001, 00002, 00003, 00004, 00005, 00006]", identifierSourceService.claimAvailableIdentifiers(pool, 6).toString());
+	}
+
+	/**
+	 * @see IdentifierSourceService#claimAvailableIdentifiers(IdentifierPool, int)
+	 * @verifies return available identifiers and mark them as used
+	 */
+	@Test
+	public void claimAvailableIdentifiers_shouldReturnAvailableIdentifiersAndMarkThemAsUsed() throws Exception {
+		IdentifierPool pool = (IdentifierPool) identifierSourceService.getIdentifierSource(3);
+		Assert.assertEquals("[00001, 00002, 00003]", identifierSourceService.claimAvailableIdentifiers(pool, 3).toString());
+		Assert.assertEquals(2, identifierSourceService.getQuantityInPool(pool, true, false));
+		Assert.assertEquals(3, identifierSourceService.getQuantityInPool(pool, false, true));
+		Assert.assertEquals("[00004]", identifierSourceService.claimAvailableIdentifiers(pool, 1).toString());
+	}
+
+	/**
+	 * @see IdentifierSourceService#claimAvailableIdentifiers(IdentifierPool, int)
+	 * @verifies throw an EmptyIdentifierPoolException if the pool does not have enough available identifiers
+	 */
+	@Test(expected = EmptyIdentifierPoolException.class)
+	public void claimAvailableIdentifiers_shouldThrowAnEmptyIdentifierPoolExceptionIfThePoolDoesNotHaveEnoughAvailableIdentifiers() throws Exception {
+		IdentifierPool pool = (IdentifierPool) identifierSourceService.getIdentifierSource(3);
+		identifierSourceService.claimAvailableIdentifiers(pool, 6);
+	}
+
+	/**
+	 * @see IdentifierSourceService#claimAvailableIdentifiers(IdentifierPool, int)
+	 * @verifies count the pool again if it does not have enough available identifiers
+	 */
+	@Test
+	public void claimAvailableIdentifiers_shouldCountThePoolAgainIfItDoesNotHaveEnoughAvailableIdentifiers() throws Exception {
+		PoolQuantityCounter counter = startCountingPools();
+		try {
+			IdentifierPool pool = (IdentifierPool) identifierSourceService.getIdentifierSource(3);
+			Assert.assertEquals(5, identifierSourceService.getQuantityInPool(pool, true, false));
+			executeUpdate("update idgen_pooled_identifier set date_used = current_timestamp where pool_id = 3 and identifier in ('00001', '00002')");
+			Assert.assertEquals(5, identifierSourceService.getQuantityInPool(pool, true, false));
+			try {
+				identifierSourceService.claimAvailableIdentifiers(pool, 4);
+				Assert.fail();
+			}
+			catch (EmptyIdentifierPoolException e) {
+				// expected
+			}
+			Assert.assertEquals(3, identifierSourceService.getQuantityInPool(pool, true, false));
+		}
+		finally {
+			counter.globalPropertyDeleted(IdgenConstants.GP_POOL_COUNT_RECONCILE_INTERVAL);
+		}
+	}
+
+	/**
+	 * @see IdentifierSourceService#generateIdentifiers(IdentifierSource, Integer, String)
+	 * @verifies refill a pool and claim again when other servers have emptied it
+	 */
+	@Test
+	public void generateIdentifiers_shouldRefillAPoolAndClaimAgainWhenOtherServersHaveEmptiedIt() throws Exception {
+		final PoolQuantityCounter counter = startCountingPools();
+		try {
+			IdentifierPool pool = (IdentifierPool) identifierSourceService.getIdentifierSource(3);
+			pool.setMinPoolSize(1);
+			identifierSourceService.saveIdentifierSource(pool);
+
+			// another server claims every identifier, which the shared counts of this one do not see
+			executeUpdate("update idgen_pooled_identifier set date_used = current_timestamp where pool_id = 3");
+			TransactionTemplate newTransaction = new TransactionTemplate(transactionManager);
+			newTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+			newTransaction.execute(new TransactionCallbackWithoutResult() {
+				@Override
+				protected void doInTransactionWithoutResult(TransactionStatus status) {
+					counter.reconcile(3, 5, 0, System.currentTimeMillis());
+				}
+			});
+
+			List<String> identifiers = identifierSourceService.generateIdentifiers(pool, 2, "refilled");
+			Assert.assertEquals(2, identifiers.size());
+			Assert.assertFalse(identifiers.contains("00001"));
+			Assert.assertTrue(identifierSourceService.getQuantityInPool(pool, true, false) > 0);
+		}
+		finally {
+			counter.globalPropertyDeleted(IdgenConstants.GP_POOL_COUNT_RECONCILE_INTERVAL);
+		}
+	}
+
+	/**
+	 * @return the counter of identifiers in pools, set to keep its counts for a minute
+	 */
+	private PoolQuantityCounter startCountingPools() {
+		PoolQuantityCounter counter = Context.getRegisteredComponent("idgenPoolQuantityCounter", PoolQuantityCounter.class);
+		GlobalProperty reconcileInterval = new GlobalProperty(IdgenConstants.GP_POOL_COUNT_RECONCILE_INTERVAL, "60");
+		Context.getAdministrationService().saveGlobalProperty(reconcileInterval);
+		counter.globalPropertyChanged(reconcileInterval);
+		return counter;
+	}
+
+	/**
+	 * @see IdentifierSourceService#claimAvailableIdentifiers(IdentifierPool, int)
+	 * @verifies claim identifiers of a non-sequential pool in their random claim order
+	 */
+	@Test
+	public void claimAvailableIdentifiers_shouldClaimIdentifiersOfANonSequentialPoolInTheirRandomClaimOrder() throws Exception {
+		IdentifierPool pool = (IdentifierPool) identifierSourceService.getIdentifierSource(4);
+		Assert.assertFalse(pool.isSequential());
+		identifierSourceService.claimAvailableIdentifiers(pool, identifierSourceService.getQuantityInPool(pool, true, false));
+		List<String> identifiers = new ArrayList<String>();
+		for (int i = 1; i <= 20; i++) {
+			identifiers.add("R" + i);
+		}
+		identifierSourceService.addIdentifiersToPool(pool, identifiers);
+
+		List<String> expected = new ArrayList<String>();
+		Integer previousClaimOrder = null;
+		for (PooledIdentifier pooled : identifierSourceService.getAvailableIdentifiers(pool, 20)) {
+			Assert.assertNotNull(pooled.getClaimOrder());
+			if (previousClaimOrder != null) {
+				Assert.assertTrue(previousClaimOrder <= pooled.getClaimOrder());
+			}
+			previousClaimOrder = pooled.getClaimOrder();
+			expected.add(pooled.getIdentifier());
+		}
+		Assert.assertEquals(expected, identifierSourceService.claimAvailableIdentifiers(pool, 20));
+	}
+
+	/**
+	 * @see IdentifierSourceService#getReservedIdentifierIndex(IdentifierSource)
+	 * @verifies return the reserved identifiers of a source
+	 */
+	@Test
+	public void getReservedIdentifierIndex_shouldReturnTheReservedIdentifiersOfASource() throws Exception {
+		IdentifierSource source = identifierSourceService.getIdentifierSource(1);
+		source.addReservedIdentifier("H-8");
+		identifierSourceService.saveIdentifierSource(source);
+		ReservedIdentifierIndex index = identifierSourceService.getReservedIdentifierIndex(source);
+		Assert.assertEquals(1, index.size());
+		Assert.assertTrue(index.contains("H-8"));
+		Assert.assertFalse(index.contains("G-0"));
+		Assert.assertEquals("[G-0, I-5]", identifierSourceService.generateIdentifiers(source, 2, "hello").toString());
+	}
+
+	/**
+	 * @see IdentifierSourceService#getReservedIdentifierIndex(IdentifierSource)
+	 * @verifies reload the reserved identifiers when the source is saved
+	 */
+	@Test
+	public void getReservedIdentifierIndex_shouldReloadTheReservedIdentifiersWhenTheSourceIsSaved() throws Exception {
+		IdentifierSource source = identifierSourceService.getIdentifierSource(1);
+		Assert.assertFalse(identifierSourceService.getReservedIdentifierIndex(source).contains("G-0"));
+		source.addReservedIdentifier("G-0");
+		identifierSourceService.saveIdentifierSource(source);
+		Assert.assertTrue(identifierSourceService.getReservedIdentifierIndex(source).contains("G-0"));
+	}
+
+	/**
+	 * @see IdentifierSourceService#getReservedIdentifierIndex(IdentifierSource)
+	 * @verifies reload the reserved identifiers changed by another server once the lookup expires
+	 */
+	@Test
+	public void getReservedIdentifierIndex_shouldReloadTheReservedIdentifiersChangedByAnotherServerOnceTheLookupExpires() throws Exception {
+		Context.getAdministrationService().saveGlobalProperty(new GlobalProperty(IdgenConstants.GP_RESERVED_IDENTIFIER_CACHE_INTERVAL, "0"));
+		IdentifierSource source = identifierSourceService.getIdentifierSource(1);
+		executeUpdate("insert into idgen_reserved_identifier (source, identifier) values (1, 'H-8')");
+		Assert.assertTrue(identifierSourceService.getReservedIdentifierIndex(source).contains("H-8"));
+
+		executeUpdate("update idgen_reserved_identifier set identifier = 'G-0' where source = 1");
+		ReservedIdentifierIndex index = identifierSourceService.getReservedIdentifierIndex(source);
+		Assert.assertEquals(1, index.size());
+		Assert.assertTrue(index.contains("G-0"));
+		Assert.assertFalse(index.contains("H-8"));
+	}
+
+	/**
+	 * @see IdentifierSourceService#getReservedIdentifierIndex(IdentifierSource)
+	 * @verifies keep the reserved identifiers without querying them until the lookup expires
+	 */
+	@Test
+	public void getReservedIdentifierIndex_shouldKeepTheReservedIdentifiersWithoutQueryingThemUntilTheLookupExpires() throws Exception {
+		IdentifierSource source = identifierSourceService.getIdentifierSource(1);
+		executeUpdate("insert into idgen_reserved_identifier (source, identifier) values (1, 'H-8')");
+		Assert.assertTrue(identifierSourceService.getReservedIdentifierIndex(source).contains("H-8"));
+
+		executeUpdate("update idgen_reserved_identifier set identifier = 'G-0' where source = 1");
+		Statistics statistics = Context.getRegisteredComponent("sessionFactory", SessionFactory.class).getStatistics();
+		boolean statisticsEnabled = statistics.isStatisticsEnabled();
+		statistics.setStatisticsEnabled(true);
+		try {
+			statistics.clear();
+			Assert.assertTrue(identifierSourceService.getReservedIdentifierIndex(source).contains("H-8"));
+			Assert.assertEquals(0, statistics.getPrepareStatementCount());
+		}
+		finally {
+			statistics.setStatisticsEnabled(statisticsEnabled);
+		}
+	}
+
+	private void executeUpdate(String sql) {
+		Context.getRegisteredComponent("sessionFactory", SessionFactory.class).getCurrentSession().createSQLQuery(sql).executeUpdate();
+	}
+
+	@Test
+	public void generateIdentifiers_shouldLogEachGeneratedIdentifier() throws Exception {
+		IdentifierSource is = identifierSourceService.getIdentifierSource(1);
+		List<String> identifiers = identifierSourceService.generateIdentifiers(is, 7, "batch logged");
+		List<LogEntry> logEntries = identifierSourceService.getLogEntries(is, null, null, null, null, "batch logged");
+		Assert.assertEquals(7, logEntries.size());
+		for (LogEntry logEntry : logEntries) {
+			Assert.assertTrue(identifiers.contains(logEntry.getIdentifier()));
+		}
+	}
+
+	@Test
+	public void generateIdentifiers_shouldHandOutIdentifiersFromAReservedBlockOfSequenceValues() throws Exception {
+		SequentialIdentifierGenerator generator = (SequentialIdentifierGenerator) identifierSourceService.getIdentifierSource(1);
+		SequentialIdentifierGeneratorProcessor processor = (SequentialIdentifierGeneratorProcessor) identifierSourceService.getProcessor(generator);
+		GlobalProperty blockSize = new GlobalProperty(IdgenConstants.GP_SEQUENCE_BLOCK_SIZE, "50");
+		Context.getAdministrationService().saveGlobalProperty(blockSize);
+		processor.globalPropertyChanged(blockSize);
+		try {
+			Assert.assertEquals("[G-0, H-8, I-5]", identifierSourceService.generateIdentifiers(generator, 3, "hello").toString());
+			Assert.assertEquals(56, identifierSourceService.getSequenceValue(generator).longValue());
+			Assert.assertEquals("[J-3, K-1]", identifierSourceService.generateIdentifiers(generator, 2, "hello").toString());
+			Assert.assertEquals(56, identifierSourceService.getSequenceValue(generator).longValue());
+		}
+		finally {
+			processor.globalPropertyDeleted(IdgenConstants.GP_SEQUENCE_BLOCK_SIZE);
+		}
+	}
+
+	@Test
+	public void generateIdentifiers_shouldLogIdentifiersHandedOutFromAReservedBlock() throws Exception {
+		SequentialIdentifierGenerator generator = (SequentialIdentifierGenerator) identifierSourceService.getIdentifierSource(1);
+		SequentialIdentifierGeneratorProcessor processor = (SequentialIdentifierGeneratorProcessor) identifierSourceService.getProcessor(generator);
+		GlobalProperty blockSize = new GlobalProperty(IdgenConstants.GP_SEQUENCE_BLOCK_SIZE, "50");
+		Context.getAdministrationService().saveGlobalProperty(blockSize);
+		processor.globalPropertyChanged(blockSize);
+		try {
+			List<String> identifiers = identifierSourceService.generateIdentifiers(generator, 3, "block logged");
+			List<LogEntry> logEntries = identifierSourceService.getLogEntries(generator, null, null, null, null, "block logged");
+			Assert.assertEquals(3, logEntries.size());
+			for (LogEntry logEntry : logEntries) {
+				Assert.assertTrue(identifiers.contains(logEntry.getIdentifier()));
+			}
+		}
+		finally {
+			processor.globalPropertyDeleted(IdgenConstants.GP_SEQUENCE_BLOCK_SIZE);
+		}
+	}
+
+	/**
+	 * @see IdentifierSourceService#generateIdentifierRange(SequentialIdentifierGenerator, Integer, String)
+	 * @verifies return a range of the requested number of identifiers
+	 */
+	@Test
+	public void generateIdentifierRange_shouldReturnARangeOfTheRequestedNumberOfIdentifiers() throws Exception {
+		SequentialIdentifierGenerator generator = (SequentialIdentifierGenerator) identifierSourceService.getIdentifierSource(1);
+		long firstSeed = identifierSourceService.getSequenceValue(generator);
+		IdentifierRange range = identifierSourceService.generateIdentifierRange(generator, 3, "range");
+		Assert.assertEquals(firstSeed, range.getFirstSeed());
+		Assert.assertEquals(3, range.getCount());
+		Assert.assertEquals(firstSeed + 3, range.getEndSeed());
+		List<String> identifiers = new ArrayList<String>();
+		for (String identifier : range) {
+			identifiers.add(identifier);
+		}
+		Assert.assertEquals("[G-0, H-8, I-5]", identifiers.toString());
+		Assert.assertEquals(firstSeed + 3, identifierSourceService.getSequenceValue(generator).longValue());
+		Assert.assertEquals(3, identifierSourceService.getLogEntries(generator, null, null, null, null, "range").size());
+		Assert.assertEquals("[J-3]", identifierSourceService.generateIdentifiers(generator, 1, "hello").toString());
+	}
+
+	/**
+	 * @see IdentifierSourceService#generateIdentifierRange(SequentialIdentifierGenerator, Integer, String)
+	 * @verifies log every identifier of the range before returning it
+	 */
+	@Test
+	public void generateIdentifierRange_shouldLogEveryIdentifierOfTheRangeBeforeReturningIt() throws Exception {
+		SequentialIdentifierGenerator generator = (SequentialIdentifierGenerator) identifierSourceService.getIdentifierSource(1);
+		identifierSourceService.generateIdentifierRange(generator, 1002, "large range");
+		List<LogEntry> logEntries = identifierSourceService.getLogEntries(generator, null, null, null, null, "large range");
+		Assert.assertEquals(1002, logEntries.size());
+		Set<String> identifiers = new HashSet<String>();
+		for (LogEntry logEntry : logEntries) {
+			identifiers.add(logEntry.getIdentifier());
+		}
+		Assert.assertEquals(1002, identifiers.size());
+		Assert.assertTrue(identifiers.contains("G-0"));
+	}
+
+	/**
+	 * @see IdentifierSourceService#generateIdentifierRange(SequentialIdentifierGenerator, Integer, String)
+	 * @verifies skip seeds whose identifiers are reserved
+	 */
+	@Test
+	public void generateIdentifierRange_shouldSkipSeedsWhoseIdentifiersAreReserved() throws Exception {
+		SequentialIdentifierGenerator generator = (SequentialIdentifierGenerator) identifierSourceService.getIdentifierSource(1);
+		generator.addReservedIdentifier("H-8");
+		identifierSourceService.saveIdentifierSource(generator);
+		long firstSeed = identifierSourceService.getSequenceValue(generator);
+		IdentifierRange range = identifierSourceService.generateIdentifierRange(generator, 3, "range");
+		Assert.assertArrayEquals(new long[] { firstSeed + 1 }, range.getSkippedSeeds());
+		Assert.assertEquals(firstSeed + 4, range.getEndSeed());
+		Iterator<String> i = range.iterator();
+		Assert.assertEquals("G-0", i.next());
+		Assert.assertEquals("I-5", i.next());
+		Assert.assertEquals("J-3", i.next());
+		Assert.assertFalse(i.hasNext());
+	}
+
+	/**
+	 * @see IdentifierSourceService#checkAndRefillIdentifierPool(IdentifierPool)
+	 * @verifies top up the pool to cover the demand projected from recent claims
+	 */
+	@Test
+	public void checkAndRefillIdentifierPool_shouldTopUpThePoolToCoverTheDemandProjectedFromRecentClaims() throws Exception {
+		IdentifierPool pool = (IdentifierPool) identifierSourceService.getIdentifierSource(4);
+		pool.setBatchSize(10);
+		identifierSourceService.saveIdentifierSource(pool);
+		List<String> identifiers = new ArrayList<String>();
+		for (int i = 1; i <= 30; i++) {
+			identifiers.add("P" + i);
+		}
+		identifierSourceService.addIdentifiersToPool(pool, identifiers);
+		identifierSourceService.claimAvailableIdentifiers(pool, 30);
+
+		// a lookahead as long as the meter's decay time projects about as many claims as were just made
+		Context.getAdministrationService().saveGlobalProperty(new GlobalProperty(IdgenConstants.GP_REFILL_LOOKAHEAD, "900"));
+		identifierSourceService.checkAndRefillIdentifierPool(pool);
+		Assert.assertTrue(identifierSourceService.getQuantityInPool(pool, true, false) >= 30);
+	}
+
 	/**
 	 * @see {@link IdentifierSourceService#getAllIdentifierSources(boolean)}
 	 */
@@ -263,6 +616,143 @@ public class IdentifierSourceServiceTest extends IdgenBaseTest {
         Assert.assertEquals(1, autoGenerationOption.getId().intValue());
     }
 
+    /**
+     * @see IdentifierSourceService#getAutoGenerationOption(PatientIdentifierType)
+     * @verifies see options saved and purged since it was last called
+     */
+    @Test
+    public void getAutoGenerationOption_shouldSeeOptionsSavedAndPurgedSinceItWasLastCalled() throws Exception {
+        PatientIdentifierType type = patientService.getPatientIdentifierType(1);
+        AutoGenerationOption option = identifierSourceService.getAutoGenerationOption(type);
+        Assert.assertEquals(1, option.getId().intValue());
+        Assert.assertNotNull(identifierSourceService.generateIdentifier(type, "test"));
+
+        identifierSourceService.purgeAutoGenerationOption(option);
+        Assert.assertNull(identifierSourceService.getAutoGenerationOption(type));
+        Assert.assertNull(identifierSourceService.generateIdentifier(type, "test"));
+
+        AutoGenerationOption manualOnly = new AutoGenerationOption(type, identifierSourceService.getIdentifierSource(1), true, false);
+        identifierSourceService.saveAutoGenerationOption(manualOnly);
+        Assert.assertEquals(manualOnly.getId(), identifierSourceService.getAutoGenerationOption(type).getId());
+        Assert.assertNull(identifierSourceService.generateIdentifier(type, "test"));
+    }
+
+    /**
+     * @see IdentifierSourceService#loadAutoGenerationOptionIndex()
+     * @verifies load the options of every identifier type and location
+     */
+    @Test
+    public void loadAutoGenerationOptionIndex_shouldLoadTheOptionsOfEveryIdentifierTypeAndLocation() throws Exception {
+        identifierSourceService.loadAutoGenerationOptionIndex();
+        PatientIdentifierType typeWithoutLocation = patientService.getPatientIdentifierType(1);
+        PatientIdentifierType typeByLocation = patientService.getPatientIdentifierType(2);
+        Assert.assertEquals(1, identifierSourceService.getAutoGenerationOption(typeWithoutLocation).getId().intValue());
+        Assert.assertEquals(1, identifierSourceService.getAutoGenerationOption(typeWithoutLocation, locationService.getLocation(4)).getId().intValue());
+        Assert.assertEquals(3, identifierSourceService.getAutoGenerationOption(typeByLocation, locationService.getLocation(2)).getId().intValue());
+        Assert.assertNull(identifierSourceService.getAutoGenerationOption(typeByLocation, locationService.getLocation(4)));
+    }
+
+    /**
+     * @see IdentifierSourceService#getPatientIdentifierTypesByAutoGenerationOption(Boolean, Boolean)
+     * @verifies return the types of matching options with a constant number of queries
+     */
+    @Test
+    public void getPatientIdentifierTypesByAutoGenerationOption_shouldReturnTheTypesOfMatchingOptionsWithAConstantNumberOfQueries() throws Exception {
+        Statistics statistics = Context.getRegisteredComponent("sessionFactory", SessionFactory.class).getStatistics();
+        boolean statisticsEnabled = statistics.isStatisticsEnabled();
+        statistics.setStatisticsEnabled(true);
+        try {
+            Context.flushSession();
+            Context.clearSession();
+            statistics.clear();
+            List<PatientIdentifierType> types = identifierSourceService.getPatientIdentifierTypesByAutoGenerationOption(true, true);
+            long statements = statistics.getPrepareStatementCount();
+            Set<Integer> typeIds = new HashSet<Integer>();
+            for (PatientIdentifierType type : types) {
+                typeIds.add(type.getId());
+            }
+            Assert.assertEquals(new HashSet<Integer>(Arrays.asList(1, 2)), typeIds);
+
+            for (int i = 0; i < 5; i++) {
+                PatientIdentifierType type = new PatientIdentifierType();
+                type.setName("Type without option " + i);
+                type.setDescription("Type without option " + i);
+                patientService.savePatientIdentifierType(type);
+            }
+            Context.flushSession();
+            Context.clearSession();
+            statistics.clear();
+            types = identifierSourceService.getPatientIdentifierTypesByAutoGenerationOption(true, true);
+            Assert.assertEquals(statements, statistics.getPrepareStatementCount());
+            Assert.assertEquals(2, types.size());
+        }
+        finally {
+            statistics.setStatisticsEnabled(statisticsEnabled);
+        }
+    }
+
+    /**
+     * @see IdentifierSourceService#getIdentifierSourceSummaries(boolean)
+     * @verifies return a summary of all identifier sources
+     */
+    @Test
+    public void getIdentifierSourceSummaries_shouldReturnASummaryOfAllIdentifierSources() throws Exception {
+        List<IdentifierSourceSummary> summaries = identifierSourceService.getIdentifierSourceSummaries(false);
+        List<IdentifierSource> sources = identifierSourceService.getAllIdentifierSources(false);
+        Assert.assertEquals(sources.size(), summaries.size());
+        Map<Integer, IdentifierSourceSummary> summariesById = new HashMap<Integer, IdentifierSourceSummary>();
+        for (IdentifierSourceSummary summary : summaries) {
+            summariesById.put(summary.getId(), summary);
+        }
+        for (IdentifierSource source : sources) {
+            IdentifierSourceSummary summary = summariesById.get(source.getId());
+            Assert.assertNotNull(summary);
+            Assert.assertEquals(source.getUuid(), summary.getUuid());
+            Assert.assertEquals(source.getName(), summary.getName());
+            Assert.assertEquals(source.getIdentifierType().getId(), summary.getIdentifierTypeId());
+            Assert.assertEquals(Hibernate.getClass(source), summary.getSourceType());
+        }
+    }
+
+    /**
+     * @see IdentifierSourceService#getIdentifierSourceSummaries(boolean)
+     * @verifies not return retired identifier sources unless asked to
+     */
+    @Test
+    public void getIdentifierSourceSummaries_shouldNotReturnRetiredIdentifierSourcesUnlessAskedTo() throws Exception {
+        int active = identifierSourceService.getIdentifierSourceSummaries(false).size();
+        int all = identifierSourceService.getIdentifierSourceSummaries(true).size();
+        identifierSourceService.retireIdentifierSource(identifierSourceService.getIdentifierSource(1), "testing");
+        Context.flushSession();
+        Assert.assertEquals(active - 1, identifierSourceService.getIdentifierSourceSummaries(false).size());
+        Assert.assertEquals(all, identifierSourceService.getIdentifierSourceSummaries(true).size());
+        for (IdentifierSourceSummary summary : identifierSourceService.getIdentifierSourceSummaries(true)) {
+            Assert.assertEquals(summary.getId().equals(1), summary.isRetired());
+        }
+    }
+
+    /**
+     * @see IdentifierSourceService#getIdentifierSourceSummariesByType(boolean)
+     * @verifies return a summary of all identifier sources by type
+     */
+    @Test
+    public void getIdentifierSourceSummariesByType_shouldReturnASummaryOfAllIdentifierSourcesByType() throws Exception {
+        Map<PatientIdentifierType, List<IdentifierSource>> sourcesByType = identifierSourceService.getIdentifierSourcesByType(false);
+        Map<PatientIdentifierType, List<IdentifierSourceSummary>> summariesByType = identifierSourceService.getIdentifierSourceSummariesByType(false);
+        Assert.assertEquals(sourcesByType.keySet(), summariesByType.keySet());
+        for (PatientIdentifierType type : sourcesByType.keySet()) {
+            Set<Integer> sourceIds = new HashSet<Integer>();
+            for (IdentifierSource source : sourcesByType.get(type)) {
+                sourceIds.add(source.getId());
+            }
+            Set<Integer> summaryIds = new HashSet<Integer>();
+            for (IdentifierSourceSummary summary : summariesByType.get(type)) {
+                summaryIds.add(summary.getId());
+            }
+            Assert.assertEquals(sourceIds, summaryIds);
+        }
+    }
+
     @Test
     public void getAutoGenerationOptionsByPatientIdentifier_shouldReturnAllAutoGenerationOptions() {
         PatientIdentifierType patientIdentifierType = patientService.getPatientIdentifierType(2);
@@ -278,4 +768,4 @@ public class IdentifierSourceServiceTest extends IdgenBaseTest {
         AutoGenerationOption option = identifierSourceService.getAutoGenerationOption(2);
         Assert.assertEquals(2, option.getId().intValue());
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,257 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.idgen.service;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionSynchronizationUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+public class LogEntryQueueTest {
+
+	private File journalDirectory;
+
+	/**
+	 * Writer collecting the identifiers of everything it writes
+	 */
+	private static class CollectingWriter implements LogEntryQueue.LogEntryWriter {
+
+		private List<String> written = new ArrayList<String>();
+
+		@Override
+		public void write(List<LogEntryQueue.QueuedLogEntry> entries) {
+			for (LogEntryQueue.QueuedLogEntry entry : entries) {
+				written.add(entry.getIdentifier());
+			}
+		}
+	}
+
+	@Before
+	public void createJournalDirectory() throws Exception {
+		journalDirectory = File.createTempFile("idgen", "journal");
+		journalDirectory.delete();
+		journalDirectory.mkdir();
+	}
+
+	@After
+	public void deleteJournalDirectory() throws Exception {
+		for (File f : journalDirectory.listFiles()) {
+			f.delete();
+		}
+		journalDirectory.delete();
+	}
+
+	private LogEntryQueue newQueue(int capacity) {
+		LogEntryQueue queue = new LogEntryQueue();
+		queue.setCapacity(capacity);
+		queue.setJournalDirectory(journalDirectory);
+		return queue;
+	}
+
+	private List<LogEntryQueue.QueuedLogEntry> entries(String... identifiers) {
+		List<LogEntryQueue.QueuedLogEntry> ret = new ArrayList<LogEntryQueue.QueuedLogEntry>();
+		for (String identifier : identifiers) {
+			ret.add(new LogEntryQueue.QueuedLogEntry(1, identifier, new Date(), 1, "tab\there"));
+		}
+		return ret;
+	}
+
+	/**
+	 * @see LogEntryQueue#offer(List)
+	 * @verifies refuse entries beyond its capacity
+	 */
+	@Test
+	public void offer_shouldRefuseEntriesBeyondItsCapacity() throws Exception {
+		LogEntryQueue queue = newQueue(3);
+		Assert.assertTrue(queue.offer(entries("A", "B")));
+		Assert.assertFalse(queue.offer(entries("C", "D")));
+		Assert.assertTrue(queue.offer(entries("C")));
+	}
+
+	/**
+	 * @see LogEntryQueue#offerOnCommit(List)
+	 * @verifies journal entries before the transaction commits
+	 */
+	@Test
+	public void offerOnCommit_shouldJournalEntriesBeforeTheTransactionCommits() throws Exception {
+		TransactionSynchronizationManager.initSynchronization();
+		try {
+			Assert.assertTrue(newQueue(10).offerOnCommit(entries("A", "B")));
+		}
+		finally {
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+		// the server crashes as the transaction commits
+		CollectingWriter writer = new CollectingWriter();
+		newQueue(10).flush(writer);
+		Assert.assertEquals(Arrays.asList("A", "B"), writer.written);
+	}
+
+	/**
+	 * @see LogEntryQueue#offerOnCommit(List)
+	 * @verifies queue entries only once the transaction commits
+	 */
+	@Test
+	public void offerOnCommit_shouldQueueEntriesOnlyOnceTheTransactionCommits() throws Exception {
+		LogEntryQueue queue = newQueue(10);
+		TransactionSynchronizationManager.initSynchronization();
+		try {
+			Assert.assertTrue(queue.offerOnCommit(entries("A", "B")));
+			Assert.assertFalse(queue.hasPendingEntries());
+			TransactionSynchronizationUtils.invokeAfterCommit(TransactionSynchronizationManager.getSynchronizations());
+		}
+		finally {
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+		Assert.assertTrue(queue.hasPendingEntries());
+		CollectingWriter writer = new CollectingWriter();
+		queue.flush(writer);
+		Assert.assertEquals(Arrays.asList("A", "B"), writer.written);
+	}
+
+	/**
+	 * @see LogEntryQueue#offerOnCommit(List)
+	 * @verifies not queue entries of a transaction which rolls back
+	 */
+	@Test
+	public void offerOnCommit_shouldNotQueueEntriesOfATransactionWhichRollsBack() throws Exception {
+		LogEntryQueue queue = newQueue(10);
+		TransactionSynchronizationManager.initSynchronization();
+		try {
+			Assert.assertTrue(queue.offerOnCommit(entries("A", "B")));
+			TransactionSynchronizationUtils.invokeAfterCompletion(TransactionSynchronizationManager.getSynchronizations(),
+					TransactionSynchronization.STATUS_ROLLED_BACK);
+		}
+		finally {
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+		Assert.assertFalse(queue.hasPendingEntries());
+		CollectingWriter writer = new CollectingWriter();
+		queue.flush(writer);
+		newQueue(10).flush(writer);
+		Assert.assertTrue(writer.written.isEmpty());
+	}
+
+	/**
+	 * @see LogEntryQueue#hasPendingEntries()
+	 * @verifies return whether there are entries waiting to be written
+	 */
+	@Test
+	public void hasPendingEntries_shouldReturnWhetherThereAreEntriesWaitingToBeWritten() throws Exception {
+		Assert.assertFalse(newQueue(10).hasPendingEntries());
+		newQueue(10).offer(entries("A"));
+		LogEntryQueue queue = newQueue(10);
+		Assert.assertTrue(queue.hasPendingEntries());
+		queue.flush(new CollectingWriter());
+		Assert.assertFalse(queue.hasPendingEntries());
+	}
+
+	/**
+	 * @see LogEntryQueue#flush(LogEntryQueue.LogEntryWriter)
+	 * @verifies write queued entries
+	 */
+	@Test
+	public void flush_shouldWriteQueuedEntries() throws Exception {
+		LogEntryQueue queue = newQueue(10);
+		queue.offer(entries("A", "B"));
+		queue.offer(entries("C"));
+		CollectingWriter writer = new CollectingWriter();
+		queue.flush(writer);
+		Assert.assertEquals(Arrays.asList("A", "B", "C"), writer.written);
+		queue.flush(writer);
+		Assert.assertEquals(3, writer.written.size());
+		Assert.assertEquals(0, journalDirectory.listFiles().length);
+	}
+
+	/**
+	 * @see LogEntryQueue#flush(LogEntryQueue.LogEntryWriter)
+	 * @verifies write entries journaled by a previous instance
+	 */
+	@Test
+	public void flush_shouldWriteEntriesJournaledByAPreviousInstance() throws Exception {
+		newQueue(10).offer(entries("A\\1", "B\n2"));
+		final List<LogEntryQueue.QueuedLogEntry> written = new ArrayList<LogEntryQueue.QueuedLogEntry>();
+		newQueue(10).flush(new LogEntryQueue.LogEntryWriter() {
+			@Override
+			public void write(List<LogEntryQueue.QueuedLogEntry> entries) {
+				written.addAll(entries);
+			}
+		});
+		Assert.assertEquals(2, written.size());
+		Assert.assertEquals("A\\1", written.get(0).getIdentifier());
+		Assert.assertEquals("B\n2", written.get(1).getIdentifier());
+		Assert.assertEquals("tab\there", written.get(1).getComment());
+		Assert.assertEquals(1, written.get(1).getGeneratedById().intValue());
+	}
+
+	/**
+	 * @see LogEntryQueue#flush(LogEntryQueue.LogEntryWriter)
+	 * @verifies keep entries whose write failed for the next flush
+	 */
+	@Test
+	public void flush_shouldKeepEntriesWhoseWriteFailedForTheNextFlush() throws Exception {
+		LogEntryQueue queue = newQueue(10);
+		queue.offer(entries("A", "B"));
+		try {
+			queue.flush(new LogEntryQueue.LogEntryWriter() {
+				@Override
+				public void write(List<LogEntryQueue.QueuedLogEntry> entries) {
+					throw new RuntimeException("database unavailable");
+				}
+			});
+			Assert.fail();
+		}
+		catch (RuntimeException e) {
+			// expected
+		}
+		queue.offer(entries("C"));
+		CollectingWriter writer = new CollectingWriter();
+		queue.flush(writer);
+		Assert.assertEquals(Arrays.asList("A", "B", "C"), writer.written);
+	}
+
+	/**
+	 * @see LogEntryQueue#flush(LogEntryQueue.LogEntryWriter)
+	 * @verifies leave entries of transactions in progress for a later flush
+	 */
+	@Test
+	public void flush_shouldLeaveEntriesOfTransactionsInProgressForALaterFlush() throws Exception {
+		LogEntryQueue queue = newQueue(10);
+		queue.offer(entries("A"));
+		CollectingWriter writer = new CollectingWriter();
+		TransactionSynchronizationManager.initSynchronization();
+		try {
+			Assert.assertTrue(queue.offerOnCommit(entries("B", "C")));
+			queue.flush(writer);
+			Assert.assertEquals(Arrays.asList("A"), writer.written);
+			TransactionSynchronizationUtils.invokeAfterCommit(TransactionSynchronizationManager.getSynchronizations());
+		}
+		finally {
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+		queue.flush(writer);
+		Assert.assertEquals(Arrays.asList("A", "B", "C"), writer.written);
+		Assert.assertEquals(0, journalDirectory.listFiles().length);
+	}
+}
@@ -0,0 +1,51 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.idgen.service;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PoolConsumptionMeterTest {
+
+	/**
+	 * @see PoolConsumptionMeter#getProjectedDemand(Integer, int, long)
+	 * @verifies project demand from the recent rate of claims
+	 */
+	@Test
+	public void getProjectedDemand_shouldProjectDemandFromTheRecentRateOfClaims() throws Exception {
+		PoolConsumptionMeter meter = new PoolConsumptionMeter(60 * 60 * 1000);
+		Assert.assertEquals(0, meter.getProjectedDemand(1, 3600, 0));
+		// one identifier a second for an hour converges towards a rate of one a second
+		for (long time = 1000; time <= 4 * 60 * 60 * 1000; time += 1000) {
+			meter.record(1, 1, time);
+		}
+		Assert.assertEquals(1.0, meter.getRatePerSecond(1, 4 * 60 * 60 * 1000), 0.05);
+		Assert.assertEquals(295, meter.getProjectedDemand(1, 300, 4 * 60 * 60 * 1000), 10);
+		Assert.assertEquals(0, meter.getProjectedDemand(2, 300, 4 * 60 * 60 * 1000));
+	}
+
+	/**
+	 * @see PoolConsumptionMeter#getRatePerSecond(Integer, long)
+	 * @verifies decay when nothing is claimed
+	 */
+	@Test
+	public void getRatePerSecond_shouldDecayWhenNothingIsClaimed() throws Exception {
+		PoolConsumptionMeter meter = new PoolConsumptionMeter(1000);
+		meter.record(1, 100, 0);
+		double rate = meter.getRatePerSecond(1, 0);
+		Assert.assertEquals(100.0, rate, 0.001);
+		Assert.assertEquals(rate / Math.E, meter.getRatePerSecond(1, 1000), 0.001);
+		Assert.assertTrue(meter.getRatePerSecond(1, 60000) < 0.001);
+	}
+}
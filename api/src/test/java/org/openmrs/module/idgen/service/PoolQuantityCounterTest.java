@@ -0,0 +1,135 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.idgen.service;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.idgen.IdgenConstants;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+public class PoolQuantityCounterTest extends BaseModuleContextSensitiveTest {
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	private PoolQuantityCounter counter;
+
+	private TransactionTemplate newTransaction;
+
+	@Before
+	public void setUp() throws Exception {
+		Context.getAdministrationService().saveGlobalProperty(new GlobalProperty(IdgenConstants.GP_POOL_COUNT_RECONCILE_INTERVAL, "60"));
+		counter = new PoolQuantityCounter();
+		Assert.assertEquals(60, counter.getReconcileInterval());
+		newTransaction = new TransactionTemplate(transactionManager);
+		newTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+	}
+
+	/**
+	 * @see PoolQuantityCounter#reconcile(Integer, int, int, long)
+	 * @verifies return the counted quantities until they are older than the reconcile interval
+	 */
+	@Test
+	public void reconcile_shouldReturnTheCountedQuantitiesUntilTheyAreOlderThanTheReconcileInterval() throws Exception {
+		Assert.assertNull(counter.getAvailable(1, 0));
+		counter.reconcile(1, 10, 5, 0);
+		Assert.assertEquals(10, counter.getAvailable(1, 60000).intValue());
+		Assert.assertEquals(5, counter.getUsed(1, 60000).intValue());
+		counter.recordClaimed(1, 3);
+		counter.recordAdded(1, 1);
+		Assert.assertEquals(8, counter.getAvailable(1, 60000).intValue());
+		Assert.assertEquals(8, counter.getUsed(1, 60000).intValue());
+		Assert.assertNull(counter.getAvailable(1, 60001));
+		Assert.assertNull(counter.getAvailable(2, 0));
+	}
+
+	/**
+	 * @see PoolQuantityCounter#recordClaimed(Integer, int)
+	 * @verifies apply claims to the shared counts only when the transaction commits
+	 */
+	@Test
+	public void recordClaimed_shouldApplyClaimsToTheSharedCountsOnlyWhenTheTransactionCommits() throws Exception {
+		final long now = System.currentTimeMillis();
+		newTransaction.execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus status) {
+				counter.reconcile(1, 10, 0, now);
+			}
+		});
+		newTransaction.execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus status) {
+				counter.recordClaimed(1, 4);
+				Assert.assertEquals(6, counter.getAvailable(1, now).intValue());
+				status.setRollbackOnly();
+			}
+		});
+		Assert.assertEquals(10, counter.getAvailable(1, now).intValue());
+		newTransaction.execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus status) {
+				counter.recordClaimed(1, 4);
+			}
+		});
+		Assert.assertEquals(6, counter.getAvailable(1, now).intValue());
+		Assert.assertEquals(4, counter.getUsed(1, now).intValue());
+	}
+
+	/**
+	 * @see PoolQuantityCounter#reconcile(Integer, int, int, long, long)
+	 * @verifies not share a count started before a change to the pool was committed
+	 */
+	@Test
+	public void reconcile_shouldNotShareACountStartedBeforeAChangeToThePoolWasCommitted() throws Exception {
+		final long now = System.currentTimeMillis();
+		newTransaction.execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus status) {
+				counter.reconcile(1, 10, 0, now);
+			}
+		});
+		newTransaction.execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus status) {
+				long countVersion = counter.getVersion();
+				// another transaction claims from the pool and commits after this one counted it
+				newTransaction.execute(new TransactionCallbackWithoutResult() {
+					@Override
+					protected void doInTransactionWithoutResult(TransactionStatus status) {
+						counter.recordClaimed(1, 4);
+					}
+				});
+				counter.reconcile(1, 10, 0, now, countVersion);
+			}
+		});
+		Assert.assertNull(counter.getAvailable(1, now));
+
+		newTransaction.execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus status) {
+				counter.reconcile(1, 6, 4, now, counter.getVersion());
+			}
+		});
+		Assert.assertEquals(6, counter.getAvailable(1, now).intValue());
+	}
+}
@@ -0,0 +1,166 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.idgen.task;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openmrs.module.idgen.IdentifierPool;
+import org.openmrs.module.idgen.IdentifierSource;
+import org.openmrs.module.idgen.SequentialIdentifierGenerator;
+import org.openmrs.module.idgen.service.IdentifierSourceService;
+
+public class RefillIdentifierPoolsTaskTest {
+
+	private IdentifierSourceService service;
+
+	private IdentifierPool fastPool;
+
+	private IdentifierPool slowPool;
+
+	private CountDownLatch releaseSlowPool;
+
+	private CountDownLatch slowPoolFinished;
+
+	private volatile boolean slowPoolInterrupted;
+
+	private StubTask task;
+
+	@Before
+	public void setUp() throws Exception {
+		fastPool = pool(1, "Fast pool", true);
+		slowPool = pool(2, "Slow pool", true);
+		releaseSlowPool = new CountDownLatch(1);
+		slowPoolFinished = new CountDownLatch(1);
+
+		service = Mockito.mock(IdentifierSourceService.class);
+		Mockito.when(service.getAllIdentifierSources(false)).thenReturn(Arrays.<IdentifierSource>asList(
+		    fastPool, slowPool, pool(3, "Pool refilled on demand", false), new SequentialIdentifierGenerator()));
+		Mockito.when(service.getIdentifierSource(1)).thenReturn(fastPool);
+		Mockito.when(service.getIdentifierSource(2)).thenReturn(slowPool);
+		Mockito.when(service.getQuantityInPool(Mockito.same(fastPool), Mockito.eq(true), Mockito.eq(false))).thenReturn(0, 10);
+		Mockito.doAnswer(new Answer<Void>() {
+
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				try {
+					releaseSlowPool.await();
+				}
+				catch (InterruptedException e) {
+					slowPoolInterrupted = true;
+				}
+				slowPoolFinished.countDown();
+				return null;
+			}
+		}).when(service).checkAndRefillIdentifierPool(Mockito.same(slowPool));
+
+		task = new StubTask();
+	}
+
+	@After
+	public void finishSlowPool() throws Exception {
+		releaseSlowPool.countDown();
+		slowPoolFinished.await(5, TimeUnit.SECONDS);
+		// the pool is taken off the refills in progress just after the refill returns
+		Thread.sleep(100);
+	}
+
+	/**
+	 * @see RefillIdentifierPoolsTask#refillPools()
+	 * @verifies refill each pool refilled by the task
+	 */
+	@Test
+	public void refillPools_shouldRefillEachPoolRefilledByTheTask() throws Exception {
+		releaseSlowPool.countDown();
+		List<String> results = task.refillPools();
+
+		Assert.assertEquals(2, results.size());
+		Assert.assertTrue(results.get(0), results.get(0).startsWith("Fast pool (1): added 10 identifiers, 10 available"));
+		Assert.assertTrue(results.get(1), results.get(1).startsWith("Slow pool (2): added 0 identifiers"));
+		Mockito.verify(service).checkAndRefillIdentifierPool(fastPool);
+		Mockito.verify(service).checkAndRefillIdentifierPool(slowPool);
+	}
+
+	/**
+	 * @see RefillIdentifierPoolsTask#refillPools()
+	 * @verifies stop waiting for a refill which times out without interrupting it
+	 */
+	@Test
+	public void refillPools_shouldStopWaitingForARefillWhichTimesOutWithoutInterruptingIt() throws Exception {
+		List<String> results = task.refillPools();
+
+		Assert.assertTrue(results.get(0), results.get(0).contains("added 10 identifiers"));
+		Assert.assertTrue(results.get(1), results.get(1).contains("timed out after 200 ms, still running"));
+		releaseSlowPool.countDown();
+		Assert.assertTrue(slowPoolFinished.await(5, TimeUnit.SECONDS));
+		Assert.assertFalse(slowPoolInterrupted);
+	}
+
+	/**
+	 * @see RefillIdentifierPoolsTask#refillPools()
+	 * @verifies skip a pool still being refilled by an earlier run
+	 */
+	@Test
+	public void refillPools_shouldSkipAPoolStillBeingRefilledByAnEarlierRun() throws Exception {
+		task.refillPools();
+		List<String> results = task.refillPools();
+
+		Assert.assertTrue(results.get(1), results.get(1).contains("skipped, still being refilled by an earlier run"));
+		Mockito.verify(service, Mockito.times(1)).checkAndRefillIdentifierPool(slowPool);
+	}
+
+	private IdentifierPool pool(Integer id, String name, boolean refillWithScheduledTask) {
+		IdentifierPool pool = new IdentifierPool();
+		pool.setId(id);
+		pool.setName(name);
+		pool.setRefillWithScheduledTask(refillWithScheduledTask);
+		return pool;
+	}
+
+	/**
+	 * Refills through the stub service in plain threads, waiting 200 ms for each pool
+	 */
+	private class StubTask extends RefillIdentifierPoolsTask {
+
+		@Override
+		protected IdentifierSourceService getService() {
+			return service;
+		}
+
+		@Override
+		protected int getRefillThreads() {
+			return 2;
+		}
+
+		@Override
+		protected long getRefillTimeout() {
+			return 200;
+		}
+
+		@Override
+		protected boolean runInBackground(Runnable refill) {
+			new Thread(refill).start();
+			return true;
+		}
+	}
+}
@@ -0,0 +1,66 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.idgen.validator;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.patient.UnallowedIdentifierException;
+
+public class LuhnModNEngineTest {
+
+	private LuhnModNEngine mod10 = LuhnModNEngine.forBaseCharacters(new LuhnMod10IdentifierValidator().getBaseCharacters());
+
+	private LuhnModNEngine mod30 = LuhnModNEngine.forBaseCharacters(new LuhnMod30IdentifierValidator().getBaseCharacters());
+
+	/**
+	 * @see LuhnModNEngine#computeCheckDigit(CharSequence, int, int)
+	 * @verifies compute the same check digit as the linear algorithm
+	 */
+	@Test
+	public void computeCheckDigit_shouldComputeTheSameCheckDigitAsTheLinearAlgorithm() throws Exception {
+		Assert.assertEquals('7', mod10.computeCheckDigit("2468", 0, 4));
+		Assert.assertEquals('3', mod10.computeCheckDigit("7992739871", 0, 10));
+		Assert.assertEquals('7', mod10.computeCheckDigit("xx2468xx", 2, 6));
+	}
+
+	/**
+	 * @see LuhnModNEngine#computeCheckDigit(CharSequence, int, int)
+	 * @verifies accept lower-case characters
+	 */
+	@Test
+	public void computeCheckDigit_shouldAcceptLowerCaseCharacters() throws Exception {
+		Assert.assertEquals(mod30.computeCheckDigit("ACD12", 0, 5), mod30.computeCheckDigit("acd12", 0, 5));
+	}
+
+	/**
+	 * @see LuhnModNEngine#computeCheckDigit(CharSequence, int, int)
+	 * @verifies throw an UnallowedIdentifierException for characters outside the base
+	 */
+	@Test(expected = UnallowedIdentifierException.class)
+	public void computeCheckDigit_shouldThrowAnUnallowedIdentifierExceptionForCharactersOutsideTheBase() throws Exception {
+		mod30.computeCheckDigit("AB1", 0, 3);
+	}
+
+	/**
+	 * @see LuhnModNEngine#validateCheckDigit(CharSequence, int, int)
+	 * @verifies validate a correct check digit
+	 */
+	@Test
+	public void validateCheckDigit_shouldValidateACorrectCheckDigit() throws Exception {
+		Assert.assertTrue(mod10.validateCheckDigit("79927398713", 0, 11));
+		Assert.assertFalse(mod10.validateCheckDigit("79927398714", 0, 11));
+		String identifier = "ACD12" + mod30.computeCheckDigit("ACD12", 0, 5);
+		Assert.assertTrue(mod30.validateCheckDigit(identifier, 0, identifier.length()));
+	}
+}
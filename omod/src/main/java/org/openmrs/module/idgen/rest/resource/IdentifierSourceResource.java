@@ -10,6 +10,7 @@ package org.openmrs.module.idgen.rest.resource;
 
 import org.openmrs.module.idgen.IdentifierPool;
 import org.openmrs.module.idgen.IdentifierSource;
+import org.openmrs.module.idgen.IdentifierSourceSummary;
 import org.openmrs.module.idgen.RemoteIdentifierSource;
 import org.openmrs.module.idgen.SequentialIdentifierGenerator;
 import org.openmrs.module.idgen.service.IdentifierSourceService;
@@ -17,8 +18,10 @@ import org.openmrs.module.idgen.web.controller.IdgenRestController;
 
 import org.apache.commons.lang3.StringUtils;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 
 import org.openmrs.module.webservices.rest.web.ConversionUtil;
@@ -120,7 +123,7 @@ public class IdentifierSourceResource extends MetadataDelegatingCrudResource<Ide
     public Integer getUsedIdentifiers(IdentifierSource identifierSource) {
         if(identifierSource instanceof IdentifierPool){
             IdentifierPool pool = (IdentifierPool) identifierSource;
-            return pool.getUsedIdentifiers().size();
+            return Context.getService(IdentifierSourceService.class).getQuantityInPool(pool, false, true);
         }
         return  null;
     }
@@ -129,7 +132,7 @@ public class IdentifierSourceResource extends MetadataDelegatingCrudResource<Ide
     public Integer getAvailableIdentifiers(IdentifierSource identifierSource) {
         if(identifierSource instanceof IdentifierPool){
             IdentifierPool pool = (IdentifierPool) identifierSource;
-            return pool.getAvailableIdentifiers().size();
+            return Context.getService(IdentifierSourceService.class).getQuantityInPool(pool, true, false);
         }
         return  null;
     }
@@ -168,8 +171,16 @@ public class IdentifierSourceResource extends MetadataDelegatingCrudResource<Ide
             if(sourceUuid != null){
                 IdentifierSource identifierSource = Context.getService(IdentifierSourceService.class).getIdentifierSourceByUuid(sourceUuid.toString());
                 if(identifierSource != null){
-                    List<String> identifiers = Context.getService(IdentifierSourceService.class).
-                        generateIdentifiers(identifierSource, Integer.parseInt(numberToGenerate.toString()), comment.toString());
+                    IdentifierSourceService service = Context.getService(IdentifierSourceService.class);
+                    int quantity = Integer.parseInt(numberToGenerate.toString());
+                    // a range of a saved sequential generator is logged up front, and formatted as the response is serialized
+                    Collection<String> identifiers;
+                    if (identifierSource instanceof SequentialIdentifierGenerator && identifierSource.getId() != null) {
+                        identifiers = service.generateIdentifierRange((SequentialIdentifierGenerator) identifierSource, quantity, comment.toString());
+                    }
+                    else {
+                        identifiers = service.generateIdentifiers(identifierSource, quantity, comment.toString());
+                    }
                     identifiersToExport.add("identifiers", identifiers);
                     return identifiersToExport;
                 }      
@@ -486,7 +497,9 @@ public class IdentifierSourceResource extends MetadataDelegatingCrudResource<Ide
     
     @Override
     protected PageableResult doGetAll(RequestContext context) throws ResponseException {
-        return new NeedsPaging<IdentifierSource>(Context.getService(IdentifierSourceService.class).getAllIdentifierSources(false), context);
+        // page over the summaries, so that only the sources of the requested page are loaded
+        List<IdentifierSourceSummary> summaries = Context.getService(IdentifierSourceService.class).getIdentifierSourceSummaries(false);
+        return new NeedsPaging<IdentifierSource>(new SummarizedIdentifierSources(summaries), context);
     }
     
     @Override
@@ -549,5 +562,27 @@ public class IdentifierSourceResource extends MetadataDelegatingCrudResource<Ide
         }
         return null;
     }
+
+    /**
+     * Lists the IdentifierSources of the given summaries, loading each one only when it is accessed
+     */
+    private static class SummarizedIdentifierSources extends AbstractList<IdentifierSource> {
+
+        private final List<IdentifierSourceSummary> summaries;
+
+        public SummarizedIdentifierSources(List<IdentifierSourceSummary> summaries) {
+            this.summaries = summaries;
+        }
+
+        @Override
+        public IdentifierSource get(int index) {
+            return Context.getService(IdentifierSourceService.class).getIdentifierSource(summaries.get(index).getId());
+        }
+
+        @Override
+        public int size() {
+            return summaries.size();
+        }
+    }
     
 }
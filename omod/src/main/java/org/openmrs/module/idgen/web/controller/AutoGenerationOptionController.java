@@ -7,6 +7,7 @@ import org.openmrs.api.LocationService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.idgen.AutoGenerationOption;
 import org.openmrs.module.idgen.IdentifierSource;
+import org.openmrs.module.idgen.IdentifierSourceSummary;
 import org.openmrs.module.idgen.propertyeditor.AutoGenerationOptionEditor;
 import org.openmrs.module.idgen.propertyeditor.IdentifierSourceEditor;
 import org.openmrs.module.idgen.service.IdentifierSourceService;
@@ -82,7 +83,7 @@ public class AutoGenerationOptionController {
             IdentifierSourceService iss = Context.getService(IdentifierSourceService.class);
 			Map<PatientIdentifierType,List<AutoGenerationOption>> optionMap = new HashMap<PatientIdentifierType, List<AutoGenerationOption>>();
 			List<PatientIdentifierType> identifierTypes = new ArrayList<PatientIdentifierType>();
-            Map<PatientIdentifierType, List<IdentifierSource>> availableSources = iss.getIdentifierSourcesByType(false);
+            Map<PatientIdentifierType, List<IdentifierSourceSummary>> availableSources = iss.getIdentifierSourceSummariesByType(false);
 
 			for (PatientIdentifierType pit : Context.getPatientService().getAllPatientIdentifierTypes()) {
 				List<AutoGenerationOption> options = iss.getAutoGenerationOptions(pit);
@@ -1,10 +1,12 @@
 package org.openmrs.module.idgen.web.controller;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -18,13 +20,16 @@ import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
 import org.openmrs.PatientIdentifierType;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.idgen.IdentifierImportReader;
 import org.openmrs.module.idgen.IdentifierPool;
 import org.openmrs.module.idgen.IdentifierSource;
+import org.openmrs.module.idgen.IdentifierSourceSummary;
 import org.openmrs.module.idgen.RemoteIdentifierSource;
-import org.openmrs.module.idgen.RemoteIdentifiersMessage;
 import org.openmrs.module.idgen.SequentialIdentifierGenerator;
 import org.openmrs.module.idgen.propertyeditor.IdentifierSourceEditor;
 import org.openmrs.module.idgen.service.IdentifierSourceService;
@@ -55,6 +60,16 @@ public class IdentifierSourceController {
 
 	protected static Log log = LogFactory.getLog(IdentifierSourceController.class);
 
+	/**
+	 * Number of identifiers from an uploaded file saved to a pool in each transaction
+	 */
+	private static final int IMPORT_CHUNK_SIZE = 5000;
+
+	/**
+	 * Number of exported identifiers written between flushes of the response
+	 */
+	private static final int EXPORT_FLUSH_INTERVAL = 1000;
+
 	@Autowired
 	private IdentifierSourceService iss;
 	
@@ -118,7 +133,7 @@ public class IdentifierSourceController {
 			IdentifierSourceService iss = Context.getService(IdentifierSourceService.class);
 			boolean ret = includeRetired == Boolean.TRUE;
 			
-			Map<PatientIdentifierType, List<IdentifierSource>> sourcesByType = iss.getIdentifierSourcesByType(ret);
+			Map<PatientIdentifierType, List<IdentifierSourceSummary>> sourcesByType = iss.getIdentifierSourceSummariesByType(ret);
 			
 			List<PatientIdentifierType> identifierTypes = new ArrayList<PatientIdentifierType>();
 			for (Iterator<PatientIdentifierType> i = sourcesByType.keySet().iterator(); i.hasNext();) {
@@ -174,6 +189,11 @@ public class IdentifierSourceController {
     @RequestMapping("/module/idgen/viewIdentifierSource")
     public void viewIdentifierSource(ModelMap model, @RequestParam(required=true, value="source") IdentifierSource source) {
     	model.addAttribute("source", source);
+    	if (source instanceof IdentifierPool) {
+    		IdentifierSourceService iss = Context.getService(IdentifierSourceService.class);
+    		model.addAttribute("quantityUsed", iss.getQuantityInPool((IdentifierPool) source, false, true));
+    		model.addAttribute("quantityAvailable", iss.getQuantityInPool((IdentifierPool) source, true, false));
+    	}
     }
     
     /**
@@ -207,14 +227,58 @@ public class IdentifierSourceController {
         if (StringUtils.isEmpty(comment)) {
             comment = "Batch Export of " + numberToGenerate + " to file";
         }
-        List<String> batch = iss.generateIdentifiers(source, numberToGenerate, comment);
+        // saved sequential generators hand out a range, already logged, whose identifiers are formatted as they are written
+        Iterable<String> batch;
+        if (source instanceof SequentialIdentifierGenerator && source.getId() != null) {
+            batch = iss.generateIdentifierRange((SequentialIdentifierGenerator) source, numberToGenerate, comment);
+        }
+        else {
+            batch = iss.generateIdentifiers(source, numberToGenerate, comment);
+        }
 
         response.setHeader("Content-Disposition", "attachment; filename=identifiers.txt");
         response.setHeader("Pragma", "no-cache");
-        response.setContentType("application/json");
         ServletOutputStream out = response.getOutputStream();
-        
-        new ObjectMapper().writeValue(out, new RemoteIdentifiersMessage(batch));
+
+        if (acceptsOnlyPlainText(request)) {
+            response.setContentType("text/plain");
+            response.setCharacterEncoding("UTF-8");
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+            int written = 0;
+            for (String identifier : batch) {
+                writer.write(identifier);
+                writer.write('\n');
+                if (++written % EXPORT_FLUSH_INTERVAL == 0) {
+                    writer.flush();
+                }
+            }
+            writer.close();
+        }
+        else {
+            // written as the same message a RemoteIdentifiersMessage serializes to, one identifier at a time
+            response.setContentType("application/json");
+            JsonGenerator json = new JsonFactory().createJsonGenerator(out, JsonEncoding.UTF8);
+            json.writeStartObject();
+            json.writeArrayFieldStart("identifiers");
+            int written = 0;
+            for (String identifier : batch) {
+                json.writeString(identifier);
+                if (++written % EXPORT_FLUSH_INTERVAL == 0) {
+                    json.flush();
+                }
+            }
+            json.writeEndArray();
+            json.writeEndObject();
+            json.close();
+        }
+    }
+
+    /**
+     * @return true if the request asks for plain text and not for JSON
+     */
+    private boolean acceptsOnlyPlainText(HttpServletRequest request) {
+        String accept = request.getHeader("Accept");
+        return accept != null && accept.contains("text/plain") && !accept.contains("application/json");
     }
     
     /**
@@ -225,29 +289,29 @@ public class IdentifierSourceController {
                                          @RequestParam(required=true, value="source") IdentifierSource source,
                                          @RequestParam(required=true, value="inputFile") MultipartFile inputFile) throws Exception {
 
-        IdentifierPool pool = (IdentifierPool)source;
-        List<String> ids = new ArrayList<String>();
+        final IdentifierPool pool = (IdentifierPool)source;
+        final int[] imported = { 0 };
         InputStream streamReader = null;
         if(inputFile != null){
             try {
                 streamReader = inputFile.getInputStream();
                 if(streamReader != null){
-                    try{
-                        ObjectMapper mapper = new ObjectMapper();
-                        RemoteIdentifiersMessage remoteIdentifiersMessage = mapper.readValue(streamReader, RemoteIdentifiersMessage.class);
-                        if(remoteIdentifiersMessage != null){
-                            ids = remoteIdentifiersMessage.getIdentifiers();
-                            iss.addIdentifiersToPool(pool, ids);
-                            request.getSession().setAttribute(WebConstants.OPENMRS_MSG_ATTR, "Success: Identifiers successfully uploaded.");
+                    // identifiers are read and saved a chunk at a time, each chunk in its own transaction
+                    IdentifierImportReader.read(streamReader, IMPORT_CHUNK_SIZE, new IdentifierImportReader.ChunkHandler() {
+                        @Override
+                        public void handle(List<String> identifiers) {
+                            iss.addIdentifiersToPool(pool, identifiers);
+                            imported[0] += identifiers.size();
+                            log.info("Imported " + imported[0] + " identifiers into pool " + pool.getName());
                         }
-                    }catch (IOException ex){
-                        log.error("Unexpected response: " , ex);
-                        throw new Exception(ex);
-                    }
+                    });
+                    request.getSession().setAttribute(WebConstants.OPENMRS_MSG_ATTR, "Success: Identifiers successfully uploaded.");
                 }
             }catch (Exception e){
-                log.error("failed to read uploaded file", e);
-                throw new Exception(e);
+                // the chunks saved before the failure stay in the pool, so the user needs to know how many there were
+                log.error("failed to read uploaded file after importing " + imported[0] + " identifiers", e);
+                request.getSession().setAttribute(WebConstants.OPENMRS_ERROR_ATTR, "Upload failed: " + e.getMessage() + ". "
+                        + imported[0] + " identifiers were imported before the failure and remain in the pool.");
             }finally {
                 if(streamReader != null){
                     streamReader.close();
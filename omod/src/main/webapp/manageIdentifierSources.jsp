@@ -34,7 +34,7 @@
 						<tr class="${entryStatus.index % 2 == 0 ? 'evenRow' : 'oddRow'} ${status.last ? 'underlineRow' : '' }">
 						
 							<td><c:out value="${entry.key.name}"/></td>
-							<td><spring:message code="idgen.${source['class'].name}"/></td>
+							<td><spring:message code="idgen.${source.sourceType.name}"/></td>
 							<td><c:out value="${source.name}"/></td>
 							<td>
 								<button style="height:20px; font-size:8pt; vertical-align:middle;" onclick="document.location.href='editIdentifierSource.form?source=${source.id}';">
@@ -85,4 +85,4 @@
 	</form>
 </div>
 
-<%@ include file="/WEB-INF/template/footer.jsp"%>
\ No newline at end of file
+<%@ include file="/WEB-INF/template/footer.jsp"%>
\ No newline at end of file
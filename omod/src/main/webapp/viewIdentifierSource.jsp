@@ -100,8 +100,8 @@
 
 	This Identifier Source manages a pool of pre-generated identifiers.<br/><br/>
 	
-	Quantity Consumed:  ${fn:length(source.usedIdentifiers)}<br/>
-	Quantity Available: ${fn:length(source.availableIdentifiers)}
+	Quantity Consumed:  ${quantityUsed}<br/>
+	Quantity Available: ${quantityAvailable}
 	
 	<br/><br/>
 	
@@ -130,7 +130,7 @@
 	<b>Export Identifiers: </b>
 	<c:set var="available" value="t"/>
 	<c:if test="${source['class'].name == 'org.openmrs.module.idgen.IdentifierPool'}">
-		<c:if test="${fn:length(source.availableIdentifiers) == 0}">
+		<c:if test="${quantityAvailable == 0}">
 			<c:set var="available" value="f"/>
 			None available for export.
 		</c:if>
@@ -152,4 +152,4 @@
 	</c:if>
 </form>
 
-<%@ include file="/WEB-INF/template/footer.jsp"%>
\ No newline at end of file
+<%@ include file="/WEB-INF/template/footer.jsp"%>
\ No newline at end of file
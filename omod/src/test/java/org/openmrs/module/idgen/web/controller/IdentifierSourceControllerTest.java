@@ -15,6 +15,7 @@ package org.openmrs.module.idgen.web.controller;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -28,7 +29,9 @@ import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.idgen.IdentifierFormatter;
 import org.openmrs.module.idgen.IdentifierPool;
+import org.openmrs.module.idgen.IdentifierRange;
 import org.openmrs.module.idgen.IdentifierSource;
 import org.openmrs.module.idgen.SequentialIdentifierGenerator;
 import org.openmrs.module.idgen.service.IdentifierSourceService;
@@ -72,6 +75,72 @@ public class IdentifierSourceControllerTest {
 		Assert.assertEquals("{\"identifiers\":[\"1\",\"2\",\"3\"]}", mockResponse.getContentAsString());
 	}
 
+	@Test
+	public void exportIdentifiers_shouldReturnOneIdentifierPerLineIfOnlyPlainTextIsAccepted() throws Exception {
+		Mockito.stub(iss.generateIdentifiers(
+				Mockito.any(IdentifierSource.class),
+				Mockito.any(Integer.class),
+				Mockito.any(String.class))).toReturn(Arrays.asList("1", "2", "3"));
+
+		SequentialIdentifierGenerator generator = new SequentialIdentifierGenerator();
+
+		MockHttpServletRequest mockRequest = new MockHttpServletRequest();
+		mockRequest.addHeader("Accept", "text/plain");
+		MockHttpServletResponse mockResponse = new MockHttpServletResponse();
+
+		controller.exportIdentifiers(null, mockRequest, mockResponse, generator, 3, "Mirebalais", null, null);
+
+		Assert.assertEquals("text/plain", mockResponse.getContentType().split(";")[0]);
+		Assert.assertEquals("1\n2\n3\n", mockResponse.getContentAsString());
+	}
+
+	@Test
+	public void exportIdentifiers_shouldWriteTheRangeOfASavedGeneratorAsJson() throws Exception {
+		SequentialIdentifierGenerator generator = new SequentialIdentifierGenerator();
+		generator.setId(1);
+		Mockito.stub(iss.generateIdentifierRange(
+				Mockito.any(SequentialIdentifierGenerator.class),
+				Mockito.any(Integer.class),
+				Mockito.any(String.class))).toReturn(range(1, 3));
+
+		MockHttpServletRequest mockRequest = new MockHttpServletRequest();
+		MockHttpServletResponse mockResponse = new MockHttpServletResponse();
+
+		controller.exportIdentifiers(null, mockRequest, mockResponse, generator, 3, "Mirebalais", null, null);
+
+		Assert.assertEquals("{\"identifiers\":[\"1\",\"2\",\"3\"]}", mockResponse.getContentAsString());
+		Mockito.verify(iss, Mockito.never()).generateIdentifiers(Mockito.any(IdentifierSource.class),
+				Mockito.any(Integer.class), Mockito.any(String.class));
+	}
+
+	@Test
+	public void exportIdentifiers_shouldWriteEveryIdentifierOfALargeRange() throws Exception {
+		SequentialIdentifierGenerator generator = new SequentialIdentifierGenerator();
+		generator.setId(1);
+		MockHttpServletRequest mockRequest = new MockHttpServletRequest();
+		mockRequest.addHeader("Accept", "text/plain");
+		MockHttpServletResponse mockResponse = new MockHttpServletResponse();
+		Mockito.stub(iss.generateIdentifierRange(
+				Mockito.any(SequentialIdentifierGenerator.class),
+				Mockito.any(Integer.class),
+				Mockito.any(String.class))).toReturn(range(1, 2500));
+
+		controller.exportIdentifiers(null, mockRequest, mockResponse, generator, 2500, "Mirebalais", null, null);
+
+		String[] lines = mockResponse.getContentAsString().split("\n");
+		Assert.assertEquals(2500, lines.length);
+		Assert.assertEquals("2500", lines[2499]);
+	}
+
+	/**
+	 * @return a range of decimal identifiers
+	 */
+	private IdentifierRange range(long firstSeed, int count) {
+		SequentialIdentifierGenerator generator = new SequentialIdentifierGenerator();
+		generator.setBaseCharacterSet("0123456789");
+		return new IdentifierRange(1, IdentifierFormatter.forGenerator(generator), firstSeed, count, new long[0]);
+	}
+
     @Test
     public void importIdentifiers_shouldAcceptJson() throws Exception {
         Mockito.doNothing().when(iss).addIdentifiersToPool(Mockito.any(IdentifierPool.class), (List<String>) Mockito.anyCollectionOf(String.class));
@@ -88,4 +157,26 @@ public class IdentifierSourceControllerTest {
         String response = (String) mockRequest.getSession().getAttribute(WebConstants.OPENMRS_MSG_ATTR);
         Assert.assertEquals(response, "Success: Identifiers successfully uploaded.");
     }
+
+    @Test
+    public void importIdentifiers_shouldReportHowManyIdentifiersWereImportedBeforeAFailure() throws Exception {
+        Mockito.doNothing().when(iss).addIdentifiersToPool(Mockito.any(IdentifierPool.class), (List<String>) Mockito.anyCollectionOf(String.class));
+
+        IdentifierPool identifierPool = new IdentifierPool();
+        StringBuilder identifiers = new StringBuilder("[");
+        for (int i = 0; i < 5000; i++) {
+            identifiers.append("\"").append(i).append("\",");
+        }
+        identifiers.append("7]");
+        InputStream inputStream = new ByteArrayInputStream(identifiers.toString().getBytes());
+
+        MockMultipartFile mockMultipartFile = new MockMultipartFile("inputFile", inputStream);
+        MockHttpServletRequest mockRequest = new MockHttpServletRequest();
+        MockHttpServletResponse mockResponse = new MockHttpServletResponse();
+
+        controller.addIdentifiersFromFile(null, mockRequest, mockResponse, identifierPool, mockMultipartFile);
+        String error = (String) mockRequest.getSession().getAttribute(WebConstants.OPENMRS_ERROR_ATTR);
+        Assert.assertTrue(error, error.contains("5000 identifiers were imported"));
+        Assert.assertNull(mockRequest.getSession().getAttribute(WebConstants.OPENMRS_MSG_ATTR));
+    }
 }